@@ -4,25 +4,45 @@ package phylonco.beast.evolution.datatype;
 import beast.base.core.BEASTObject;
 import beast.base.core.Input;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class ReadCount extends BEASTObject {
     int ntaxa;
     int nchar;
-    int data[][][];
+    // counts stored taxon-major in one array, indexed [(taxa * nchar + site) * NUCLEOTIDES + nucleotide]
+    int data[];
+    // view of the counts, either wrapping data or a memory-mapped binary file (then data is null until getCounts())
+    IntBuffer counts;
+    // reference nucleotide index of each site (A-0, C-1, G-2, T-3), -1 if unknown, null if not available
+    byte[] refIndex;
     String[] taxaNames;
     String[] sitesIndex;
     Map<String, Integer> taxaNamesMap = new HashMap<>();
     Map<String, Integer> sitesIndexMap = new HashMap<>();
 
-    String newline = "\n";
-    String semicolon = ",";
-    String comma = ":";
     String space = " ";
 
-    public Input<String> readCountStrInput = new Input<>("value", "A string record read counts", Input.Validate.REQUIRED);
+    public static final int NUCLEOTIDES = 4;
+
+    // binary format written by phylonco.lphy.evolution.readcountmodel.ReadCountBinaryWriter
+    public static final int BINARY_MAGIC = 0x50524342; // "PRCB"
+    public static final int BINARY_VERSION = 1;
+
+    public Input<String> readCountStrInput = new Input<>("value", "A string record read counts");
+    public Input<String> fileInput = new Input<>("file", "A file containing read counts, either in the same format as value or in the binary format, which is memory-mapped", Input.Validate.XOR, readCountStrInput);
     public Input<String> taxaNamesInput = new Input<>("taxaNames", "Taxa names of the data", Input.Validate.OPTIONAL);
     public Input<String> sitesIndexInput = new Input<>("sitesIndex", "Sites index of the data", Input.Validate.OPTIONAL);
 
@@ -39,34 +59,85 @@ public class ReadCount extends BEASTObject {
     public ReadCount(int ntaxa, int nchar) {
         this.ntaxa = ntaxa;
         this.nchar = nchar;
-        data = new int[ntaxa][nchar][4];
+        data = new int[ntaxa * nchar * NUCLEOTIDES];
         initAndValidate();
     }
 
+    /**
+     * @return a copy of the A, C, G, T counts of a taxon at a site,
+     * use getCountBuffer() and getOffset() in loops to avoid the copy
+     */
     public int[] getReadCounts(int taxa, int site) {
-        return data[taxa][site];
+        int[] readCounts = new int[NUCLEOTIDES];
+        counts.get(getOffset(taxa, site), readCounts);
+        return readCounts;
     }
 
     public int[] getReadCounts(String taxaName, int site) {
         int taxa = taxaNamesMap.get(taxaName);
-        return data[taxa][site];
+        return getReadCounts(taxa, site);
     }
 
     public int[] getReadCounts(int taxa, String siteIndex) {
         int site = sitesIndexMap.get(siteIndex);
-        return data[taxa][site];
+        return getReadCounts(taxa, site);
     }
 
     public int[] getReadCounts(String taxaName, String siteIndex) {
         int site = sitesIndexMap.get(siteIndex);
         int taxa = taxaNamesMap.get(taxaName);
-        return data[taxa][site];
+        return getReadCounts(taxa, site);
     }
 
-    public void setReadCounts(int taxa, int site, int[] counts) {
-        for (int i = 0; i < data[taxa][site].length; i++) {
-            data[taxa][site][i] = counts[i];
+    /**
+     * @return the backing array of all counts, the counts of a taxon at a site
+     * start at getOffset(taxa, site). Must not be modified.
+     * Counts of a memory-mapped file are copied into memory, use getCountBuffer() to avoid that.
+     */
+    public int[] getCounts() {
+        if (data == null) {
+            data = new int[counts.limit()];
+            counts.get(0, data);
+        }
+        return data;
+    }
+
+    /**
+     * @return all counts, the counts of a taxon at a site start at getOffset(taxa, site).
+     * Only use absolute get methods, the buffer is shared.
+     */
+    public IntBuffer getCountBuffer() {
+        return counts;
+    }
+
+    /** @return true if the counts are read from a memory-mapped binary file */
+    public boolean isMapped() {
+        return counts != null && counts.isDirect();
+    }
+
+    /** @return offset of the A, C, G, T counts of a taxon at a site in getCounts() and getCountBuffer() */
+    public int getOffset(int taxa, int site) {
+        return (taxa * nchar + site) * NUCLEOTIDES;
+    }
+
+    /** @return total read count (coverage) of a taxon at a site */
+    public int getCoverage(int taxa, int site) {
+        int offset = getOffset(taxa, site);
+        int coverage = 0;
+        for (int i = 0; i < NUCLEOTIDES; i++) {
+            coverage += counts.get(offset + i);
         }
+        return coverage;
+    }
+
+    public void setReadCounts(int taxa, int site, int[] counts) {
+        // throws ReadOnlyBufferException for memory-mapped counts
+        this.counts.put(getOffset(taxa, site), counts, 0, NUCLEOTIDES);
+    }
+
+    /** @return reference nucleotide index of a site (A-0, C-1, G-2, T-3), -1 if unknown */
+    public int getRefIndex(int site) {
+        return refIndex != null ? refIndex[site] : -1;
     }
 
     public String getTaxonName(int taxa) {return taxaNames[taxa];}
@@ -87,57 +158,151 @@ public class ReadCount extends BEASTObject {
     public int getSiteNumber() {return nchar;}
 
 
-    private ArrayList<String> getTrimmed(String[] array) {
-        ArrayList<String> trimmed = new ArrayList<>();
-        for (String string : array) {
-            String num = string.trim();
-            if (num.length() > 0) {
-                trimmed.add(num);
+    /**
+     * Parse read counts in a single pass straight into the backing array.
+     * Sites are separated by commas, taxa by new lines, counts within a site by colons:
+     * 1:0:0:11,0:17:0:12
+     * 7:0:0:26,0:12:0:8
+     * @param capacity initial size of the backing array, e.g. an upper bound from the input length
+     */
+    private void parseReadCounts(Reader reader, int capacity) throws IOException {
+        int[] parsed = new int[Math.max(capacity, NUCLEOTIDES)];
+        int size = 0;
+        int value = 0;
+        boolean inNumber = false;
+        int nucleotide = 0;
+        int site = 0;
+        ntaxa = 0;
+        nchar = 0;
+
+        char[] buffer = new char[8192];
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            int length = reader.read(buffer);
+            if (length == -1) {
+                // the end of the input closes the last row
+                buffer[0] = '\n';
+                length = 1;
+                endOfInput = true;
+            }
+            for (int i = 0; i < length; i++) {
+                char c = buffer[i];
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    inNumber = true;
+                } else if (c == ':' || c == ',' || c == '\n' || c == '\r') {
+                    if (inNumber) {
+                        if (size == parsed.length) {
+                            parsed = Arrays.copyOf(parsed, 2 * size);
+                        }
+                        parsed[size++] = value;
+                        value = 0;
+                        inNumber = false;
+                        nucleotide++;
+                    }
+                    if (c == ':') continue;
+                    // end of site, empty sites are skipped
+                    if (nucleotide > 0) {
+                        if (nucleotide != NUCLEOTIDES) {
+                            throw new IllegalArgumentException("Expected " + NUCLEOTIDES + " read counts at taxon " + ntaxa + " site " + site + " but got " + nucleotide);
+                        }
+                        nucleotide = 0;
+                        site++;
+                    }
+                    // end of row, empty rows are skipped
+                    if (c != ',' && site > 0) {
+                        if (ntaxa == 0) {
+                            nchar = site;
+                        } else if (site != nchar) {
+                            throw new IllegalArgumentException("Expected " + nchar + " sites at taxon " + ntaxa + " but got " + site);
+                        }
+                        ntaxa++;
+                        site = 0;
+                    }
+                } else if (!Character.isWhitespace(c)) {
+                    throw new IllegalArgumentException("Unexpected character '" + c + "' in read counts at taxon " + ntaxa);
+                }
             }
         }
-        return trimmed;
+        data = size == parsed.length ? parsed : Arrays.copyOf(parsed, size);
+    }
+
+    /**
+     * Memory-map a file in the binary format, see ReadCountBinaryWriter in phylonco-lphy.
+     * The counts are not parsed or copied, so they load in constant time and
+     * the page cache is shared by all processes mapping the same file.
+     * @return taxa names and site indices stored in the file
+     */
+    private String[][] mapBinaryFile(FileChannel channel) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Binary read count files larger than 2GB are not supported");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.getInt(); // magic
+        int version = buffer.getInt();
+        if (version != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary read count version " + version);
+        }
+        ntaxa = buffer.getInt();
+        nchar = buffer.getInt();
+        String[] names = new String[ntaxa];
+        for (int i = 0; i < ntaxa; i++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        String[] sites = new String[nchar];
+        for (int j = 0; j < nchar; j++) {
+            sites[j] = Integer.toString(buffer.getInt());
+        }
+        refIndex = new byte[nchar];
+        buffer.get(refIndex);
+        // counts start at the next multiple of 4 bytes
+        buffer.position((buffer.position() + Integer.BYTES - 1) / Integer.BYTES * Integer.BYTES);
+        counts = buffer.slice().asIntBuffer();
+        long size = (long) ntaxa * nchar * NUCLEOTIDES;
+        if (counts.limit() < size) {
+            throw new IllegalArgumentException("Binary read count file is truncated, expected " + size + " counts but found " + counts.limit());
+        }
+        counts.limit((int) size);
+        data = null;
+        return new String[][]{names, sites};
+    }
+
+    // true if the file starts with the binary format magic number
+    private boolean isBinaryFile(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        channel.read(magic, 0);
+        return magic.position() == Integer.BYTES && magic.getInt(0) == BINARY_MAGIC;
     }
 
     @Override
     public void initAndValidate() {
-        int taxaIndex = 0;
-        if (readCountStrInput.get() != null) {
-            // getValue from readCountStrInput
-            String readCountStr = readCountStrInput.get();
-            // data format A,C,G,T; A,C,G,T;
-            /**
-             * 1:0:0:11,0:17:0:12
-             * 7:0:0:26,0:12:0:8
-             */
-            ArrayList<String> cellArray;
-            ArrayList<String> siteArray;
-            String[] cells = readCountStr.split(newline);
-            cellArray = getTrimmed(cells);
-
-            // set nchar and ntaxa
-            this.ntaxa = cellArray.size();
-            this.nchar = cellArray.get(0).split(semicolon).length;
-            data = new int[ntaxa][nchar][4];
-
-
-            for (String cell : cellArray) {
-                String[] sites = cell.split(semicolon);
-                siteArray = getTrimmed(sites);
-                // deal with spaces and new lines using trimmed method
-                int siteIndex = 0;
-                for (String site : siteArray) {
-                    String[] nucleotideCounts = site.split(comma);
-                    // convert counts to int[]
-                    int[] counts = new int[nucleotideCounts.length];
-                    for (int i = 0; i < nucleotideCounts.length; i++) {
-                        counts[i] = Integer.parseInt(nucleotideCounts[i]);
+        String[][] binaryNames = null;
+        try {
+            if (readCountStrInput.get() != null) {
+                // getValue from readCountStrInput
+                String readCountStr = readCountStrInput.get();
+                // every count takes at least two characters
+                parseReadCounts(new StringReader(readCountStr), readCountStr.length() / 2 + 1);
+            } else if (fileInput.get() != null) {
+                Path file = Path.of(fileInput.get());
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (isBinaryFile(channel)) {
+                        binaryNames = mapBinaryFile(channel);
+                    }
+                }
+                if (binaryNames == null) {
+                    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+                        parseReadCounts(reader, (int) Math.min(Files.size(file) / 2 + 1, Integer.MAX_VALUE - 8));
                     }
-                    // fill in counts
-                    setReadCounts(taxaIndex, siteIndex, counts);
-                    siteIndex++;
                 }
-                taxaIndex++;
             }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read read counts from " + fileInput.get() + ": " + e.getMessage(), e);
+        }
+        if (data != null) {
+            counts = IntBuffer.wrap(data);
         }
 
         if (taxaNamesInput.get() != null) {
@@ -146,6 +311,11 @@ public class ReadCount extends BEASTObject {
             for (int i = 0; i < taxaNames.length; i++) {
                 taxaNamesMap.put(taxaNames[i], i);
             }
+        } else if (binaryNames != null) {
+            taxaNames = binaryNames[0];
+            for (int i = 0; i < taxaNames.length; i++) {
+                taxaNamesMap.put(taxaNames[i], i);
+            }
         } else {
             taxaNames = new String[ntaxa];
             for (int i = 0; i < ntaxa; i++) {
@@ -160,6 +330,11 @@ public class ReadCount extends BEASTObject {
             for (int i = 0; i < sitesIndex.length; i++) {
                 sitesIndexMap.put(sitesIndex[i], i);
             }
+        } else if (binaryNames != null) {
+            sitesIndex = binaryNames[1];
+            for (int i = 0; i < sitesIndex.length; i++) {
+                sitesIndexMap.put(sitesIndex[i], i);
+            }
         } else {
             sitesIndex = new String[nchar];
             for (int i = 0; i < sitesIndex.length; i++) {
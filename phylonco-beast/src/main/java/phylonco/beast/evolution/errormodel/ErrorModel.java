@@ -16,6 +16,7 @@ public abstract class ErrorModel extends CalculationNode {
     protected double[][] storedErrorMatrix;
 
     protected boolean updateMatrix = true;
+    protected boolean storedUpdateMatrix = true;
 
     /**
      * initialises error model and performs input checking
@@ -46,6 +47,19 @@ public abstract class ErrorModel extends CalculationNode {
      */
     public abstract double[] getProbabilities(int observedState);
 
+    /**
+     * returns the error matrix, rows are observed states and columns are true states
+     * the returned rows are owned by the error model and must not be modified
+     * @return conditional probabilities of each observed state given each true state
+     */
+    public double[][] getErrorMatrix() {
+        if (updateMatrix) {
+            setupErrorMatrix();
+            updateMatrix = false;
+        }
+        return errorMatrix;
+    }
+
     /**
      * checks whether the error model can handle the input datatype
      * @param datatype the alignment datatype
@@ -106,7 +120,16 @@ public abstract class ErrorModel extends CalculationNode {
      */
     @Override
     public void store() {
-        storedErrorMatrix = errorMatrix;
+        // the error matrix is updated in place, so keep a copy of its values
+        if (errorMatrix != null) {
+            if (storedErrorMatrix == null || storedErrorMatrix == errorMatrix) {
+                storedErrorMatrix = new double[errorMatrix.length][errorMatrix[0].length];
+            }
+            for (int i = 0; i < errorMatrix.length; i++) {
+                System.arraycopy(errorMatrix[i], 0, storedErrorMatrix[i], 0, errorMatrix[i].length);
+            }
+        }
+        storedUpdateMatrix = updateMatrix;
         super.store();
     }
 
@@ -115,7 +138,10 @@ public abstract class ErrorModel extends CalculationNode {
      */
     @Override
     public void restore() {
+        double[][] tmp = errorMatrix;
         errorMatrix = storedErrorMatrix;
+        storedErrorMatrix = tmp;
+        updateMatrix = storedUpdateMatrix;
         super.restore();
     }
     @Override
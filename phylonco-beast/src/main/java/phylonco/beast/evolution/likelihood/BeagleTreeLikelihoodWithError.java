@@ -52,6 +52,11 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     private static final int RESCALE_FREQUENCY = 10000;
     private static final int RESCALE_TIMES = 1;
+    // rescaling schemes timed by the scaling benchmark
+    private static final PartialsRescalingScheme[] BENCHMARK_SCHEMES = {
+            PartialsRescalingScheme.DYNAMIC, PartialsRescalingScheme.ALWAYS, PartialsRescalingScheme.DELAYED};
+    // order the schemes are timed in, the second pass is reversed so warm up of the JIT does not favour later schemes
+    private static final int[] BENCHMARK_ORDER = {0, 1, 2, 2, 1, 0};
 
     boolean m_bUseAmbiguities, m_bUseTipLikelihoods;
     int m_nStateCount;
@@ -68,6 +73,10 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     final public Input<Boolean> useTipsEmpiricalInput = new Input<>("useTipsEmpirical", "use tip ambiguities from data", false);
 
+    final public Input<Integer> scalingBenchmarkInput = new Input<>("scalingBenchmark",
+            "number of evaluations to time each of the dynamic, always and delayed rescaling schemes in each of two passes, " +
+            "after which the fastest scheme that never underflowed with rescaling on is kept (default 0, no benchmark)", 0);
+
     protected ErrorModel errorModel;
 
     protected boolean useTipsEmpirical;
@@ -313,6 +322,17 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         Log.warning.println("  With " + patternCount + " unique site patterns.");
 
         Node [] nodes = treeInput.get().getNodesAsArray();
+        tipPartials = new double[patternCount * m_nStateCount * categoryCount];
+        if (errorModel != null) {
+            // tip partials are rows of the error matrix indexed by the observed code
+            tipCodes = new int[tipCount][patternCount];
+            for (int i = 0; i < tipCount; i++) {
+                int taxon = getTaxonIndex(nodes[i].getID(), dataInput.get());
+                for (int j = 0; j < patternCount; j++) {
+                    tipCodes[i][j] = dataInput.get().getPattern(taxon, j);
+                }
+            }
+        }
         for (int i = 0; i < tipCount; i++) {
             int taxon = getTaxonIndex(nodes[i].getID(), dataInput.get());
             if (m_bUseAmbiguities || m_bUseTipLikelihoods || useTipsEmpirical || errorModel != null) {
@@ -346,6 +366,10 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
         }
 
+        if (scalingBenchmarkInput.get() > 0 && !useAutoScaling && this.rescalingScheme != PartialsRescalingScheme.NONE) {
+            startBenchmark(scalingBenchmarkInput.get());
+        }
+
         updateErrorModel = true;
         updateSubstitutionModel = true;
         updateSiteModel = true;
@@ -402,6 +426,121 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
     }
 
 
+    /**
+     * Switches the rescaling scheme, the next evaluations recalculate all partials
+     * until one of them is accepted so no partials or scale factors of the previous scheme are used.
+     * Dynamic and delayed rescaling start without scale factors again, as after initialisation.
+     */
+    private void setRescalingScheme(PartialsRescalingScheme scheme) {
+        rescalingScheme = scheme;
+        useScaleFactors = false;
+        everUnderflowed = false;
+        rescalingCount = 0;
+        rescalingCountInner = 0;
+        forceFullRecalculation = true;
+    }
+
+    /**
+     * Starts timing each rescaling scheme over the given number of evaluations.
+     */
+    void startBenchmark(int evaluations) {
+        benchmarkEvaluations = evaluations;
+        benchmarkTimes = new long[BENCHMARK_SCHEMES.length];
+        benchmarkUnsafe = new boolean[BENCHMARK_SCHEMES.length];
+        benchmarkCount = 0;
+        benchmarkStep = 0;
+        setRescalingScheme(BENCHMARK_SCHEMES[BENCHMARK_ORDER[benchmarkStep]]);
+        Log.warning.println("  Benchmarking rescaling schemes over " + benchmarkEvaluations + " evaluations each");
+    }
+
+    /**
+     * Adds an evaluation to the benchmark of the current scheme,
+     * and moves to the next scheme once the current one has been timed often enough.
+     * Evaluations that recalculate all partials after a switch are not timed.
+     * A scheme is marked as unsafe if an evaluation underflowed while scale factors were already in use,
+     * or ended with a likelihood that is not finite. The first underflow of dynamic and delayed rescaling,
+     * which switches scaling on and is recovered by the retry, does not count.
+     */
+    void updateBenchmark(long time, boolean timed, boolean unsafe) {
+        int scheme = BENCHMARK_ORDER[benchmarkStep];
+        if (unsafe) {
+            benchmarkUnsafe[scheme] = true;
+        }
+        if (timed) {
+            benchmarkTimes[scheme] += time;
+            benchmarkCount++;
+        }
+        if (benchmarkCount < benchmarkEvaluations) {
+            return;
+        }
+        benchmarkCount = 0;
+        benchmarkStep++;
+        if (benchmarkStep < BENCHMARK_ORDER.length) {
+            if (BENCHMARK_ORDER[benchmarkStep] != scheme) {
+                setRescalingScheme(BENCHMARK_SCHEMES[BENCHMARK_ORDER[benchmarkStep]]);
+            }
+            return;
+        }
+        // keep the fastest safe scheme, or the fastest one if none of them is safe
+        int best = -1;
+        for (int i = 0; i < BENCHMARK_SCHEMES.length; i++) {
+            if (!benchmarkUnsafe[i] && (best < 0 || benchmarkTimes[i] < benchmarkTimes[best])) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            best = 0;
+            for (int i = 1; i < BENCHMARK_SCHEMES.length; i++) {
+                if (benchmarkTimes[i] < benchmarkTimes[best]) {
+                    best = i;
+                }
+            }
+        }
+        for (int i = 0; i < BENCHMARK_SCHEMES.length; i++) {
+            Log.info.println("  Rescaling scheme " + BENCHMARK_SCHEMES[i].getText() + ": " +
+                    (benchmarkTimes[i] / (2 * benchmarkEvaluations) / 1000) + " us per evaluation" +
+                    (benchmarkUnsafe[i] ? ", underflow with rescaling" : ""));
+        }
+        Log.warning.println("  Using rescaling scheme : " + BENCHMARK_SCHEMES[best].getText());
+        benchmarkStep = -1;
+        setRescalingScheme(BENCHMARK_SCHEMES[best]);
+    }
+
+    /**
+     * @return the rescaling scheme in use, or being benchmarked
+     */
+    public PartialsRescalingScheme getRescalingScheme() {
+        return rescalingScheme;
+    }
+
+    /**
+     * @return number of evaluations where the likelihood under- or overflowed before rescaling
+     */
+    public long getUnderflowCount() {
+        return underflowCount;
+    }
+
+    /**
+     * @return number of evaluations that recomputed the scale factors
+     */
+    public long getRescaleCount() {
+        return rescaleCount;
+    }
+
+    /**
+     * @return number of calls to updatePartials
+     */
+    public long getUpdatePartialsCount() {
+        return updatePartialsCount;
+    }
+
+    /**
+     * @return mean time per call to updatePartials in nanoseconds
+     */
+    public double getMeanUpdatePartialsTime() {
+        return updatePartialsCount == 0 ? 0.0 : (double) updatePartialsTime / updatePartialsCount;
+    }
+
     protected int getScaleBufferCount() {
         return internalNodeCount + 1;
     }
@@ -411,26 +550,26 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      *
      * @param beagle        beagle
      * @param nodeIndex     nodeIndex
-     * @param taxon the taxon
+     * @param taxon the taxon, not used with an error model
      * @param flip whether to flip partial buffer index
      */
     protected final void setPartials(Beagle beagle,
                                      int nodeIndex, int taxon, boolean flip) {
         Alignment data = dataInput.get();
 
-        double[] partials = new double[patternCount * m_nStateCount * categoryCount];
+        double[] partials = tipPartials;
 
         int v = 0;
-        for (int i = 0; i < patternCount; i++) {
-            double[] tipProbabilities;
-            if (errorModel != null) {
-                int stateIndex = data.getPattern(taxon, i);
-                tipProbabilities = errorModel.getProbabilities(stateIndex);
-                for (int state = 0; state < m_nStateCount; state++) {
-                    partials[v++] = tipProbabilities[state];
-                }
-            } else {
-                tipProbabilities = data.getTipLikelihoods(taxon, i);
+        if (errorModel != null) {
+            double[][] errorMatrix = errorModel.getErrorMatrix();
+            int[] codes = tipCodes[nodeIndex];
+            for (int i = 0; i < patternCount; i++) {
+                System.arraycopy(errorMatrix[codes[i]], 0, partials, v, m_nStateCount);
+                v += m_nStateCount;
+            }
+        } else {
+            for (int i = 0; i < patternCount; i++) {
+                double[] tipProbabilities = data.getTipLikelihoods(taxon, i);
                 if (tipProbabilities != null) {
                     for (int state = 0; state < m_nStateCount; state++) {
                         partials[v++] = tipProbabilities[state];
@@ -550,11 +689,8 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
     public boolean requiresRecalculation() {
         hasDirt = Tree.IS_CLEAN;
 
-        if (errorModel != null && errorModel.isDirtyCalculation()) {
-            updateErrorModel = true;
-            hasDirt = Tree.IS_DIRTY;
-            return true;
-        }
+        // the error model only changes tip partials, transition matrices are kept
+        updateErrorModel = errorModel != null && errorModel.isDirtyCalculation();
 
         double[] categoryRates = m_siteModel.getCategoryRates(null);
         if (getConstantPattern() != null) {
@@ -592,7 +728,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             return true;
         }
 
-        return treeInput.get().somethingIsDirty();
+        return updateErrorModel || treeInput.get().somethingIsDirty();
     }
 
     /**
@@ -614,6 +750,12 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         System.arraycopy(m_branchLengths, 0, storedBranchLengths, 0, m_branchLengths.length);
     }
 
+    @Override
+    protected void accept() {
+        forceFullRecalculation = false;
+        super.accept();
+    }
+
     @Override
     public void restore() {
         updateSiteModel = true; // this is required to upload the categoryRates to BEAGLE after the restore
@@ -690,6 +832,13 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             operationCount = new int[1];
         }
 
+        long evaluationStart = System.nanoTime();
+        boolean underflowedWithScaling = false;
+        boolean timed = !forceFullRecalculation;
+        if (forceFullRecalculation) {
+            hasDirt = Tree.IS_FILTHY;
+        }
+
         recomputeScaleFactors = false;
 
         if (this.rescalingScheme == PartialsRescalingScheme.ALWAYS) {
@@ -705,7 +854,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
             rescalingCountInner++;
             rescalingCount++;
-            if (rescalingCount > RESCALE_FREQUENCY) {
+            if (rescalingCount > rescalingFrequency) {
                 rescalingCount = 0;
                 rescalingCountInner = 0;
             }
@@ -726,10 +875,6 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
         final Node root = treeInput.get().getRoot();
         traverse(root, null, true);
 
-        if (updateErrorModel) {
-            updateErrorModel = false;
-        }
-
         if (updateSubstitutionModel) {
             setUpSubstModel();
         }
@@ -783,7 +928,10 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
         do {
 
+            long updateStart = System.nanoTime();
             beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
+            updatePartialsTime += System.nanoTime() - updateStart;
+            updatePartialsCount++;
 
             int rootIndex = partialBufferHelper.getOffsetIndex(root.getNr());
 
@@ -804,6 +952,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             if (useScaleFactors) {
 
                 if (recomputeScaleFactors) {
+                    rescaleCount++;
                     scaleBufferHelper.flipOffset(internalNodeCount);
                     cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
                     beagle.resetScaleFactors(cumulateScaleBufferIndex);
@@ -863,7 +1012,9 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
             }
 
             if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+                underflowCount++;
                 everUnderflowed = true;
+                underflowedWithScaling |= useScaleFactors;
                 logL = Double.NEGATIVE_INFINITY;
 
                 if (firstRescaleAttempt && (rescalingScheme == PartialsRescalingScheme.DYNAMIC || rescalingScheme == PartialsRescalingScheme.DELAYED)) {
@@ -905,10 +1056,16 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 //            updateNode[i] = false;
 //        }
 
+        updateErrorModel = false;
         updateSubstitutionModel = false;
         updateSiteModel = false;
         //********************************************************************
 
+        if (benchmarkStep >= 0) {
+            updateBenchmark(System.nanoTime() - evaluationStart, timed,
+                    underflowedWithScaling || Double.isNaN(logL) || Double.isInfinite(logL));
+        }
+
         logP = logL;
         return logL;
     }
@@ -1067,8 +1224,9 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
                 partialBufferHelper.flipOffset(nodeNum);
             }
 
-            int taxon = getTaxonIndex(node.getID(), dataInput.get());
-            setPartials(beagle, nodeNum, taxon, false);
+            // tip partials with an error model only depend on the tip codes
+            setPartials(beagle, nodeNum, -1, false);
+            update |= Tree.IS_DIRTY;
         }
 
         return update;
@@ -1111,6 +1269,20 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
     private boolean everUnderflowed = false;
     private int rescalingCount = 0;
     private int rescalingCountInner = 0;
+    // recalculate all partials until an evaluation is accepted, used after switching the rescaling scheme
+    private boolean forceFullRecalculation = false;
+
+    private int benchmarkEvaluations;
+    // position in BENCHMARK_ORDER, -1 if not benchmarking
+    private int benchmarkStep = -1;
+    private int benchmarkCount;
+    private long[] benchmarkTimes;
+    private boolean[] benchmarkUnsafe;
+
+    private long underflowCount = 0;
+    private long rescaleCount = 0;
+    private long updatePartialsCount = 0;
+    private long updatePartialsTime = 0;
 
 
     /**
@@ -1118,6 +1290,11 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
      */
     protected int categoryCount;
 
+    /**
+     * observed codes for each tip and pattern, used to index rows of the error matrix
+     */
+    protected int[][] tipCodes;
+
     /**
      * an array used to transfer tip partials
      */
@@ -1153,7 +1330,7 @@ public class BeagleTreeLikelihoodWithError extends TreeLikelihood {
 
     private boolean ascertainedSitePatterns = false;
 
-    public class BufferIndexHelper {
+    public static class BufferIndexHelper {
         /**
          * @param maxIndexValue the number of possible input values for the index
          * @param minIndexValue the minimum index value to have the mirrored buffers
@@ -0,0 +1,269 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+/**
+ * Likelihood core for error models where tips are stored as observed codes.
+ * Tip partials are rows of a shared error matrix (rows are observed codes, columns are true states),
+ * so instead of dense tip partials the core keeps one code per pattern for each tip.
+ * For a tip branch the transition matrix is multiplied by the error rows of the codes
+ * observed at that tip once, and patterns look up the product by code.
+ */
+public class ErrorLikelihoodCore extends BeerLikelihoodCore {
+
+    protected int nrOfCodes;
+
+    // error matrix flattened as [code * nrOfStates + trueState], double buffered for store and restore
+    protected double[][] errorMatrices;
+    protected int currentErrorIndex;
+    protected int storedErrorIndex;
+
+    // distinct codes observed at each tip
+    protected int[][] tipCodes;
+
+    // products of transition matrices and error rows, [(matrix * nrOfCodes + code) * nrOfStates + state]
+    protected double[] codeTable1;
+    protected double[] codeTable2;
+
+    public ErrorLikelihoodCore(int nrOfStates, int nrOfCodes) {
+        super(nrOfStates);
+        this.nrOfCodes = nrOfCodes;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        errorMatrices = new double[2][nrOfCodes * nrOfStates];
+        currentErrorIndex = 0;
+        storedErrorIndex = 0;
+        tipCodes = new int[nodeCount][];
+        codeTable1 = new double[matrixCount * nrOfCodes * nrOfStates];
+        codeTable2 = new double[matrixCount * nrOfCodes * nrOfStates];
+    }
+
+    /**
+     * Sets the observed codes for a tip, codes index rows of the error matrix
+     */
+    @Override
+    public void setNodeStates(int nodeIndex, int[] states) {
+        super.setNodeStates(nodeIndex, states);
+        boolean[] observed = new boolean[nrOfCodes];
+        int count = 0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int code = states[k];
+            if (code < 0 || code >= nrOfCodes) {
+                throw new IllegalArgumentException("Observed code " + code + " has no row in the error matrix");
+            }
+            if (!observed[code]) {
+                observed[code] = true;
+                count++;
+            }
+        }
+        int[] codes = new int[count];
+        for (int code = 0, i = 0; code < nrOfCodes; code++) {
+            if (observed[code]) {
+                codes[i++] = code;
+            }
+        }
+        tipCodes[nodeIndex] = codes;
+    }
+
+    /**
+     * Copies the error matrix into the core, the previous error matrix is kept for restore
+     * @param errorMatrix conditional probabilities of observed codes (rows) given true states (columns)
+     */
+    public void setErrorMatrix(double[][] errorMatrix) {
+        if (currentErrorIndex == storedErrorIndex) {
+            currentErrorIndex = 1 - currentErrorIndex;
+        }
+        double[] matrix = errorMatrices[currentErrorIndex];
+        for (int code = 0; code < nrOfCodes; code++) {
+            System.arraycopy(errorMatrix[code], 0, matrix, code * nrOfStates, nrOfStates);
+        }
+    }
+
+    /**
+     * Multiplies the transition matrices of a tip branch by the error rows of the codes observed at the tip.
+     */
+    protected void calculateCodeTable(int[] codes, double[] matrices, double[] codeTable) {
+        double[] errorMatrix = errorMatrices[currentErrorIndex];
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w0 = l * matrixSize;
+            for (int code : codes) {
+                int e = code * nrOfStates;
+                int u = (l * nrOfCodes + code) * nrOfStates;
+                int w = w0;
+                for (int i = 0; i < nrOfStates; i++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < nrOfStates; j++) {
+                        sum += matrices[w] * errorMatrix[e + j];
+                        w++;
+                    }
+                    codeTable[u + i] = sum;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        if (states[nodeIndex1] == null && states[nodeIndex2] == null) {
+            super.calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3);
+            return;
+        }
+        if (states[nodeIndex1] == null) {
+            // tip is always the first child
+            int tmp = nodeIndex1;
+            nodeIndex1 = nodeIndex2;
+            nodeIndex2 = tmp;
+        }
+        calculateCodeTable(tipCodes[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1], codeTable1);
+        double[] partials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        if (states[nodeIndex2] != null) {
+            calculateCodeTable(tipCodes[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2], codeTable2);
+            calculateCodesCodesPruning(states[nodeIndex1], codeTable1, states[nodeIndex2], codeTable2, partials3);
+        } else {
+            calculateCodesPartialsPruning(states[nodeIndex1], codeTable1,
+                    partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                    partials3);
+        }
+        if (useScaling) {
+            scalePartials(nodeIndex3);
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when each pattern uses the transition matrix given by matrixMap,
+     * instead of integrating across categories.
+     */
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+        if (states[nodeIndex1] == null && states[nodeIndex2] == null) {
+            super.calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, matrixMap);
+            return;
+        }
+        if (states[nodeIndex1] == null) {
+            // tip is always the first child
+            int tmp = nodeIndex1;
+            nodeIndex1 = nodeIndex2;
+            nodeIndex2 = tmp;
+        }
+        calculateCodeTable(tipCodes[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1], codeTable1);
+        double[] partials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        if (states[nodeIndex2] != null) {
+            calculateCodeTable(tipCodes[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2], codeTable2);
+            calculateCodesCodesPruning(states[nodeIndex1], codeTable1, states[nodeIndex2], codeTable2, partials3, matrixMap);
+        } else {
+            calculateCodesPartialsPruning(states[nodeIndex1], codeTable1,
+                    partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                    partials3, matrixMap);
+        }
+        if (useScaling) {
+            scalePartials(nodeIndex3);
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children are tips.
+     */
+    protected void calculateCodesCodesPruning(int[] codes1, double[] codeTable1,
+                                              int[] codes2, double[] codeTable2,
+                                              double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int u1 = (l * nrOfCodes + codes1[k]) * nrOfStates;
+                int u2 = (l * nrOfCodes + codes2[k]) * nrOfStates;
+                for (int i = 0; i < nrOfStates; i++) {
+                    partials3[v] = codeTable1[u1 + i] * codeTable2[u2 + i];
+                    v++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child is a tip and one has partials.
+     */
+    protected void calculateCodesPartialsPruning(int[] codes1, double[] codeTable1,
+                                                 double[] partials2, double[] matrices2,
+                                                 double[] partials3) {
+        int u = 0;
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int u1 = (l * nrOfCodes + codes1[k]) * nrOfStates;
+                int w = l * matrixSize;
+                for (int i = 0; i < nrOfStates; i++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < nrOfStates; j++) {
+                        sum += matrices2[w] * partials2[v + j];
+                        w++;
+                    }
+                    partials3[u] = codeTable1[u1 + i] * sum;
+                    u++;
+                }
+                v += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children are tips, using the matrix of each pattern.
+     */
+    protected void calculateCodesCodesPruning(int[] codes1, double[] codeTable1,
+                                              int[] codes2, double[] codeTable2,
+                                              double[] partials3, int[] matrixMap) {
+        int v = 0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int l = matrixMap[k];
+            int u1 = (l * nrOfCodes + codes1[k]) * nrOfStates;
+            int u2 = (l * nrOfCodes + codes2[k]) * nrOfStates;
+            for (int i = 0; i < nrOfStates; i++) {
+                partials3[v] = codeTable1[u1 + i] * codeTable2[u2 + i];
+                v++;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child is a tip and one has partials,
+     * using the matrix of each pattern.
+     */
+    protected void calculateCodesPartialsPruning(int[] codes1, double[] codeTable1,
+                                                 double[] partials2, double[] matrices2,
+                                                 double[] partials3, int[] matrixMap) {
+        int u = 0;
+        int v = 0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int l = matrixMap[k];
+            int u1 = (l * nrOfCodes + codes1[k]) * nrOfStates;
+            int w = l * matrixSize;
+            for (int i = 0; i < nrOfStates; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < nrOfStates; j++) {
+                    sum += matrices2[w] * partials2[v + j];
+                    w++;
+                }
+                partials3[u] = codeTable1[u1 + i] * sum;
+                u++;
+            }
+            v += nrOfStates;
+        }
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        storedErrorIndex = currentErrorIndex;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        int tmp = currentErrorIndex;
+        currentErrorIndex = storedErrorIndex;
+        storedErrorIndex = tmp;
+    }
+
+}
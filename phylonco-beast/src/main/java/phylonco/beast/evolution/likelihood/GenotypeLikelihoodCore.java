@@ -0,0 +1,120 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+/**
+ * Likelihood core for genotype models with many states such as GT10 and GT16.
+ * The matrix times partials products are unrolled over blocks of four rows of the transition matrix,
+ * so each block keeps four independent sums for each child instead of one dependent sum per row.
+ * Each sum adds up the same terms in the same order as BeerLikelihoodCore.
+ */
+public class GenotypeLikelihoodCore extends BeerLikelihoodCore {
+
+    public GenotypeLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has partials.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        final int n = nrOfStates;
+        final int blocks = n & ~3;
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w0 = l * matrixSize;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                final int state1 = stateIndex1[k];
+                final boolean known = state1 < n;
+                int w = w0;
+                int i = 0;
+                for (; i < blocks; i += 4) {
+                    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        double p2 = partials2[u + j];
+                        s0 += matrices2[w + j] * p2;
+                        s1 += matrices2[w + n + j] * p2;
+                        s2 += matrices2[w + 2 * n + j] * p2;
+                        s3 += matrices2[w + 3 * n + j] * p2;
+                    }
+                    if (known) {
+                        partials3[u + i] = matrices1[w + state1] * s0;
+                        partials3[u + i + 1] = matrices1[w + n + state1] * s1;
+                        partials3[u + i + 2] = matrices1[w + 2 * n + state1] * s2;
+                        partials3[u + i + 3] = matrices1[w + 3 * n + state1] * s3;
+                    } else {
+                        // child 1 has a gap or unknown state so don't use it
+                        partials3[u + i] = s0;
+                        partials3[u + i + 1] = s1;
+                        partials3[u + i + 2] = s2;
+                        partials3[u + i + 3] = s3;
+                    }
+                    w += 4 * n;
+                }
+                for (; i < n; i++) {
+                    double s = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        s += matrices2[w + j] * partials2[u + j];
+                    }
+                    partials3[u + i] = known ? matrices1[w + state1] * s : s;
+                    w += n;
+                }
+                u += n;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        final int n = nrOfStates;
+        final int blocks = n & ~3;
+        int u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w0 = l * matrixSize;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int w = w0;
+                int i = 0;
+                for (; i < blocks; i += 4) {
+                    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                    double t0 = 0.0, t1 = 0.0, t2 = 0.0, t3 = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        double p1 = partials1[u + j];
+                        double p2 = partials2[u + j];
+                        s0 += matrices1[w + j] * p1;
+                        s1 += matrices1[w + n + j] * p1;
+                        s2 += matrices1[w + 2 * n + j] * p1;
+                        s3 += matrices1[w + 3 * n + j] * p1;
+                        t0 += matrices2[w + j] * p2;
+                        t1 += matrices2[w + n + j] * p2;
+                        t2 += matrices2[w + 2 * n + j] * p2;
+                        t3 += matrices2[w + 3 * n + j] * p2;
+                    }
+                    partials3[u + i] = s0 * t0;
+                    partials3[u + i + 1] = s1 * t1;
+                    partials3[u + i + 2] = s2 * t2;
+                    partials3[u + i + 3] = s3 * t3;
+                    w += 4 * n;
+                }
+                for (; i < n; i++) {
+                    double s = 0.0, t = 0.0;
+                    for (int j = 0; j < n; j++) {
+                        s += matrices1[w + j] * partials1[u + j];
+                        t += matrices2[w + j] * partials2[u + j];
+                    }
+                    partials3[u + i] = s * t;
+                    w += n;
+                }
+                u += n;
+            }
+        }
+    }
+
+}
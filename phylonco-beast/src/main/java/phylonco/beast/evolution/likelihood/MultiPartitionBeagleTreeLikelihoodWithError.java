@@ -0,0 +1,583 @@
+package phylonco.beast.evolution.likelihood;
+
+import beagle.Beagle;
+import beagle.BeagleFactory;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import phylonco.beast.evolution.errormodel.ErrorModel;
+import phylonco.beast.evolution.likelihood.BeagleTreeLikelihoodWithError.BufferIndexHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tree likelihood with error models for several partitions on the same tree.
+ * All partitions share one BEAGLE instance, the site patterns of the partitions are concatenated
+ * and each partition has its own eigen decomposition, category rates, category weights,
+ * state frequencies and transition matrices.
+ * Partials are computed with the BEAGLE partition operations, an internal node that needs updating is
+ * updated for all partitions since partitions share the partials buffer of the node.
+ * Each tip has a partials buffer for each partition, so an error model change only uploads
+ * the tips of its own partition.
+ * If BEAGLE is not available, one TreeLikelihoodWithErrorFast is used for each partition.
+ */
+@Description("Tree likelihood with error models for several partitions sharing one BEAGLE instance")
+public class MultiPartitionBeagleTreeLikelihoodWithError extends Distribution {
+
+    final public Input<List<Alignment>> dataInput = new Input<>("data", "sequence data for each partition", new ArrayList<>(), Input.Validate.REQUIRED);
+    final public Input<List<SiteModel.Base>> siteModelInput = new Input<>("siteModel", "site model for each partition", new ArrayList<>(), Input.Validate.REQUIRED);
+    final public Input<List<ErrorModel>> errorModelInput = new Input<>("errorModel", "error model for each partition", new ArrayList<>(), Input.Validate.REQUIRED);
+    final public Input<TreeInterface> treeInput = new Input<>("tree", "phylogenetic tree shared by all partitions", Input.Validate.REQUIRED);
+    final public Input<BranchRateModel.Base> branchRateModelInput = new Input<>("branchRateModel", "branch rate model shared by all partitions, strict clock if not specified");
+
+    protected int partitionCount;
+    protected List<Alignment> alignments;
+    protected List<SiteModel.Base> siteModels;
+    protected List<SubstitutionModel> substitutionModels;
+    protected List<ErrorModel> errorModels;
+    protected BranchRateModel.Base branchRateModel;
+
+    protected int stateCount;
+    protected int categoryCount;
+    protected int nodeCount;
+    protected int tipCount;
+    protected int internalNodeCount;
+    protected int patternCount;
+
+    // observed codes indexed by partition, tip and pattern within the partition
+    protected int[][][] tipCodes;
+    // first pattern of each partition in the concatenated patterns
+    protected int[] patternOffsets;
+    // transfer array for tip partials, only the patterns of the uploaded partition are read by BEAGLE
+    protected double[] tipPartials;
+
+    protected Beagle beagle;
+    // tip partials indexed by partition * tipCount + tip, followed by the partials of internal nodes
+    protected BufferIndexHelper partialBufferHelper;
+    protected BufferIndexHelper eigenBufferHelper;
+    // one matrix for each partition and node, indexed by partition * nodeCount + node
+    protected BufferIndexHelper matrixBufferHelper;
+
+    protected double[] branchLengths;
+    protected double[] storedBranchLengths;
+
+    protected boolean[] updateErrorModel;
+    protected boolean[] updateSubstitutionModel;
+    protected boolean[] updateSiteModel;
+    protected int hasDirt;
+
+    // rescaling is switched on after the first underflow, from then on every evaluation is a full recalculation
+    protected boolean useScaleFactors = false;
+    protected int[] scaleBufferIndices;
+
+    private int[] eigenIndices;
+    private int[] categoryRateIndices;
+    private int[] probabilityIndices;
+    private double[] edgeLengths;
+    private int matrixUpdateCount;
+
+    private int[] operations;
+    private int operationCount;
+
+    private int[] rootIndices;
+    private int[] partitionIndices;
+    private int[] cumulativeScaleIndices;
+    private double[] partitionLogLikelihoods;
+    private final double[] sumLogLikelihood = new double[1];
+
+    // java likelihood for each partition when BEAGLE is not available,
+    // these are not inputs so the state does not track them and calls are passed on from this likelihood
+    protected List<TreeLikelihoodWithErrorFast> javaLikelihoods;
+
+    @Override
+    public void initAndValidate() {
+        alignments = dataInput.get();
+        siteModels = siteModelInput.get();
+        errorModels = errorModelInput.get();
+        partitionCount = alignments.size();
+        if (siteModels.size() != partitionCount || errorModels.size() != partitionCount) {
+            throw new IllegalArgumentException("Expected one site model and one error model for each of the " +
+                    partitionCount + " partitions, but got " + siteModels.size() + " site models and " +
+                    errorModels.size() + " error models");
+        }
+        branchRateModel = branchRateModelInput.get();
+        if (branchRateModel == null) {
+            branchRateModel = new StrictClockModel();
+        }
+
+        stateCount = alignments.get(0).getMaxStateCount();
+        categoryCount = siteModels.get(0).getCategoryCount();
+        substitutionModels = new ArrayList<>();
+        for (int k = 0; k < partitionCount; k++) {
+            if (alignments.get(k).getMaxStateCount() != stateCount) {
+                throw new IllegalArgumentException("All partitions must have the same number of states");
+            }
+            if (siteModels.get(k).getCategoryCount() != categoryCount) {
+                throw new IllegalArgumentException("All partitions must have the same number of rate categories");
+            }
+            siteModels.get(k).setDataType(alignments.get(k).getDataType());
+            substitutionModels.add(siteModels.get(k).substModelInput.get());
+        }
+
+        updateErrorModel = new boolean[partitionCount];
+        updateSubstitutionModel = new boolean[partitionCount];
+        updateSiteModel = new boolean[partitionCount];
+
+        if (!initializeBeagle()) {
+            Log.warning.println("  BEAGLE not available, using one TreeLikelihoodWithErrorFast for each partition");
+            javaLikelihoods = new ArrayList<>();
+            for (int k = 0; k < partitionCount; k++) {
+                TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+                likelihood.initByName(
+                        "data", alignments.get(k),
+                        "tree", treeInput.get(),
+                        "siteModel", siteModels.get(k),
+                        "branchRateModel", branchRateModel,
+                        "useAmbiguities", true,
+                        "useTipLikelihoods", true,
+                        "errorModel", errorModels.get(k));
+                javaLikelihoods.add(likelihood);
+            }
+        }
+    }
+
+    private boolean initializeBeagle() {
+        TreeInterface tree = treeInput.get();
+        nodeCount = tree.getNodeCount();
+        tipCount = tree.getLeafNodeCount();
+        internalNodeCount = nodeCount - tipCount;
+
+        patternCount = 0;
+        for (Alignment data : alignments) {
+            patternCount += data.getPatternCount();
+        }
+
+        partialBufferHelper = new BufferIndexHelper(partitionCount * tipCount + internalNodeCount, 0);
+        eigenBufferHelper = new BufferIndexHelper(partitionCount, 0);
+        matrixBufferHelper = new BufferIndexHelper(nodeCount * partitionCount, 0);
+
+        long requirementFlags = 0;
+        for (SubstitutionModel substitutionModel : substitutionModels) {
+            if (substitutionModel.canReturnComplexDiagonalization()) {
+                requirementFlags |= BeagleFlag.EIGEN_COMPLEX.getMask();
+            }
+        }
+        try {
+            beagle = BeagleFactory.loadBeagleInstance(
+                    tipCount,
+                    partialBufferHelper.getBufferCount(),
+                    0,
+                    stateCount,
+                    patternCount,
+                    eigenBufferHelper.getBufferCount(),
+                    matrixBufferHelper.getBufferCount(),
+                    categoryCount,
+                    internalNodeCount + 1,
+                    null,
+                    0,
+                    requirementFlags
+            );
+        } catch (Throwable e) {
+            beagle = null;
+        }
+        if (beagle == null) {
+            return false;
+        }
+        InstanceDetails instanceDetails = beagle.getDetails();
+        if (instanceDetails == null) {
+            beagle = null;
+            return false;
+        }
+
+        int[] patternPartitions = new int[patternCount];
+        double[] patternWeights = new double[patternCount];
+        patternOffsets = new int[partitionCount];
+        tipCodes = new int[partitionCount][tipCount][];
+        Node[] nodes = tree.getNodesAsArray();
+        for (int k = 0, offset = 0; k < partitionCount; k++) {
+            Alignment data = alignments.get(k);
+            int partitionPatterns = data.getPatternCount();
+            patternOffsets[k] = offset;
+            for (int i = 0; i < partitionPatterns; i++) {
+                patternPartitions[offset + i] = k;
+                patternWeights[offset + i] = data.getPatternWeight(i);
+            }
+            offset += partitionPatterns;
+            for (int i = 0; i < tipCount; i++) {
+                int taxon = getTaxonIndex(nodes[i].getID(), data);
+                int[] codes = new int[partitionPatterns];
+                for (int j = 0; j < partitionPatterns; j++) {
+                    codes[j] = data.getPattern(taxon, j);
+                }
+                tipCodes[k][i] = codes;
+            }
+        }
+        try {
+            beagle.setPatternPartitions(partitionCount, patternPartitions);
+        } catch (UnsupportedOperationException e) {
+            // the java implementation of BEAGLE has no partition operations
+            finalizeBeagle();
+            return false;
+        }
+        Log.info.println("  Using BEAGLE instance with flags: " + instanceDetails.toString());
+        Log.info.println("  " + partitionCount + " partitions with " + patternCount + " unique site patterns in total.");
+        beagle.setPatternWeights(patternWeights);
+
+        tipPartials = new double[patternCount * stateCount * categoryCount];
+        for (int k = 0; k < partitionCount; k++) {
+            for (int i = 0; i < tipCount; i++) {
+                setTipPartials(k, i);
+            }
+        }
+
+        branchLengths = new double[nodeCount];
+        storedBranchLengths = new double[nodeCount];
+        int matrixCount = nodeCount * partitionCount;
+        eigenIndices = new int[matrixCount];
+        categoryRateIndices = new int[matrixCount];
+        probabilityIndices = new int[matrixCount];
+        edgeLengths = new double[matrixCount];
+        operations = new int[internalNodeCount * partitionCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+
+        scaleBufferIndices = new int[internalNodeCount];
+        for (int i = 0; i < internalNodeCount; i++) {
+            scaleBufferIndices[i] = i;
+        }
+        rootIndices = new int[partitionCount];
+        partitionIndices = new int[partitionCount];
+        cumulativeScaleIndices = new int[partitionCount];
+        for (int k = 0; k < partitionCount; k++) {
+            partitionIndices[k] = k;
+        }
+        partitionLogLikelihoods = new double[partitionCount];
+
+        // some substitution models never become dirty, so set up all partitions now
+        for (int k = 0; k < partitionCount; k++) {
+            setUpSubstitutionModel(k);
+            setUpSiteModel(k);
+        }
+        hasDirt = Tree.IS_FILTHY;
+        return true;
+    }
+
+    private int getTaxonIndex(String taxon, Alignment data) {
+        int taxonIndex = data.getTaxonIndex(taxon);
+        if (taxonIndex == -1) {
+            if (taxon.startsWith("'") || taxon.startsWith("\"")) {
+                taxonIndex = data.getTaxonIndex(taxon.substring(1, taxon.length() - 1));
+            }
+            if (taxonIndex == -1) {
+                throw new RuntimeException("Could not find sequence " + taxon + " in the alignment");
+            }
+        }
+        return taxonIndex;
+    }
+
+    /**
+     * returns the partials buffer of a node for a partition, tips have one buffer for each partition
+     */
+    protected int getPartialsIndex(int partition, int nodeNum) {
+        if (nodeNum < tipCount) {
+            return partition * tipCount + nodeNum;
+        }
+        return partitionCount * tipCount + nodeNum - tipCount;
+    }
+
+    /**
+     * uploads the partials of a tip for one partition, built from the error matrix rows of the observed codes
+     */
+    protected void setTipPartials(int partition, int tipIndex) {
+        double[][] errorMatrix = errorModels.get(partition).getErrorMatrix();
+        int[] codes = tipCodes[partition][tipIndex];
+        for (int i = 0; i < categoryCount; i++) {
+            // partials are indexed by category, pattern and state
+            int v = (i * patternCount + patternOffsets[partition]) * stateCount;
+            for (int code : codes) {
+                System.arraycopy(errorMatrix[code], 0, tipPartials, v, stateCount);
+                v += stateCount;
+            }
+        }
+        beagle.setPartials(partialBufferHelper.getOffsetIndex(getPartialsIndex(partition, tipIndex)), tipPartials);
+    }
+
+    protected void setUpSubstitutionModel(int partition) {
+        EigenDecomposition ed = substitutionModels.get(partition).getEigenDecomposition(null);
+        eigenBufferHelper.flipOffset(partition);
+        beagle.setEigenDecomposition(
+                eigenBufferHelper.getOffsetIndex(partition),
+                ed.getEigenVectors(),
+                ed.getInverseEigenVectors(),
+                ed.getEigenValues());
+    }
+
+    protected void setUpSiteModel(int partition) {
+        SiteModel.Base siteModel = siteModels.get(partition);
+        beagle.setCategoryRatesWithIndex(partition, siteModel.getCategoryRates(null));
+        beagle.setCategoryWeights(partition, siteModel.getCategoryProportions(null));
+        beagle.setStateFrequencies(partition, substitutionModels.get(partition).getFrequencies());
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if (beagle == null) {
+            boolean isDirty = false;
+            for (TreeLikelihoodWithErrorFast likelihood : javaLikelihoods) {
+                isDirty |= likelihood.requiresRecalculation();
+            }
+            return isDirty;
+        }
+        hasDirt = Tree.IS_CLEAN;
+        boolean isDirty = false;
+        for (int k = 0; k < partitionCount; k++) {
+            updateErrorModel[k] = errorModels.get(k).isDirtyCalculation();
+            updateSiteModel[k] = siteModels.get(k).isDirtyCalculation();
+            SubstitutionModel substitutionModel = substitutionModels.get(k);
+            if (substitutionModel instanceof CalculationNode) {
+                updateSubstitutionModel[k] = ((CalculationNode) substitutionModel).isDirtyCalculation();
+            }
+            if (alignments.get(k).isDirtyCalculation()) {
+                hasDirt = Tree.IS_FILTHY;
+            }
+            isDirty |= updateErrorModel[k] || updateSiteModel[k] || updateSubstitutionModel[k];
+        }
+        if (branchRateModel.isDirtyCalculation()) {
+            isDirty = true;
+        }
+        return isDirty || hasDirt != Tree.IS_CLEAN || treeInput.get().somethingIsDirty();
+    }
+
+    @Override
+    public double calculateLogP() {
+        if (beagle == null) {
+            logP = 0.0;
+            for (TreeLikelihoodWithErrorFast likelihood : javaLikelihoods) {
+                logP += likelihood.calculateLogP();
+            }
+            return logP;
+        }
+
+        for (int k = 0; k < partitionCount; k++) {
+            if (updateSubstitutionModel[k]) {
+                setUpSubstitutionModel(k);
+            }
+            if (updateSiteModel[k] || updateSubstitutionModel[k]) {
+                setUpSiteModel(k);
+            }
+        }
+        if (useScaleFactors) {
+            hasDirt = Tree.IS_FILTHY;
+        }
+
+        Node root = treeInput.get().getRoot();
+        double logL = calculateLogL(root, true);
+        if ((Double.isNaN(logL) || Double.isInfinite(logL)) && !useScaleFactors) {
+            // underflow, switch on rescaling and recalculate all nodes in the buffers just written
+            useScaleFactors = true;
+            hasDirt = Tree.IS_FILTHY;
+            logL = calculateLogL(root, false);
+        }
+        if (Double.isNaN(logL)) {
+            logL = Double.NEGATIVE_INFINITY;
+        }
+
+        for (int k = 0; k < partitionCount; k++) {
+            updateErrorModel[k] = false;
+            updateSubstitutionModel[k] = false;
+            updateSiteModel[k] = false;
+        }
+        hasDirt = Tree.IS_CLEAN;
+        logP = logL;
+        return logP;
+    }
+
+    private double calculateLogL(Node root, boolean flip) {
+        matrixUpdateCount = 0;
+        operationCount = 0;
+        traverse(root, flip);
+
+        if (matrixUpdateCount > 0) {
+            beagle.updateTransitionMatricesWithMultipleModels(
+                    eigenIndices,
+                    categoryRateIndices,
+                    probabilityIndices,
+                    null,
+                    null,
+                    edgeLengths,
+                    matrixUpdateCount);
+        }
+        beagle.updatePartialsByPartition(operations, operationCount);
+
+        int rootIndex = partialBufferHelper.getOffsetIndex(getPartialsIndex(0, root.getNr()));
+        for (int k = 0; k < partitionCount; k++) {
+            rootIndices[k] = rootIndex;
+            cumulativeScaleIndices[k] = Beagle.NONE;
+            if (useScaleFactors) {
+                cumulativeScaleIndices[k] = internalNodeCount;
+                beagle.resetScaleFactorsByPartition(internalNodeCount, k);
+                beagle.accumulateScaleFactorsByPartition(scaleBufferIndices, internalNodeCount, internalNodeCount, k);
+            }
+        }
+        beagle.calculateRootLogLikelihoodsByPartition(rootIndices, partitionIndices, partitionIndices,
+                cumulativeScaleIndices, partitionIndices, partitionCount, 1, partitionLogLikelihoods, sumLogLikelihood);
+        return sumLogLikelihood[0];
+    }
+
+    private int traverse(Node node, boolean flip) {
+        int nodeNum = node.getNr();
+        int update = node.isDirty() | hasDirt;
+
+        // update the transition matrices of this branch for partitions that need it
+        double branchTime = node.getLength() * branchRateModel.getRateForBranch(node);
+        if (!node.isRoot()) {
+            if (branchTime < 0.0) {
+                throw new RuntimeException("Negative branch length: " + branchTime);
+            }
+            boolean branchChanged = update != Tree.IS_CLEAN || branchTime != branchLengths[nodeNum];
+            branchLengths[nodeNum] = branchTime;
+            for (int k = 0; k < partitionCount; k++) {
+                if (branchChanged || updateSiteModel[k] || updateSubstitutionModel[k]) {
+                    int matrixNum = k * nodeCount + nodeNum;
+                    if (flip) {
+                        matrixBufferHelper.flipOffset(matrixNum);
+                    }
+                    eigenIndices[matrixUpdateCount] = eigenBufferHelper.getOffsetIndex(k);
+                    categoryRateIndices[matrixUpdateCount] = k;
+                    probabilityIndices[matrixUpdateCount] = matrixBufferHelper.getOffsetIndex(matrixNum);
+                    edgeLengths[matrixUpdateCount] = branchTime;
+                    matrixUpdateCount++;
+                    update |= Tree.IS_DIRTY;
+                }
+            }
+        }
+
+        if (node.isLeaf()) {
+            for (int k = 0; k < partitionCount; k++) {
+                if (updateErrorModel[k]) {
+                    if (flip) {
+                        partialBufferHelper.flipOffset(getPartialsIndex(k, nodeNum));
+                    }
+                    setTipPartials(k, nodeNum);
+                    update |= Tree.IS_DIRTY;
+                }
+            }
+            return update;
+        }
+
+        Node child1 = node.getLeft();
+        Node child2 = node.getRight();
+        int update1 = traverse(child1, flip);
+        int update2 = traverse(child2, flip);
+        if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+            int partialsIndex = getPartialsIndex(0, nodeNum);
+            if (flip) {
+                partialBufferHelper.flipOffset(partialsIndex);
+            }
+            int scaleIndex = useScaleFactors ? nodeNum - tipCount : Beagle.NONE;
+            for (int k = 0; k < partitionCount; k++) {
+                int x = operationCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+                operations[x] = partialBufferHelper.getOffsetIndex(partialsIndex);
+                operations[x + 1] = scaleIndex; // write scale factors
+                operations[x + 2] = Beagle.NONE;
+                operations[x + 3] = partialBufferHelper.getOffsetIndex(getPartialsIndex(k, child1.getNr()));
+                operations[x + 4] = matrixBufferHelper.getOffsetIndex(k * nodeCount + child1.getNr());
+                operations[x + 5] = partialBufferHelper.getOffsetIndex(getPartialsIndex(k, child2.getNr()));
+                operations[x + 6] = matrixBufferHelper.getOffsetIndex(k * nodeCount + child2.getNr());
+                operations[x + 7] = k;
+                operations[x + 8] = Beagle.NONE;
+                operationCount++;
+            }
+            update |= (update1 | update2);
+        }
+        return update;
+    }
+
+    private void finalizeBeagle() {
+        try {
+            beagle.finalize();
+        } catch (Throwable e) {
+            Log.warning.println("Failed to finalize BEAGLE instance: " + e.getMessage());
+        }
+        beagle = null;
+    }
+
+    /**
+     * @return log likelihood of each partition from the last calculation
+     */
+    public double[] getPartitionLogLikelihoods() {
+        if (beagle == null) {
+            double[] logL = new double[partitionCount];
+            for (int k = 0; k < partitionCount; k++) {
+                logL[k] = javaLikelihoods.get(k).getCurrentLogP();
+            }
+            return logL;
+        }
+        return partitionLogLikelihoods.clone();
+    }
+
+    @Override
+    public void store() {
+        if (beagle != null) {
+            partialBufferHelper.storeState();
+            eigenBufferHelper.storeState();
+            matrixBufferHelper.storeState();
+            System.arraycopy(branchLengths, 0, storedBranchLengths, 0, nodeCount);
+        } else {
+            for (TreeLikelihoodWithErrorFast likelihood : javaLikelihoods) {
+                likelihood.store();
+            }
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (beagle != null) {
+            partialBufferHelper.restoreState();
+            eigenBufferHelper.restoreState();
+            matrixBufferHelper.restoreState();
+            double[] tmp = branchLengths;
+            branchLengths = storedBranchLengths;
+            storedBranchLengths = tmp;
+            // category rates, weights and frequencies are not double buffered in BEAGLE
+            for (int k = 0; k < partitionCount; k++) {
+                setUpSiteModel(k);
+            }
+        } else {
+            for (TreeLikelihoodWithErrorFast likelihood : javaLikelihoods) {
+                likelihood.restore();
+            }
+        }
+        super.restore();
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+    }
+
+}
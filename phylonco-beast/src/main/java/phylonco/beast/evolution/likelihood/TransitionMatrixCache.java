@@ -0,0 +1,247 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.StateNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache of transition probability matrices for each branch that can be shared by tree likelihoods and operators.
+ * Matrices are keyed on the node number and the branch distance (branch time * branch rate * category rate),
+ * so changes to the tree, clock or site rates give new keys and only the matrices of the changed branches
+ * are recalculated. When the substitution model is dirty all matrices are invalidated.
+ * Matrices for calls without a node are not cached.
+ * A cache that is not an input of the posterior is never checked by the state, so its owner calls
+ * {@link #invalidateIfModelChanged()} instead, which compares the parameters of the substitution model.
+ * This is the only per-branch matrix cache, substitution models do not cache matrices themselves.
+ * The cache is not thread safe, every lookup may write a slot, so it must only be used by one thread at a time.
+ * Operators that sample in threads read all matrices they need from it before the threads start.
+ */
+@Description("Cache of transition probability matrices for each branch, " +
+        "shared by tree likelihoods and Gibbs operators")
+public class TransitionMatrixCache extends CalculationNode implements SubstitutionModel {
+
+    final public Input<SubstitutionModel> substModelInput = new Input<>("substModel", "substitution model to cache transition probabilities for", Input.Validate.REQUIRED);
+    final public Input<Integer> matricesPerBranchInput = new Input<>("matricesPerBranch", "number of transition matrices kept for each branch, should be at least the number of rate categories", 8);
+
+    protected SubstitutionModel substitutionModel;
+    protected int nrOfStates;
+    protected int matricesPerBranch;
+
+    // identifies the substitution model the cached matrices were calculated for
+    private long generation;
+    private long storedGeneration;
+    private long generationCount = 0;
+
+    private double[][] cachedDistances;
+    private long[][] cachedGenerations;
+    private double[][][] cachedMatrices;
+    private int[] nextSlot;
+
+    // parameters of the substitution model and their values when last compared
+    private List<Function> parameters;
+    private double[] parameterValues;
+
+    private long hitCount;
+    private long missCount;
+
+    @Override
+    public void initAndValidate() {
+        substitutionModel = substModelInput.get();
+        nrOfStates = substitutionModel.getStateCount();
+        matricesPerBranch = matricesPerBranchInput.get();
+        if (matricesPerBranch < 1) {
+            throw new IllegalArgumentException("matricesPerBranch must be at least 1");
+        }
+        cachedDistances = new double[0][];
+        cachedGenerations = new long[0][];
+        cachedMatrices = new double[0][][];
+        nextSlot = new int[0];
+        generation = ++generationCount;
+    }
+
+    /**
+     * Copies the transition probabilities of the branch above node into matrix,
+     * calculating them with the substitution model if they are not cached.
+     */
+    @Override
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        if (node == null) {
+            substitutionModel.getTransitionProbabilities(null, startTime, endTime, rate, matrix);
+            return;
+        }
+        double distance = (startTime - endTime) * rate;
+        int size = nrOfStates * nrOfStates;
+        int nr = node.getNr();
+        if (nr >= nextSlot.length) {
+            growCache(nr + 1);
+        }
+        double[] distances = cachedDistances[nr];
+        long[] generations = cachedGenerations[nr];
+        for (int slot = 0; slot < matricesPerBranch; slot++) {
+            if (generations[slot] == generation && distances[slot] == distance) {
+                System.arraycopy(cachedMatrices[nr][slot], 0, matrix, 0, size);
+                hitCount++;
+                return;
+            }
+        }
+        substitutionModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+        missCount++;
+        int slot = nextSlot[nr];
+        nextSlot[nr] = (slot + 1) % matricesPerBranch;
+        distances[slot] = distance;
+        generations[slot] = generation;
+        System.arraycopy(matrix, 0, cachedMatrices[nr][slot], 0, size);
+    }
+
+    private void growCache(int nodeCount) {
+        int size = nrOfStates * nrOfStates;
+        int oldCount = nextSlot.length;
+        cachedDistances = Arrays.copyOf(cachedDistances, nodeCount);
+        cachedGenerations = Arrays.copyOf(cachedGenerations, nodeCount);
+        cachedMatrices = Arrays.copyOf(cachedMatrices, nodeCount);
+        nextSlot = Arrays.copyOf(nextSlot, nodeCount);
+        for (int nr = oldCount; nr < nodeCount; nr++) {
+            cachedDistances[nr] = new double[matricesPerBranch];
+            cachedGenerations[nr] = new long[matricesPerBranch];
+            cachedMatrices[nr] = new double[matricesPerBranch][size];
+        }
+    }
+
+    /**
+     * Invalidates all cached matrices, e.g. when the substitution model changed outside of the MCMC.
+     */
+    public void invalidate() {
+        generation = ++generationCount;
+    }
+
+    /**
+     * Invalidates all cached matrices if a parameter of the substitution model changed since the last call.
+     * For caches owned by an operator, which are not stored, checked or restored by the state.
+     */
+    public void invalidateIfModelChanged() {
+        if (parameters == null) {
+            parameters = new ArrayList<>();
+            collectParameters((BEASTInterface) substitutionModel, parameters);
+        }
+        int dimension = 0;
+        for (Function parameter : parameters) {
+            dimension += parameter.getDimension();
+        }
+        boolean changed = parameterValues == null || parameterValues.length != dimension;
+        if (changed) {
+            parameterValues = new double[dimension];
+        }
+        int i = 0;
+        for (Function parameter : parameters) {
+            for (int k = 0; k < parameter.getDimension(); k++) {
+                double value = parameter.getArrayValue(k);
+                if (value != parameterValues[i]) {
+                    parameterValues[i] = value;
+                    changed = true;
+                }
+                i++;
+            }
+        }
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Collects the state nodes the substitution model depends on, e.g. rates and frequencies.
+     */
+    private static void collectParameters(BEASTInterface beastObject, List<Function> parameters) {
+        for (BEASTInterface input : beastObject.listActiveBEASTObjects()) {
+            if (input instanceof StateNode) {
+                if (input instanceof Function && !parameters.contains(input)) {
+                    parameters.add((Function) input);
+                }
+            } else {
+                collectParameters(input, parameters);
+            }
+        }
+    }
+
+    /**
+     * @return number of transition matrices copied from the cache
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of transition matrices calculated by the substitution model
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public SubstitutionModel getSubstitutionModel() {
+        return substitutionModel;
+    }
+
+    @Override
+    public double[] getRateMatrix(Node node) {
+        return substitutionModel.getRateMatrix(node);
+    }
+
+    @Override
+    public double[] getFrequencies() {
+        return substitutionModel.getFrequencies();
+    }
+
+    @Override
+    public int getStateCount() {
+        return nrOfStates;
+    }
+
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        return substitutionModel.getEigenDecomposition(node);
+    }
+
+    @Override
+    public boolean canReturnComplexDiagonalization() {
+        return substitutionModel.canReturnComplexDiagonalization();
+    }
+
+    @Override
+    public boolean canHandleDataType(DataType dataType) {
+        return substitutionModel.canHandleDataType(dataType);
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        // the tree, clock and site rates only change branch distances, which are part of the key
+        if (((CalculationNode) substitutionModel).isDirtyCalculation()) {
+            invalidate();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void store() {
+        storedGeneration = generation;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        // matrices of the rejected generation are never matched again
+        generation = storedGeneration;
+        super.restore();
+    }
+
+}
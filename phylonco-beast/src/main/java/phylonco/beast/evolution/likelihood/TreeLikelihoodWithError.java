@@ -3,6 +3,7 @@ package phylonco.beast.evolution.likelihood;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.tree.Node;
 import phylonco.beast.evolution.errormodel.ErrorModel;
@@ -12,9 +13,12 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
 
     final public Input<phylonco.beast.evolution.errormodel.ErrorModel> errorModelInput = new Input<>("errorModel", "error model to use for partials");
     final public Input<Boolean> useTipsEmpiricalInput = new Input<>("useTipsEmpirical", "use tip ambiguities from data", false);
+    final public Input<Boolean> useTipCodesInput = new Input<>("useTipCodes", "store tips as observed codes into a shared error matrix instead of dense partials", false);
+    final public Input<TransitionMatrixCache> transitionMatrixCacheInput = new Input<>("transitionMatrixCache", "cache of transition matrices shared with other likelihoods and operators (optional)");
 
     protected ErrorModel errorModel;
     protected boolean useTipsEmpirical;
+    protected boolean useTipCodes;
 
     protected boolean useTipLikelihoods = true;
     protected boolean useAmbiguities = true;
@@ -24,6 +28,10 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
         // get error model
         errorModel = errorModelInput.get();
         useTipsEmpirical = useTipsEmpiricalInput.get();
+        useTipCodes = useTipCodesInput.get();
+        if (useTipCodes && (errorModel == null || useTipsEmpirical)) {
+            throw new IllegalArgumentException("useTipCodes requires an error model and cannot be used with useTipsEmpirical");
+        }
         // set fields from TreeLikelihood class
         super.m_useAmbiguities.setValue(useAmbiguities, this);
         super.m_useTipLikelihoods.setValue(useTipLikelihoods, this);
@@ -32,6 +40,14 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
         super.implementationInput.setValue("beast.base.evolution.likelihood.TreeLikelihood", this);
         System.setProperty("java.only", "true"); // use java implementation for likelihood core
         super.initAndValidate();
+        TransitionMatrixCache transitionMatrixCache = transitionMatrixCacheInput.get();
+        if (transitionMatrixCache != null) {
+            if (transitionMatrixCache.getSubstitutionModel() != substitutionModel) {
+                throw new IllegalArgumentException("transitionMatrixCache must use the substitution model of the site model");
+            }
+            // read transition matrices through the cache
+            substitutionModel = transitionMatrixCache;
+        }
     }
 
     /**
@@ -54,6 +70,47 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
         return taxonIndex;
     }
 
+    @Override
+    protected LikelihoodCore createLikelihoodCore(int stateCount) {
+        if (useTipCodes) {
+            return new ErrorLikelihoodCore(stateCount, errorModel.getErrorMatrix().length);
+        }
+        if (stateCount == 10 || stateCount == 16) {
+            return new GenotypeLikelihoodCore(stateCount);
+        }
+        return super.createLikelihoodCore(stateCount);
+    }
+
+    @Override
+    protected void initCore() {
+        super.initCore();
+        if (useTipCodes) {
+            setErrorMatrix();
+        }
+    }
+
+    /**
+     * copies the current error matrix into the likelihood core when tips are stored as codes
+     */
+    protected void setErrorMatrix() {
+        ((ErrorLikelihoodCore) likelihoodCore).setErrorMatrix(errorModel.getErrorMatrix());
+    }
+
+    /**
+     * @param node leaf node
+     * @return the observed code of the leaf for each pattern
+     */
+    protected int[] getLeafCodes(Node node) {
+        Alignment data = dataInput.get();
+        int nrOfPatterns = data.getPatternCount();
+        int[] codes = new int[nrOfPatterns];
+        int t = getTaxonIndex(node.getID(), data); // taxon index
+        for (int p = 0; p < nrOfPatterns; p++) {
+            codes[p] = data.getPattern(t, p);
+        }
+        return codes;
+    }
+
     protected double[] getLeafPartials(Node node) {
         Alignment data = dataInput.get();
         int nrOfStates = data.getDataType().getStateCount();
@@ -79,7 +136,9 @@ public class TreeLikelihoodWithError extends TreeLikelihood {
 
     @Override
     protected void setPartials(Node node, int nrOfPatterns) {
-        if (node.isLeaf()) {
+        if (node.isLeaf() && useTipCodes) {
+            likelihoodCore.setNodeStates(node.getNr(), getLeafCodes(node));
+        } else if (node.isLeaf()) {
             double[] partials = getLeafPartials(node);
             likelihoodCore.setNodePartials(node.getNr(), partials);
         } else {
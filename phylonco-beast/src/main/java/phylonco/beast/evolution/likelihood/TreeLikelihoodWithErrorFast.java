@@ -1,6 +1,7 @@
 package phylonco.beast.evolution.likelihood;
 
 import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.likelihood.BeerLikelihoodCore;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
@@ -12,6 +13,27 @@ public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
 
     boolean updateLeafPartials = false;
 
+    // observed codes for each leaf, indexed by node number then pattern
+    protected int[][] leafCodes;
+    // reused buffer for leaf partials, filled from error matrix rows
+    protected double[] leafPartials;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        if (useTipCodes) {
+            // leaves are refreshed by copying the error matrix into the likelihood core
+            return;
+        }
+        List<Node> leaves = treeInput.get().getExternalNodes();
+        leafCodes = new int[leaves.size()][];
+        for (Node node: leaves) {
+            leafCodes[node.getNr()] = getLeafCodes(node);
+        }
+        Alignment data = dataInput.get();
+        leafPartials = new double[data.getPatternCount() * data.getDataType().getStateCount()];
+    }
+
     /**
      * check state for changed variables and update temp results if necessary *
      */
@@ -37,14 +59,29 @@ public class TreeLikelihoodWithErrorFast extends TreeLikelihoodWithError {
         return treeInput.get().somethingIsDirty();
     }
 
+    /**
+     * refreshes leaf partials by copying the error matrix row of each observed code,
+     * the partials are flipped so the previous values are kept for restore
+     */
     public void updateLeafPartials() {
-        List<Node> leaves = treeInput.get().getExternalNodes();
-        for (Node node: leaves) {
-            int nodeId = node.getNr();
+        if (useTipsEmpirical) {
+            // tip likelihoods do not depend on the error model
+            return;
+        }
+        if (useTipCodes) {
+            setErrorMatrix();
+            return;
+        }
+        double[][] errorMatrix = errorModel.getErrorMatrix();
+        int nrOfStates = dataInput.get().getDataType().getStateCount();
+        BeerLikelihoodCore beer = (BeerLikelihoodCore) likelihoodCore;
+        for (int nodeId = 0; nodeId < leafCodes.length; nodeId++) {
+            int[] codes = leafCodes[nodeId];
+            for (int p = 0, i = 0; p < codes.length; p++, i += nrOfStates) {
+                System.arraycopy(errorMatrix[codes[p]], 0, leafPartials, i, nrOfStates);
+            }
             likelihoodCore.setNodePartialsForUpdate(nodeId);
-            BeerLikelihoodCore beer = (BeerLikelihoodCore) likelihoodCore;
-            double[] partials = getLeafPartials(node);
-            beer.setCurrentNodePartials(nodeId, partials);
+            beer.setCurrentNodePartials(nodeId, leafPartials);
         }
     }
 
@@ -16,6 +16,9 @@ public class TreeLikelihoodWithErrorSlow  extends TreeLikelihoodWithError {
         } else {
             setStates(treeInput.get().getRoot(), dataInput.get().getPatternCount());
         }
+        if (useTipCodes) {
+            setErrorMatrix();
+        }
         return true; // always recalculate
     }
 
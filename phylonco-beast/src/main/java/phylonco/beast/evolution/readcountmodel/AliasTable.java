@@ -0,0 +1,89 @@
+package phylonco.beast.evolution.readcountmodel;
+
+/**
+ * Alias table (Walker's alias method, Vose's construction) for sampling an index
+ * in proportion to fixed weights in constant time.
+ * Building the table takes linear time, so it pays off when the same weights are sampled many times.
+ * The arrays are reused when the table is rebuilt for the same or a smaller number of weights.
+ */
+public final class AliasTable {
+
+    private double[] probabilities;  // probability of keeping index i rather than taking its alias
+    private int[] aliases;
+    private int[] small;             // work lists for building the table
+    private int[] large;
+    private int size;
+    private double total;
+
+    /**
+     * Builds the table for the first size weights, which must be non-negative.
+     */
+    public void build(double[] weights, int size) {
+        if (probabilities == null || probabilities.length < size) {
+            probabilities = new double[size];
+            aliases = new int[size];
+            small = new int[size];
+            large = new int[size];
+        }
+        this.size = size;
+        total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += weights[i];
+        }
+        if (total <= 0.0) {
+            return;
+        }
+
+        // scale weights so that the average is 1 and split them into under and over full columns
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < size; i++) {
+            probabilities[i] = weights[i] * size / total;
+            aliases[i] = i;
+            if (probabilities[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        // fill each under full column with the excess of an over full one
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[largeCount - 1];
+            aliases[s] = l;
+            probabilities[l] -= 1.0 - probabilities[s];
+            if (probabilities[l] < 1.0) {
+                largeCount--;
+                small[smallCount++] = l;
+            }
+        }
+        // remaining columns are full up to rounding
+        while (largeCount > 0) {
+            probabilities[large[--largeCount]] = 1.0;
+        }
+        while (smallCount > 0) {
+            probabilities[small[--smallCount]] = 1.0;
+        }
+    }
+
+    /**
+     * @return sum of the weights the table was built for, 0 if nothing can be sampled
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    /**
+     * Samples index i with probability weights[i] / total.
+     * @param u uniform random number in [0, 1), used to pick both the column and the index within it
+     */
+    public int sample(double u) {
+        double x = u * size;
+        int column = (int) x;
+        if (column >= size) {
+            column = size - 1;
+        }
+        return x - column < probabilities[column] ? column : aliases[column];
+    }
+
+}
@@ -0,0 +1,105 @@
+package phylonco.beast.evolution.readcountmodel;
+
+/**
+ * Allocation free helpers for sampling from categorical distributions given by log probabilities,
+ * shared by the read count Gibbs operators.
+ * All methods work on the first size entries of arrays owned by the caller,
+ * so operators can reuse the same scratch arrays for every site.
+ */
+public final class CategoricalSampling {
+
+    private CategoricalSampling() {
+    }
+
+    /**
+     * @return the largest of the first size log probabilities
+     */
+    public static double max(double[] logProbs, int size) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            if (logProbs[i] > max) {
+                max = logProbs[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return log(sum_i exp(logProbs[i])) over the first size log probabilities,
+     * negative infinity if all of them are
+     */
+    public static double logSumExp(double[] logProbs, int size) {
+        double max = max(logProbs, size);
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += Math.exp(logProbs[i] - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    /**
+     * Replaces log probabilities in place by unnormalised probabilities exp(logProbs[i] - max),
+     * using the log-sum-exp trick for numerical stability.
+     * @param max largest of the log probabilities, see {@link #max(double[], int)}
+     * @return sum of the unnormalised probabilities
+     */
+    public static double expInPlace(double[] logProbs, int size, double max) {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            logProbs[i] = Math.exp(logProbs[i] - max);
+            sum += logProbs[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Samples index i with probability weights[i] / total.
+     * @param u uniform random number in [0, 1)
+     */
+    public static int sample(double[] weights, int size, double total, double u) {
+        double rand = u * total;
+        double cumulative = 0.0;
+        for (int i = 0; i < size; i++) {
+            cumulative += weights[i];
+            if (rand < cumulative) {
+                return i;
+            }
+        }
+        // rounding in the cumulative sum, return the last index with positive weight
+        for (int i = size - 1; i > 0; i--) {
+            if (weights[i] > 0.0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param total sum of the first size weights
+     * @return entropy of the distribution with probabilities weights[i] / total, in nats
+     */
+    public static double entropy(double[] weights, int size, double total) {
+        double entropy = 0.0;
+        for (int i = 0; i < size; i++) {
+            if (weights[i] > 0.0) {
+                double p = weights[i] / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy;
+    }
+
+    /**
+     * Samples index i with probability proportional to exp(logProbs[i]).
+     * The log probabilities are overwritten by unnormalised probabilities.
+     * @param u uniform random number in [0, 1)
+     */
+    public static int sampleFromLogProbs(double[] logProbs, int size, double u) {
+        double total = expInPlace(logProbs, size, max(logProbs, size));
+        return sample(logProbs, size, total, u);
+    }
+
+}
@@ -124,8 +124,7 @@ public class DataTemperedMCMC extends MCMC {
                         " — activated sites " + oldActive + " -> " + activeSites +
                         " / " + totalSites);
 
-                // Update cached cumulative weights then Gibbs sample all active sites
-                gibbsOperator.updateCumulativeWeights();
+                // Gibbs sample all active sites
                 gibbsOperator.proposal();
 
                 // Recalculate posterior with new sites
@@ -187,7 +186,8 @@ public class DataTemperedMCMC extends MCMC {
     }
 
     /**
-     * Set patternWeight to 1 for active sites, 0 for inactive sites.
+     * Set patternWeight to 1 for active sites, 0 for inactive sites,
+     * and tell the Gibbs site operators that sample one site to rebuild their site tables.
      */
     private void updatePatternWeights() {
         int[] weights = alignment.getWeights();
@@ -195,6 +195,12 @@ public class DataTemperedMCMC extends MCMC {
         for (int i = 0; i < activeSites; i++) {
             weights[siteOrder[i]] = 1;
         }
+        gibbsOperator.markWeightsChanged();
+        for (Operator operator : operatorsInput.get()) {
+            if (operator instanceof GibbsSiteOperator gibbsSiteOperator) {
+                gibbsSiteOperator.markWeightsChanged();
+            }
+        }
     }
 
     private boolean isTooDifferent(double logLikelihood, double originalLogP) {
@@ -3,15 +3,17 @@ package phylonco.beast.evolution.readcountmodel;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.operator.TreeOperator;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.util.InputUtil;
 import beast.base.util.Randomizer;
 import mutablealignment.MATreeLikelihood;
 import mutablealignment.MutableAlignment;
+import phylonco.beast.evolution.likelihood.TransitionMatrixCache;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -51,6 +53,11 @@ import java.util.List;
  * <pre>
  *   alpha = P(T')/P(T) * (validGP/validGPafter) * prod_s Z_s(T',A_{-k}) / Z_s(T,A_{-k})
  * </pre>
+ *
+ * <p>The read count emissions of taxon k are looked up once and shared by both
+ * directions. The tree likelihoods of the states of k are computed from the
+ * partials of the tree likelihood core along the path from k to the root, so
+ * after the exchange only the node whose children changed is recomputed.</p>
  */
 @Description("Narrow exchange + Gibbs resample of one affected leaf taxon. " +
         "Improves mixing when tree topology and genotypes are strongly coupled.")
@@ -71,13 +78,28 @@ public class ExchangeGibbsOperator extends TreeOperator {
             "read count likelihood model",
             Input.Validate.REQUIRED);
 
+    public Input<TransitionMatrixCache> transitionMatrixCacheInput = new Input<>(
+            "transitionMatrixCache",
+            "cache of transition matrices shared with a tree likelihood (optional)",
+            Input.Validate.OPTIONAL);
+
     private MutableAlignment mutableAlignment;
     private MATreeLikelihood maTreeLikelihood;
     private LikelihoodReadCountModel likelihoodReadCountModel;
 
     private int numStates;
     private int numSites;
-    private List<int[]> allGSequences;
+    private TransitionMatrixCache transitionMatrixCache;
+    private boolean ownsCache;           // cache created by this operator, not checked by the state
+    // site log likelihoods for every state of taxon k from the partials on its path
+    private LeafConditionalLikelihood leafConditionalLikelihood;
+
+    // reusable buffers
+    private double[] treeLogProbs;       // [numSites * numStates] - site log likelihoods for each state of taxon k
+    private double[] emissionLogProbs;   // [numSites * numStates] - read count log likelihoods of taxon k
+    private double[] logP;               // [numStates] - log probabilities of the states at a site
+    private int[] newSeq;                // [numSites] - resampled sequence of taxon k, copied into the alignment
+    private List<Node> affectedLeaves;   // leaves below the exchanged nodes
 
     @Override
     public void initAndValidate() {
@@ -87,13 +109,21 @@ public class ExchangeGibbsOperator extends TreeOperator {
         numStates = mutableAlignment.getDataType().getStateCount();
         numSites = mutableAlignment.getSiteCount();
 
-        // Precompute constant sequences: allGSequences.get(g) = [g, g, ..., g]
-        allGSequences = new ArrayList<>(numStates);
-        for (int g = 0; g < numStates; g++) {
-            int[] seq = new int[numSites];
-            Arrays.fill(seq, g);
-            allGSequences.add(seq);
+        SubstitutionModel substitutionModel = ((SiteModel.Base) maTreeLikelihood.siteModelInput.get()).getSubstitutionModel();
+        transitionMatrixCache = transitionMatrixCacheInput.get();
+        if (transitionMatrixCache == null) {
+            transitionMatrixCache = new TransitionMatrixCache();
+            transitionMatrixCache.initByName("substModel", substitutionModel);
+            ownsCache = true;
+        } else if (transitionMatrixCache.getSubstitutionModel() != substitutionModel) {
+            throw new IllegalArgumentException("transitionMatrixCache must use the substitution model of the site model");
         }
+        leafConditionalLikelihood = new LeafConditionalLikelihood(maTreeLikelihood, transitionMatrixCache);
+        treeLogProbs = new double[numSites * numStates];
+        emissionLogProbs = new double[numSites * numStates];
+        logP = new double[numStates];
+        newSeq = new int[numSites];
+        affectedLeaves = new ArrayList<>();
     }
 
     @Override
@@ -125,6 +155,7 @@ public class ExchangeGibbsOperator extends TreeOperator {
         }
 
         // ---- Count valid grandparents before exchange ----
+        // other tree operators change the topology between proposals, so this is counted each time
         int validGP = 0;
         for (int n = internalNodes + 1; n < 1 + 2 * internalNodes; n++) {
             validGP += isg(tree.getNode(n));
@@ -135,61 +166,52 @@ public class ExchangeGibbsOperator extends TreeOperator {
         final Node i = Randomizer.nextBoolean() ? parentIndex.getLeft() : parentIndex.getRight();
 
         // ---- Collect affected leaves from both swapped subtrees ----
-        List<Node> iLeaves = collectLeaves(i);
-        List<Node> uncleLeaves = collectLeaves(uncle);
-        List<Node> allLeaves = new ArrayList<>(iLeaves);
-        allLeaves.addAll(uncleLeaves);
+        affectedLeaves.clear();
+        collectLeaves(i, affectedLeaves);
+        collectLeaves(uncle, affectedLeaves);
 
-        if (allLeaves.isEmpty()) {
-            return Double.NEGATIVE_INFINITY;
+        // Pick one affected leaf taxon k, the alignment and read counts are indexed by taxon, the tree by node number
+        Node leafNode = affectedLeaves.get(Randomizer.nextInt(affectedLeaves.size()));
+        int leafNr = leafNode.getNr();
+        int k = leafConditionalLikelihood.getTaxonIndex(leafNr);
+
+        // read count emissions of k do not depend on the tree, so look them up once
+        for (int s = 0; s < numSites; s++) {
+            likelihoodReadCountModel.getEmissionLogProbs(k, s, logP);
+            System.arraycopy(logP, 0, emissionLogProbs, s * numStates, numStates);
         }
 
-        // Pick one affected leaf taxon k
-        Node leafNode = allLeaves.get(Randomizer.nextInt(allLeaves.size()));
-        int k = leafNode.getNr();
-        boolean kFromI = iLeaves.contains(leafNode);
+        if (ownsCache) {
+            // the state only invalidates caches that are inputs of the posterior
+            transitionMatrixCache.invalidateIfModelChanged();
+        }
 
         // ---- Compute logQ_reverse (under current tree T, before exchange) ----
         int[] currentSeq = mutableAlignment.getSiteValuesByTaxon(k);
-        double logQ_reverse = computeLogGibbsProb(k, currentSeq);
+        leafConditionalLikelihood.updatePathFromCore(leafNr);
+        double logQ_reverse = computeLogGibbsProb(leafNr, currentSeq);
 
         // ---- Perform narrow exchange: T -> T' ----
         exchangeNodes(i, uncle, parentIndex, grandParent);
         final int validGPafter = validGP - c2 + sisg(parentIndex) + sisg(uncle);
         double logHR_exchange = Math.log((float) validGP / validGPafter);
 
-        // ---- Fix cached partials after topology change ----
-        // After the exchange, parentIndex's children changed (uncle moved in,
-        // i moved out). If k came from i's subtree, the forward Gibbs
-        // computation walks from k to root WITHOUT passing through parentIndex,
-        // so parentIndex's stale partials would corrupt the result.
-        // Fix: walk a leaf under uncle (now a child of parentIndex) to the root,
-        // which recalculates parentIndex's partials from its new children.
-        if (kFromI) {
-            Node fixLeaf = uncleLeaves.get(0);
-            int fixNr = fixLeaf.getNr();
-            maTreeLikelihood.getLogProbsForStateSequence(
-                    fixNr, mutableAlignment.getSiteValuesByTaxon(fixNr));
-        }
+        // ---- Partials after topology change ----
+        // The core partials of nodes below the exchanged nodes are still valid. Only parentIndex
+        // changed children (uncle moved in, i moved out), which matters when k came from i's
+        // subtree and parentIndex is off the path from k to the root. Nodes above are on the path.
+        leafConditionalLikelihood.updatePathFromCore(leafNr);
+        leafConditionalLikelihood.updateNodeFromCore(parentIndex);
 
         // ---- Gibbs resample + compute logQ_forward (under new tree T') ----
-        double[][] treeLogProb = new double[numStates][];
-        double[][] rcLogLik = new double[numStates][];
-        for (int g = 0; g < numStates; g++) {
-            treeLogProb[g] = maTreeLikelihood.getLogProbsForStateSequence(k, allGSequences.get(g));
-            rcLogLik[g] = likelihoodReadCountModel.sequenceLogLikelihood(k, allGSequences.get(g));
-        }
+        leafConditionalLikelihood.calculateLogProbs(leafNr, treeLogProbs);
 
-        int[] newSeq = new int[numSites];
         double logQ_forward = 0.0;
         for (int s = 0; s < numSites; s++) {
-            double[] logP = new double[numStates];
-            for (int g = 0; g < numStates; g++) {
-                logP[g] = treeLogProb[g][s] + rcLogLik[g][s];
-            }
-            double[] probs = normalizeLogProbs(logP);
-            newSeq[s] = sampleFromProbabilities(probs);
-            logQ_forward += Math.log(probs[newSeq[s]]);
+            setSiteLogProbs(s);
+            double sum = CategoricalSampling.expInPlace(logP, numStates, CategoricalSampling.max(logP, numStates));
+            newSeq[s] = CategoricalSampling.sample(logP, numStates, sum, Randomizer.nextDouble());
+            logQ_forward += Math.log(logP[newSeq[s]] / sum);
         }
         mutableAlignment.setSiteValuesByTaxon(k, newSeq);
 
@@ -200,29 +222,32 @@ public class ExchangeGibbsOperator extends TreeOperator {
     /**
      * Compute log q_G(seq | T, A_{-k}) = sum_s log q(seq[s] | T, A_{-k}, s).
      *
-     * Uses the current tree state in maTreeLikelihood (call before or after
-     * exchange as appropriate).
+     * Uses the partials of leafConditionalLikelihood, which must be updated
+     * for the path of the leaf of k in the current tree.
      */
-    private double computeLogGibbsProb(int k, int[] seq) {
-        double[][] treeLogProb = new double[numStates][];
-        double[][] rcLogLik = new double[numStates][];
-        for (int g = 0; g < numStates; g++) {
-            treeLogProb[g] = maTreeLikelihood.getLogProbsForStateSequence(k, allGSequences.get(g));
-            rcLogLik[g] = likelihoodReadCountModel.sequenceLogLikelihood(k, allGSequences.get(g));
-        }
+    private double computeLogGibbsProb(int leafNr, int[] seq) {
+        leafConditionalLikelihood.calculateLogProbs(leafNr, treeLogProbs);
 
         double logProb = 0.0;
         for (int s = 0; s < numSites; s++) {
-            double[] logP = new double[numStates];
-            for (int g = 0; g < numStates; g++) {
-                logP[g] = treeLogProb[g][s] + rcLogLik[g][s];
-            }
-            double logZ = logSumExp(logP);
+            setSiteLogProbs(s);
+            double logZ = CategoricalSampling.logSumExp(logP, numStates);
             logProb += logP[seq[s]] - logZ;
         }
         return logProb;
     }
 
+    /**
+     * Fill logP with the unnormalised Gibbs log probabilities of the states of taxon k at site s,
+     * using the tree log likelihoods in treeLogProbs and the emissions in emissionLogProbs.
+     */
+    private void setSiteLogProbs(int s) {
+        int offset = s * numStates;
+        for (int g = 0; g < numStates; g++) {
+            logP[g] = treeLogProbs[offset + g] + emissionLogProbs[offset + g];
+        }
+    }
+
     /**
      * Swap subtrees rooted at nodes i and j, whose parents are p and jP.
      * Same logic as Exchange.exchangeNodes.
@@ -233,18 +258,16 @@ public class ExchangeGibbsOperator extends TreeOperator {
     }
 
     /**
-     * Collect all leaf nodes under the given node (including the node itself
-     * if it is a leaf).
+     * Add all leaf nodes under the given node (including the node itself
+     * if it is a leaf) to leaves.
      */
-    private List<Node> collectLeaves(Node node) {
-        List<Node> leaves = new ArrayList<>();
+    private void collectLeaves(Node node, List<Node> leaves) {
         if (node.isLeaf()) {
             leaves.add(node);
         } else {
             // Node.getAllLeafNodes(List) adds leaf descendants recursively
             node.getAllLeafNodes(leaves);
         }
-        return leaves;
     }
 
     /** 1 if node has at least one non-leaf child, 0 otherwise. */
@@ -256,43 +279,4 @@ public class ExchangeGibbsOperator extends TreeOperator {
     private int sisg(Node n) {
         return n.isLeaf() ? 0 : isg(n);
     }
-
-    private double logSumExp(double[] logP) {
-        double max = Double.NEGATIVE_INFINITY;
-        for (double v : logP) {
-            if (v > max) max = v;
-        }
-        double sum = 0.0;
-        for (double v : logP) {
-            sum += Math.exp(v - max);
-        }
-        return max + Math.log(sum);
-    }
-
-    private double[] normalizeLogProbs(double[] logP) {
-        double max = Double.NEGATIVE_INFINITY;
-        for (double v : logP) {
-            if (v > max) max = v;
-        }
-        double[] probs = new double[logP.length];
-        double sum = 0.0;
-        for (int j = 0; j < logP.length; j++) {
-            probs[j] = Math.exp(logP[j] - max);
-            sum += probs[j];
-        }
-        for (int j = 0; j < probs.length; j++) {
-            probs[j] /= sum;
-        }
-        return probs;
-    }
-
-    private int sampleFromProbabilities(double[] probs) {
-        double rand = Randomizer.nextDouble();
-        double cumulative = 0.0;
-        for (int j = 0; j < probs.length; j++) {
-            cumulative += probs[j];
-            if (rand < cumulative) return j;
-        }
-        return probs.length - 1;
-    }
 }
@@ -1,10 +1,14 @@
 package phylonco.beast.evolution.readcountmodel;
 
 import beast.base.core.Input;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
 import beast.base.inference.Operator;
 import beast.base.util.Randomizer;
 import mutablealignment.MATreeLikelihood;
 import mutablealignment.MutableAlignment;
+import phylonco.beast.evolution.likelihood.TransitionMatrixCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -16,6 +20,8 @@ public class GibbsAlignmentOperator extends Operator {
     public Input<MutableAlignment> mutableAlignmentInput = new Input<>("mutableAlignment", "mutable alignment");
     public Input<MATreeLikelihood> maTreeLikelihoodInput  = new Input<>("maTreeLikelihood", "likelihood of mutable alignment tree");
     public Input<LikelihoodReadCountModel> likelihoodReadCountModelInput = new Input<>("likelihoodReadCountModel", "ikelihood of Read Count Model");
+    public Input<Boolean> incrementalPartialsInput = new Input<>("incrementalPartials", "if true, keep post-order partials and update them on the path of each resampled taxon; if false, recompute the tree likelihood for every state of each taxon", true);
+    public Input<TransitionMatrixCache> transitionMatrixCacheInput = new Input<>("transitionMatrixCache", "cache of transition matrices shared with a tree likelihood (optional)", Input.Validate.OPTIONAL);
     private MATreeLikelihood maTreeLikelihood;
     private MutableAlignment mutableAlignment;
     public LikelihoodReadCountModel likelihoodReadCountModel;
@@ -23,6 +29,17 @@ public class GibbsAlignmentOperator extends Operator {
     private int numSites;
     private int numTaxa;
     private List<int[]> statesSequences;
+    private int[] taxonIndexToNodeNr;         // [numTaxa] - node number of the leaf of each taxon
+    private TransitionMatrixCache transitionMatrixCache;
+    private boolean ownsCache;                // cache created by this operator, not checked by the state
+    // site log likelihoods for every state of a taxon from partials kept during the sweep, null if not incremental
+    private LeafConditionalLikelihood leafConditionalLikelihood;
+    // reusable buffers
+    private double[][] stateLogProbabilities; // [numStates][] - site log likelihoods for each state of the taxon
+    private double[] conditionalLogProbs;     // [numSites * numStates] - site log likelihoods for each state from partials
+    private double[] emissionLogProbs;        // [numStates] - read count log likelihoods at a site
+    private double[] logProbs;                // [numStates] - log probabilities of the states at a site
+    private int[] newSeq;                     // [numSites] - resampled sequence of a taxon, copied into the alignment
 
 
 
@@ -43,6 +60,27 @@ public class GibbsAlignmentOperator extends Operator {
             }
             statesSequences.add(stateSequence);
         }
+        taxonIndexToNodeNr = new int[numTaxa];
+        for (Node leaf : maTreeLikelihood.treeInput.get().getExternalNodes()) {
+            taxonIndexToNodeNr[mutableAlignment.getTaxonIndex(leaf.getID())] = leaf.getNr();
+        }
+        stateLogProbabilities = new double[numStates][];
+        if (incrementalPartialsInput.get()) {
+            SubstitutionModel substitutionModel = ((SiteModel.Base) maTreeLikelihood.siteModelInput.get()).getSubstitutionModel();
+            transitionMatrixCache = transitionMatrixCacheInput.get();
+            if (transitionMatrixCache == null) {
+                transitionMatrixCache = new TransitionMatrixCache();
+                transitionMatrixCache.initByName("substModel", substitutionModel);
+                ownsCache = true;
+            } else if (transitionMatrixCache.getSubstitutionModel() != substitutionModel) {
+                throw new IllegalArgumentException("transitionMatrixCache must use the substitution model of the site model");
+            }
+            leafConditionalLikelihood = new LeafConditionalLikelihood(maTreeLikelihood, transitionMatrixCache);
+            conditionalLogProbs = new double[numSites * numStates];
+        }
+        emissionLogProbs = new double[numStates];
+        logProbs = new double[numStates];
+        newSeq = new int[numSites];
 
     }
 
@@ -50,68 +88,71 @@ public class GibbsAlignmentOperator extends Operator {
 
     @Override
     public double proposal() {
-        double[][] stateLogProbabilities = new double[numStates][numSites];
-        double[][] readCountLogLikelihoods = new double[numStates][numSites];
-        int[] newSeq = new int[numSites];
-        double[] stateProbabilities;
+        if (leafConditionalLikelihood != null) {
+            return incrementalProposal();
+        }
         int[] randomTaxaOrder = generateRandomOrder(numTaxa);
         for (int k = 0; k < numTaxa; k++) {
             int taxon = randomTaxaOrder[k];
+            int leafNr = taxonIndexToNodeNr[taxon];
             for (int i = 0; i < numStates; i++) {
-                stateLogProbabilities[i] = maTreeLikelihood.getLogProbsForStateSequence(taxon, statesSequences.get(i));
-                // get new read count likelihood for taxon
-                readCountLogLikelihoods[i] = likelihoodReadCountModel.sequenceLogLikelihood(taxon, statesSequences.get(i));
+                stateLogProbabilities[i] = maTreeLikelihood.getLogProbsForStateSequence(leafNr, statesSequences.get(i));
             }
 
             for (int i = 0; i < numSites; i++) {
                 // multiple read count likelihoods and statelogLikelihoods
                 // * for this site * and normalise and sample from and set sequence at site i
-                double[] logProbs = new double[numStates];
+                likelihoodReadCountModel.getEmissionLogProbs(taxon, i, emissionLogProbs);
                 for (int j = 0; j < numStates; j++) {
-                    logProbs[j] = stateLogProbabilities[j][i] + readCountLogLikelihoods[j][i];
+                    logProbs[j] = stateLogProbabilities[j][i] + emissionLogProbs[j];
                 }
-                stateProbabilities = normalizeLogProbs(logProbs);
-                newSeq[i] = sampleFromProbabilities(stateProbabilities);
+                newSeq[i] = CategoricalSampling.sampleFromLogProbs(logProbs, numStates, Randomizer.nextDouble());
             }
 
 
             mutableAlignment.setSiteValuesByTaxon(taxon, newSeq);
             // needed to update partial log likelihoods based on newly sampled sequence before
             // moving to next taxa. Don't need to use the result
-            maTreeLikelihood.getLogProbsForStateSequence(taxon, newSeq);
+            maTreeLikelihood.getLogProbsForStateSequence(leafNr, newSeq);
         }
         return Double.POSITIVE_INFINITY;
     }
 
-    private int sampleFromProbabilities(double[] probabilities) {
-        double rand = Randomizer.nextDouble();
-        double cumulative = 0.0;
-        for (int i = 0; i < probabilities.length; i++) {
-            cumulative += probabilities[i];
-            if (rand < cumulative) return i;
+    /**
+     * Sweep over the taxa in random order, reading the site log likelihoods of each taxon from
+     * post-order partials that are updated on the path of the taxon after it is resampled.
+     */
+    private double incrementalProposal() {
+        int[] randomTaxaOrder = generateRandomOrder(numTaxa);
+        if (ownsCache) {
+            // the state only invalidates caches that are inputs of the posterior
+            transitionMatrixCache.invalidateIfModelChanged();
         }
-        throw new RuntimeException("Should never get here");
-    }
+        leafConditionalLikelihood.update();
+        for (int k = 0; k < numTaxa; k++) {
+            int taxon = randomTaxaOrder[k];
+            int leafNr = taxonIndexToNodeNr[taxon];
+            leafConditionalLikelihood.calculateLogProbs(leafNr, conditionalLogProbs);
 
-    private double[] normalizeLogProbs(double[] logProbs) {
-        // Find the maximum log probability for numerical stability
-        double maxLogProb = Double.NEGATIVE_INFINITY;
-        for (double logP : logProbs) {
-            maxLogProb = Math.max(maxLogProb, logP);
-        }
-        // Compute exp(logProb - max) for each element and sum them
-        double[] expProbs = new double[logProbs.length];
-        double sumExp = 0.0;
-        for (int i = 0; i < logProbs.length; i++) {
-            expProbs[i] = Math.exp(logProbs[i] - maxLogProb);
-            sumExp += expProbs[i];
-        }
-        // Normalize to get actual probabilities
-        double[] normalizedProbs = new double[logProbs.length];
-        for (int i = 0; i < logProbs.length; i++) {
-            normalizedProbs[i] = expProbs[i] / sumExp;
+            for (int i = 0; i < numSites; i++) {
+                likelihoodReadCountModel.getEmissionLogProbs(taxon, i, emissionLogProbs);
+                for (int j = 0; j < numStates; j++) {
+                    logProbs[j] = conditionalLogProbs[i * numStates + j] + emissionLogProbs[j];
+                }
+                newSeq[i] = CategoricalSampling.sampleFromLogProbs(logProbs, numStates, Randomizer.nextDouble());
+            }
+
+            mutableAlignment.setSiteValuesByTaxon(taxon, newSeq);
+            leafConditionalLikelihood.updateLeaf(leafNr);
         }
-        return normalizedProbs;
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return site log likelihoods for every state of a leaf from the partials of the last sweep, null if not incremental
+     */
+    LeafConditionalLikelihood getLeafConditionalLikelihood() {
+        return leafConditionalLikelihood;
     }
 
     public static int[] generateRandomOrder(int n) {
@@ -129,8 +170,4 @@ public class GibbsAlignmentOperator extends Operator {
 
         return result;
     }
-
-
-
-
 }
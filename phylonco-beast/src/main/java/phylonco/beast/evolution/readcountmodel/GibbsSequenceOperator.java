@@ -1,13 +1,13 @@
 package phylonco.beast.evolution.readcountmodel;
 
 import beast.base.core.Input;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.inference.Operator;
 import beast.base.util.Randomizer;
 import mutablealignment.MATreeLikelihood;
 import mutablealignment.MutableAlignment;
-
-import java.util.ArrayList;
-import java.util.List;
+import phylonco.beast.evolution.likelihood.TransitionMatrixCache;
 
 
 
@@ -16,13 +16,22 @@ public class GibbsSequenceOperator extends Operator {
     public Input<MutableAlignment> mutableAlignmentInput = new Input<>("mutableAlignment", "mutable alignment");
     public Input<MATreeLikelihood> maTreeLikelihoodInput  = new Input<>("maTreeLikelihood", "likelihood of mutable alignment tree");
     public Input<LikelihoodReadCountModel> likelihoodReadCountModelInput = new Input<>("likelihoodReadCountModel", "ikelihood of Read Count Model");
+    public Input<TransitionMatrixCache> transitionMatrixCacheInput = new Input<>("transitionMatrixCache", "cache of transition matrices shared with a tree likelihood (optional)", Input.Validate.OPTIONAL);
     private MATreeLikelihood maTreeLikelihood;
     private MutableAlignment mutableAlignment;
     public LikelihoodReadCountModel likelihoodReadCountModel;
     private int numStates;
     private int numSites;
     private int numTaxa;
-    private List<int[]> statesSequences;
+    private TransitionMatrixCache transitionMatrixCache;
+    private boolean ownsCache;                // cache created by this operator, not checked by the state
+    // site log likelihoods for every state of a taxon from the partials on its path
+    private LeafConditionalLikelihood leafConditionalLikelihood;
+    // reusable buffers
+    private double[] stateLogProbabilities;   // [numSites * numStates] - site log likelihoods for each state of the taxon
+    private double[] emissionLogProbs;        // [numStates] - read count log likelihoods at a site
+    private double[] logProbs;                // [numStates] - log probabilities of the states at a site
+    private int[] newSeq;                     // [numSites] - resampled sequence, copied into the alignment
 
 
 
@@ -35,14 +44,20 @@ public class GibbsSequenceOperator extends Operator {
         numStates = mutableAlignment.getDataType().getStateCount();
         numSites = mutableAlignment.getSiteCount();
         numTaxa = mutableAlignment.getTaxonCount();
-        statesSequences = new ArrayList<>(numStates);
-        for(int i = 0; i < numStates; i++){
-            int[] stateSequence = new int[numSites];
-            for(int j = 0; j < numSites; j++){
-                stateSequence[j] = i;
-            }
-            statesSequences.add(stateSequence);
+        SubstitutionModel substitutionModel = ((SiteModel.Base) maTreeLikelihood.siteModelInput.get()).getSubstitutionModel();
+        transitionMatrixCache = transitionMatrixCacheInput.get();
+        if (transitionMatrixCache == null) {
+            transitionMatrixCache = new TransitionMatrixCache();
+            transitionMatrixCache.initByName("substModel", substitutionModel);
+            ownsCache = true;
+        } else if (transitionMatrixCache.getSubstitutionModel() != substitutionModel) {
+            throw new IllegalArgumentException("transitionMatrixCache must use the substitution model of the site model");
         }
+        leafConditionalLikelihood = new LeafConditionalLikelihood(maTreeLikelihood, transitionMatrixCache);
+        stateLogProbabilities = new double[numSites * numStates];
+        emissionLogProbs = new double[numStates];
+        logProbs = new double[numStates];
+        newSeq = new int[numSites];
 
     }
 
@@ -50,61 +65,28 @@ public class GibbsSequenceOperator extends Operator {
 
     @Override
     public double proposal() {
-        int taxon = Randomizer.nextInt(numTaxa);
-        double[][] stateLogProbabilities = new double[numStates][numSites];
-        double[][] readCountLogLikelihoods = new double[numStates][numSites];
-        int[] newSeq = new int[numSites];
-        double[] stateProbabilities;
-
-        for(int i = 0; i < numStates; i++){
-            stateLogProbabilities[i] = maTreeLikelihood.getLogProbsForStateSequence(taxon, statesSequences.get(i));
+        // leaves have the node numbers 0 to numTaxa - 1, possibly in another order than the taxa of the alignment
+        int leafNr = Randomizer.nextInt(numTaxa);
+        int taxon = leafConditionalLikelihood.getTaxonIndex(leafNr);
 
-            // get new read count likelihood for taxon
-            readCountLogLikelihoods[i] = likelihoodReadCountModel.sequenceLogLikelihood(taxon,statesSequences.get(i));
+        if (ownsCache) {
+            // the state only invalidates caches that are inputs of the posterior
+            transitionMatrixCache.invalidateIfModelChanged();
         }
+        // only the path of the leaf is needed, the partials off the path are read from the tree likelihood
+        leafConditionalLikelihood.updatePathFromCore(leafNr);
+        leafConditionalLikelihood.calculateLogProbs(leafNr, stateLogProbabilities);
 
         for (int i = 0; i < numSites; i++) {
             // multiple read count likelihoods and statelogLikelihoods
             // * for this site * and normalise and sample from and set sequence at site i
-            double[] logProbs = new double[numStates];
+            likelihoodReadCountModel.getEmissionLogProbs(taxon, i, emissionLogProbs);
             for(int j = 0; j < numStates; j++){
-                logProbs[j] = stateLogProbabilities[j][i] + readCountLogLikelihoods[j][i];
+                logProbs[j] = stateLogProbabilities[i * numStates + j] + emissionLogProbs[j];
             }
-            stateProbabilities = normalizeLogProbs(logProbs);
-            newSeq[i] = sampleFromProbabilities(stateProbabilities);
+            newSeq[i] = CategoricalSampling.sampleFromLogProbs(logProbs, numStates, Randomizer.nextDouble());
         }
         mutableAlignment.setSiteValuesByTaxon(taxon, newSeq);
         return Double.POSITIVE_INFINITY;
     }
-
-    private int sampleFromProbabilities(double[] probabilities) {
-        double rand = Randomizer.nextDouble();
-        double cumulative = 0.0;
-        for (int i = 0; i < probabilities.length; i++) {
-            cumulative += probabilities[i];
-            if (rand < cumulative) return i;
-        }
-        return sampleFromProbabilities(probabilities);
-    }
-
-    private double[] normalizeLogProbs(double[] logProbs) {
-        // Find the maximum log probability for numerical stability
-        double maxLogProb = Double.NEGATIVE_INFINITY;
-        for (double logP : logProbs) {
-            maxLogProb = Math.max(maxLogProb, logP);
-        }
-        // Compute exp(logProb - max) for each element and sum them
-        double[] expProbs = new double[logProbs.length];
-        double sumExp = 0.0;
-        for (int i = 0; i < logProbs.length; i++) {
-            expProbs[i] = Math.exp(logProbs[i] - maxLogProb);
-            sumExp += expProbs[i];
-        }
-        // Normalize to get actual probabilities
-        double[] normalizedProbs = new double[logProbs.length];
-        for (int i = 0; i < logProbs.length; i++) {
-            normalizedProbs[i] = expProbs[i] / sumExp;
-        }
-        return normalizedProbs;
-    }
 }
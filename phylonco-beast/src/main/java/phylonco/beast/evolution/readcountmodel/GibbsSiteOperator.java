@@ -11,8 +11,11 @@ import beast.base.inference.Operator;
 import beast.base.util.Randomizer;
 import mutablealignment.MutableAlignment;
 import phylonco.beast.evolution.datatype.ReadCount;
+import phylonco.beast.evolution.likelihood.TransitionMatrixCache;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * Column-wise (site-wise) Gibbs sampler for leaf genotypes.
@@ -28,6 +31,35 @@ import java.util.Arrays;
  * under every rate category, a category is sampled, and node states are then
  * sampled using that category's transition matrices.
  *
+ * When all sites are sampled, partials are computed for a block of sites at a time
+ * in one post-order pass over the tree, and node states are then sampled site by site.
+ * Given the tree and parameters sites are independent, so with threads &gt; 1 blocks are
+ * sampled in parallel. Each site is sampled from its own random number stream, seeded from one draw
+ * of the BEAST random number generator and the site index, so the sampled states only depend on the
+ * seed, not on the number of threads or the block size. Serial sampling writes the states of each block
+ * straight to the alignment, threads stage the states of their current block and write them under a lock.
+ *
+ * When one site is sampled per proposal, the site is drawn from an {@link AliasTable} over the
+ * pattern weights. The weights are changed in place, so whoever changes them calls {@link #markWeightsChanged()}
+ * (as DataTemperedMCMC does when it adds sites), and the table is rebuilt on the next proposal.
+ * With entropyWeight &gt; 0, sites are also prioritised by the uncertainty of their genotypes:
+ * the selection weight of a site is its pattern weight times (1 + entropyWeight * H), where H is the
+ * mean entropy of the leaf genotype distributions from the last time the site was sampled, scaled to [0, 1].
+ * Sites that were not sampled yet have H = 1. The selection weights only depend on earlier proposals,
+ * not on the genotypes being resampled, so every proposal is still a Gibbs update.
+ * The selection weights keep adapting for the whole run, unless entropyProposals limits the number of
+ * proposals that update the entropies, after which the selection weights are fixed.
+ *
+ * Transition matrices are read once per proposal from a {@link TransitionMatrixCache},
+ * which only recalculates the matrices of branches that changed since the last proposal.
+ * The cache can be shared with a TreeLikelihoodWithError on the same substitution model.
+ *
+ * Resampled sites are reported to the read count model, which then only rescores the cells of those sites.
+ * With a {@link SiteUpdateTreeLikelihood} as treeLikelihood, every resampled site is reported to the
+ * tree likelihood, which then only prunes those sites again instead of the whole alignment.
+ * The partials of this operator are conditioned on the read counts rather than the sampled genotypes,
+ * so the tree likelihood computes the partials of the new leaf states itself.
+ *
  * <p>Example XML usage (sample one random site per proposal):</p>
  * <pre>
  * &lt;operator id="GibbsSiteOperator" spec="phylonco.beast.evolution.readcountmodel.GibbsSiteOperator"
@@ -59,7 +91,13 @@ import java.util.Arrays;
  *   <li>readCountModel: reference to LikelihoodReadCountModel</li>
  *   <li>readCount: reference to ReadCount data</li>
  *   <li>sampleAllSites: (optional) if true, sample all sites per proposal; default false</li>
+ *   <li>blockSize: (optional) number of sites pruned together when sampling all sites; default 64</li>
+ *   <li>threads: (optional) number of threads sampling blocks of sites when sampling all sites; default 1</li>
+ *   <li>entropyWeight: (optional) priority of sites with uncertain genotypes when sampling one site; default 0</li>
+ *   <li>entropyProposals: (optional) number of proposals that update the site entropies, 0 for all; default 0</li>
  *   <li>branchRateModel: (optional) reference to BranchRateModel for relaxed clocks</li>
+ *   <li>transitionMatrixCache: (optional) reference to a TransitionMatrixCache shared with a tree likelihood</li>
+ *   <li>treeLikelihood: (optional) reference to a SiteUpdateTreeLikelihood of the mutable alignment</li>
  * </ul>
  */
 @Description("Gibbs sampler that samples all leaf genotypes at a single site, " +
@@ -101,6 +139,39 @@ public class GibbsSiteOperator extends Operator {
             "if true, sample all sites in one proposal; if false (default), sample one random site",
             false);
 
+    public Input<Integer> blockSizeInput = new Input<>(
+            "blockSize",
+            "number of sites whose partials are computed together when sampling all sites, 1 to prune site by site",
+            64);
+
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "number of threads used to sample blocks of sites when sampling all sites, 1 for serial sampling",
+            1);
+
+    public Input<Double> entropyWeightInput = new Input<>(
+            "entropyWeight",
+            "priority of sites with uncertain genotypes when sampling one site, " +
+                    "0 (default) to choose sites in proportion to their pattern weight. " +
+                    "The priorities adapt to the sampled genotypes for the whole run unless entropyProposals is set",
+            0.0);
+
+    public Input<Long> entropyProposalsInput = new Input<>(
+            "entropyProposals",
+            "number of proposals that update the genotype entropies of sites when entropyWeight > 0, " +
+                    "after which the site priorities are fixed; 0 (default) to keep adapting for the whole run",
+            0L);
+
+    public Input<TransitionMatrixCache> transitionMatrixCacheInput = new Input<>(
+            "transitionMatrixCache",
+            "cache of transition matrices shared with a tree likelihood (optional)",
+            Input.Validate.OPTIONAL);
+
+    public Input<SiteUpdateTreeLikelihood> treeLikelihoodInput = new Input<>(
+            "treeLikelihood",
+            "tree likelihood of the mutable alignment that only recalculates the resampled sites (optional)",
+            Input.Validate.OPTIONAL);
+
     // Cached references
     private MutableAlignment alignment;
     private Tree tree;
@@ -110,6 +181,10 @@ public class GibbsSiteOperator extends Operator {
     private LikelihoodReadCountModel readCountModel;
     private ReadCount readCount;
     private boolean sampleAllSites;
+    private int blockSize;
+    private TransitionMatrixCache transitionMatrixCache;
+    private boolean ownsCache;          // cache created by this operator, not checked by the state
+    private SiteUpdateTreeLikelihood treeLikelihood;
 
     // Dimensions
     private int numNodes;
@@ -119,23 +194,44 @@ public class GibbsSiteOperator extends Operator {
     private int numCategories;
 
     // Pre-allocated arrays for efficiency
-    private double[][][] partials;      // [numCategories][numNodes][numStates] - partial likelihoods
-    private int[] sampledStates;        // [numNodes] - sampled state for each node
-    private int[] leafStates;           // [numTaxa] - leaf states for alignment update
-    private double[] transitionMatrix;  // [numStates * numStates] - reusable matrix
-    private double[] logProbs;          // [numStates] - reusable probability array
-    private double[] categoryLogProbs;  // [numCategories] - for sampling rate category
-    private int[][] coverages;          // [numTaxa][numSites] - precomputed coverages
+    private double[][][] transitionMatrices; // [numCategories][numNodes][numStates * numStates] - matrices for this proposal
     private double[] rootFrequencies;   // [numStates] - equilibrium frequencies
+    private double[] categoryProportions; // [numCategories] - rate category proportions
+    private SiteSampler sampler;        // scratch buffers for serial sampling
+
+    // Sampling all sites in blocks of sites, in parallel if threads > 1
+    private static final long SPLITMIX_INCREMENT = 0x9E3779B97F4A7C15L;
+    private ForkJoinPool pool;
+    private ThreadLocal<SiteSampler> threadSamplers;
+    private int[] activeSites;          // [numSites] - sites with weight > 0
 
     // Mapping from node number to taxon index
     private int[] nodeNrToTaxonIndex;
-    // Mapping from alignment taxon index to ReadCount taxon index
-    private int[] alignToRCIndex;
 
-    // Cached cumulative weights for weighted site sampling
-    private int[] cumulativeWeights;
-    private int totalWeight;
+    // Tree traversal for this proposal
+    private int[] leafNrs;              // leaf node numbers
+    private int[] postOrder;            // internal node numbers, children before parents
+    private int[] preOrder;             // non-root node numbers in the order they are sampled
+    private int[][] childNrs;           // [numNodes] - child node numbers
+    private int[] parentNrs;            // [numNodes] - parent node number
+    private int rootNr;
+    private int leafCount;
+    private int postOrderCount;
+    private int preOrderCount;
+
+    // Weighted site sampling, rebuilt when the pattern weights change
+    private AliasTable siteTable;
+    private boolean siteTableDirty;     // pattern weights changed since the site table was built
+    private double[] siteSelectionWeights; // [numSites] - pattern weights scaled by genotype uncertainty
+    private int activeSiteCount;        // number of sites with weight > 0
+
+    // Genotype uncertainty of sites for prioritised site sampling
+    private double entropyWeight;
+    private double[] siteEntropies;     // [numSites] - scaled mean entropy of leaf genotypes when last sampled
+    private int entropyUpdates;         // sites sampled since the site table was built
+    private boolean adaptEntropies;     // site entropies are updated when a site is sampled
+    private long entropyProposals;      // proposals that update site entropies, 0 for no limit
+    private long proposalCount;         // proposals since initialisation
 
     @Override
     public void initAndValidate() {
@@ -147,6 +243,10 @@ public class GibbsSiteOperator extends Operator {
         readCountModel = readCountModelInput.get();
         readCount = readCountInput.get();
         sampleAllSites = sampleAllSitesInput.get();
+        blockSize = sampleAllSites ? blockSizeInput.get() : 1;
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        }
 
         numStates = alignment.getDataType().getStateCount();
         numSites = alignment.getSiteCount();
@@ -154,37 +254,37 @@ public class GibbsSiteOperator extends Operator {
         numNodes = tree.getNodeCount();
         numCategories = siteModel.getCategoryCount();
 
-        // Build mapping from alignment taxon index to ReadCount taxon index
-        String[] rcTaxaNames = readCount.getTaxaNames();
-        alignToRCIndex = new int[numTaxa];
-        for (int i = 0; i < numTaxa; i++) {
-            String alignTaxonName = alignment.getTaxaNames().get(i);
-            alignToRCIndex[i] = i; // default: identity mapping
-            for (int j = 0; j < rcTaxaNames.length; j++) {
-                if (alignTaxonName.equals(rcTaxaNames[j].trim())) {
-                    alignToRCIndex[i] = j;
-                    break;
-                }
-            }
+        transitionMatrixCache = transitionMatrixCacheInput.get();
+        if (transitionMatrixCache == null) {
+            // keep the matrices of the current and the proposed branch lengths
+            transitionMatrixCache = new TransitionMatrixCache();
+            transitionMatrixCache.initByName(
+                    "substModel", substitutionModel,
+                    "matricesPerBranch", Math.max(8, 2 * numCategories));
+            ownsCache = true;
+        } else if (transitionMatrixCache.getSubstitutionModel() != substitutionModel) {
+            throw new IllegalArgumentException("transitionMatrixCache must use the substitution model of the site model");
+        }
+
+        treeLikelihood = treeLikelihoodInput.get();
+        if (treeLikelihood != null && treeLikelihood.dataInput.get() != alignment) {
+            throw new IllegalArgumentException("treeLikelihood must be calculated on the mutable alignment");
         }
 
         // Pre-allocate arrays
-        partials = new double[numCategories][numNodes][numStates];
-        sampledStates = new int[numNodes];
-        leafStates = new int[numTaxa];
-        transitionMatrix = new double[numStates * numStates];
-        logProbs = new double[numStates];
-        categoryLogProbs = new double[numCategories];
-
-        // Precompute coverages for all taxa and sites (indexed by alignment taxon order)
-        coverages = new int[numTaxa][numSites];
-        for (int i = 0; i < numTaxa; i++) {
-            for (int j = 0; j < numSites; j++) {
-                int[] counts = readCount.getReadCounts(alignToRCIndex[i], j);
-                for (int k = 0; k < counts.length; k++) {
-                    coverages[i][j] += counts[k];
-                }
-            }
+        leafNrs = new int[tree.getLeafNodeCount()];
+        postOrder = new int[tree.getInternalNodeCount()];
+        preOrder = new int[numNodes - 1];
+        childNrs = new int[numNodes][];
+        parentNrs = new int[numNodes];
+        transitionMatrices = new double[numCategories][numNodes][numStates * numStates];
+        sampler = new SiteSampler(false);
+        if (sampleAllSites) {
+            activeSites = new int[numSites];
+        }
+        if (sampleAllSites && threadsInput.get() > 1) {
+            pool = new ForkJoinPool(threadsInput.get());
+            threadSamplers = ThreadLocal.withInitial(() -> new SiteSampler(true));
         }
 
         // Build mapping from node numbers to taxon indices
@@ -196,43 +296,79 @@ public class GibbsSiteOperator extends Operator {
             nodeNrToTaxonIndex[leaf.getNr()] = taxonIndex;
         }
 
-        // Build cumulative weights for weighted site sampling
-        cumulativeWeights = new int[numSites];
-        updateCumulativeWeights();
+        // Site table for weighted site sampling, built on the first proposal
+        entropyWeight = sampleAllSites ? 0.0 : entropyWeightInput.get();
+        if (entropyWeight < 0) {
+            throw new IllegalArgumentException("entropyWeight must be non-negative");
+        }
+        entropyProposals = entropyProposalsInput.get();
+        if (entropyProposals < 0) {
+            throw new IllegalArgumentException("entropyProposals must be non-negative");
+        }
+        if (!sampleAllSites) {
+            siteTable = new AliasTable();
+            siteSelectionWeights = new double[numSites];
+            siteTableDirty = true;
+            if (entropyWeight > 0) {
+                siteEntropies = new double[numSites];
+                Arrays.fill(siteEntropies, 1.0);
+                adaptEntropies = true;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the site table before the next proposal. Must be called after the pattern weights
+     * of the alignment are changed in place.
+     */
+    public void markWeightsChanged() {
+        siteTableDirty = true;
     }
 
     /**
-     * Rebuild cumulative weight array from current pattern weights.
-     * Call this after pattern weights change (e.g. after DataTemperedMCMC adds sites).
+     * Rebuild the site table from the current pattern weights and site entropies.
      */
-    public void updateCumulativeWeights() {
-        int[] weights = alignment.getWeights();
-        totalWeight = 0;
+    private void updateSiteTable(int[] weights) {
+        siteTableDirty = false;
+        activeSiteCount = 0;
         for (int i = 0; i < numSites; i++) {
-            totalWeight += weights[i];
-            cumulativeWeights[i] = totalWeight;
+            siteSelectionWeights[i] = weights[i];
+            if (weights[i] > 0) {
+                activeSiteCount++;
+                if (entropyWeight > 0) {
+                    siteSelectionWeights[i] *= 1.0 + entropyWeight * siteEntropies[i];
+                }
+            }
         }
+        siteTable.build(siteSelectionWeights, numSites);
+        entropyUpdates = 0;
     }
 
     @Override
     public double proposal() {
         int[] weights = alignment.getWeights();
+        updateTraversal();
+        updateTransitionMatrices();
+        rootFrequencies = substitutionModel.getFrequencies();
+        categoryProportions = siteModel.getCategoryProportions(tree.getRoot());
         if (sampleAllSites) {
-            // Sample all active sites (skip sites with weight 0)
-            for (int siteIndex = 0; siteIndex < numSites; siteIndex++) {
-                if (weights[siteIndex] > 0) {
-                    sampleSite(siteIndex);
-                }
-            }
+            sampleAllSites(weights);
         } else {
-            // Sample one site with probability proportional to weight (binary search on cached cumulative weights)
-            if (totalWeight > 0) {
-                int r = Randomizer.nextInt(totalWeight);
-                int siteIndex = Arrays.binarySearch(cumulativeWeights, 0, numSites, r + 1);
-                if (siteIndex < 0) {
-                    siteIndex = -siteIndex - 1;
-                }
-                sampleSite(siteIndex);
+            // Sample one site with probability proportional to its selection weight.
+            // The site table is rebuilt lazily when the pattern weights changed, and while entropies
+            // adapt, once about as many sites were sampled as there are active sites.
+            if (adaptEntropies && entropyProposals > 0 && proposalCount >= entropyProposals) {
+                // fix the selection weights at the last entropies
+                adaptEntropies = false;
+                siteTableDirty = true;
+            }
+            if (siteTableDirty || (adaptEntropies && entropyUpdates >= activeSiteCount)) {
+                updateSiteTable(weights);
+            }
+            proposalCount++;
+            if (siteTable.getTotal() > 0) {
+                sampler.blockSites[0] = siteTable.sample(Randomizer.nextDouble());
+                sampler.sampleBlock(1);
             }
         }
 
@@ -241,209 +377,398 @@ public class GibbsSiteOperator extends Operator {
     }
 
     /**
-     * Sample all leaf genotypes at a single site.
+     * Sample all active sites (skip sites with weight 0) in blocks of sites, on the thread pool if threads &gt; 1.
+     * Site i uses a random number stream seeded from one draw of the BEAST random number generator and i,
+     * so the result does not depend on the number of threads or the block size.
+     * Leaf states are written to the alignment once the partials of their block are no longer needed.
      */
-    private void sampleSite(int siteIndex) {
-        // 1. Compute leaf partials (independent of rate category)
-        for (Node leaf : tree.getExternalNodes()) {
-            computeLeafPartial(leaf, siteIndex);
+    private void sampleAllSites(int[] weights) {
+        int activeCount = 0;
+        for (int siteIndex = 0; siteIndex < numSites; siteIndex++) {
+            if (weights[siteIndex] > 0) {
+                activeSites[activeCount++] = siteIndex;
+            }
         }
-
-        // 2. For each rate category, compute internal node partials
-        for (int cat = 0; cat < numCategories; cat++) {
-            computeInternalPartials(tree.getRoot(), cat);
+        final int siteCount = activeCount;
+        final int blocks = (siteCount + blockSize - 1) / blockSize;
+        final long seed = Randomizer.nextLong();
+        if (pool == null) {
+            for (int block = 0; block < blocks; block++) {
+                sampleBlock(sampler, seed, block, siteCount);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, blocks).parallel().forEach(
+                    block -> sampleBlock(threadSamplers.get(), seed, block, siteCount))).join();
         }
+    }
 
-        // 3. Sample rate category and root state
-        int category = sampleCategoryAndRootState();
+    private void sampleBlock(SiteSampler blockSampler, long seed, int block, int siteCount) {
+        int start = block * blockSize;
+        int blockCount = Math.min(blockSize, siteCount - start);
+        System.arraycopy(activeSites, start, blockSampler.blockSites, 0, blockCount);
+        blockSampler.seeded = true;
+        blockSampler.seed = seed;
+        blockSampler.sampleBlock(blockCount);
+    }
 
-        // 4. Sample all descendant states (pre-order traversal)
-        sampleDescendantStates(tree.getRoot(), category);
+    /**
+     * Seed of the random number stream of a site. Seeds of consecutive sites are scrambled,
+     * as streams seeded with values that differ by the stream increment would be the same sequence
+     * shifted by one draw.
+     */
+    private static long siteSeed(long seed, int siteIndex) {
+        return mix64(seed + siteIndex * SPLITMIX_INCREMENT);
+    }
 
-        // 5. Update leaf states in alignment
-        updateLeafStates(siteIndex);
+    /**
+     * SplitMix64 finaliser.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     /**
-     * Compute partial likelihood for a leaf node using read count model.
-     * Leaf partials are independent of rate category, so the same values
-     * are stored across all categories.
-     * partial[g] = P(read_counts | genotype = g)
+     * Set the states of a site in the mutable alignment and report the site to the likelihoods.
      */
-    private void computeLeafPartial(Node node, int siteIndex) {
-        int nodeNr = node.getNr();
-        int taxonIndex = nodeNrToTaxonIndex[nodeNr];
-        int rcIndex = alignToRCIndex[taxonIndex];
-        int[] counts = readCount.getReadCounts(rcIndex, siteIndex);
-        int coverage = coverages[taxonIndex][siteIndex];
-
-        for (int g = 0; g < numStates; g++) {
-            double logP = readCountModel.logLiklihoodRC(g, counts, coverage, rcIndex);
-            double partial = Math.exp(logP);
-            for (int cat = 0; cat < numCategories; cat++) {
-                partials[cat][nodeNr][g] = partial;
-            }
+    private void setSiteValues(int siteIndex, int[] states) {
+        alignment.setSiteValuesBySite(siteIndex, states);
+        readCountModel.markSiteChanged(siteIndex);
+        if (treeLikelihood != null) {
+            treeLikelihood.markSiteChanged(siteIndex);
         }
     }
 
     /**
-     * Recursively compute internal node partials for a specific rate category.
-     * Leaf partials must already be set before calling this.
+     * Store the node numbers of the current tree in traversal order.
      */
-    private void computeInternalPartials(Node node, int category) {
-        if (node.isLeaf()) return;
-
-        for (int i = 0; i < node.getChildCount(); i++) {
-            computeInternalPartials(node.getChild(i), category);
-        }
+    private void updateTraversal() {
+        Node root = tree.getRoot();
+        rootNr = root.getNr();
+        leafCount = 0;
+        postOrderCount = 0;
+        preOrderCount = 0;
+        updateTraversal(root);
+    }
 
+    private void updateTraversal(Node node) {
         int nodeNr = node.getNr();
-
-        // Initialize partials to 1 (for multiplication)
-        Arrays.fill(partials[category][nodeNr], 1.0);
-
-        // For each child, multiply in the contribution
-        for (int childIdx = 0; childIdx < node.getChildCount(); childIdx++) {
+        if (node.isLeaf()) {
+            leafNrs[leafCount++] = nodeNr;
+            return;
+        }
+        int childCount = node.getChildCount();
+        if (childNrs[nodeNr] == null || childNrs[nodeNr].length != childCount) {
+            childNrs[nodeNr] = new int[childCount];
+        }
+        for (int childIdx = 0; childIdx < childCount; childIdx++) {
             Node child = node.getChild(childIdx);
             int childNr = child.getNr();
+            childNrs[nodeNr][childIdx] = childNr;
+            parentNrs[childNr] = nodeNr;
+            // each child is sampled before the nodes below it
+            preOrder[preOrderCount++] = childNr;
+            updateTraversal(child);
+        }
+        postOrder[postOrderCount++] = nodeNr;
+    }
 
-            // Get transition matrix for this branch under this rate category
-            getTransitionMatrix(child, category, transitionMatrix);
-
-            // For each parent state, compute sum over child states
-            for (int parentState = 0; parentState < numStates; parentState++) {
-                double sum = 0.0;
-                for (int childState = 0; childState < numStates; childState++) {
-                    double transProb = transitionMatrix[parentState * numStates + childState];
-                    sum += transProb * partials[category][childNr][childState];
-                }
-                partials[category][nodeNr][parentState] *= sum;
+    /**
+     * Get the transition probability matrices of all branches under all rate categories.
+     * The tree and parameters do not change during a proposal, so this is done once per proposal.
+     */
+    private void updateTransitionMatrices() {
+        if (ownsCache) {
+            // the state only invalidates caches that are inputs of the posterior
+            transitionMatrixCache.invalidateIfModelChanged();
+        }
+        for (Node node : tree.getNodesAsArray()) {
+            if (node.isRoot()) continue;
+            int nodeNr = node.getNr();
+            double branchRate = (branchRateModel != null) ?
+                    branchRateModel.getRateForBranch(node) : 1.0;
+            for (int cat = 0; cat < numCategories; cat++) {
+                double rate = branchRate * siteModel.getRateForCategory(cat, node);
+                transitionMatrixCache.getTransitionProbabilities(
+                        node,
+                        node.getParent().getHeight(),
+                        node.getHeight(),
+                        rate,
+                        transitionMatrices[cat][nodeNr]
+                );
             }
         }
     }
 
     /**
-     * Get the transition probability matrix for a branch under a specific rate category.
+     * @return transition matrix of the branch above a node under a rate category, from the last proposal
      */
-    private void getTransitionMatrix(Node node, int category, double[] matrix) {
-        double branchRate = (branchRateModel != null) ?
-                branchRateModel.getRateForBranch(node) : 1.0;
-        double rate = branchRate * siteModel.getRateForCategory(category, node);
-
-        substitutionModel.getTransitionProbabilities(
-                node,
-                node.getParent().getHeight(),
-                node.getHeight(),
-                rate,
-                matrix
-        );
+    double[] getTransitionMatrix(int category, int nodeNr) {
+        return transitionMatrices[category][nodeNr];
     }
 
     /**
-     * Sample the rate category and root state jointly.
-     * P(cat, root=g) proportional to proportion[cat] * pi[g] * partials[cat][root][g]
-     * First marginalizes over root states to sample the category,
-     * then samples the root state within the selected category.
-     * Returns the sampled category index.
+     * Scratch buffers and random number stream for sampling blocks of sites on one thread.
+     * Tree traversal and transition matrices of the proposal are shared read only.
      */
-    private int sampleCategoryAndRootState() {
-        Node root = tree.getRoot();
-        int rootNr = root.getNr();
+    private class SiteSampler {
+
+        private final boolean staged;             // keep the states of a block and write them under a lock, for threads
+        private boolean seeded;                   // sample each site from its own random number stream
+        private long seed;                        // seed of the streams of the sites of this proposal
+        private long randomState;                 // SplitMix64 state of the stream of the current site if seeded
+        // partial likelihoods of a block of sites, [leafCount][blockSize][numStates] for the leaves,
+        // which do not depend on the rate category, followed by [internalCount][numCategories][blockSize][numStates]
+        private final double[] partials;
+        private final int[] blockSites;           // [blockSize] - site indices of the current block
+        private final int[][] stagedStates;       // [blockSize][numTaxa] - leaf states of the block if staged, else null
+        private final int[] sampledStates;        // [numNodes] - sampled state for each node
+        private final int[] leafStates;           // [numTaxa] - leaf states for alignment update
+        private final double[] logProbs;          // [numStates] - reusable probability array
+        private final double[] categoryLogProbs;  // [numCategories] - for sampling rate category
+        private final double[] leafLogProbs;      // [numStates] - read count log likelihoods of a leaf
+        private double leafEntropy;               // sum of the entropies of the leaf genotypes of the current site
+
+        SiteSampler(boolean staged) {
+            this.staged = staged;
+            int internalCount = numNodes - leafNrs.length;
+            partials = new double[(leafNrs.length + internalCount * numCategories) * blockSize * numStates];
+            blockSites = new int[blockSize];
+            stagedStates = staged ? new int[blockSize][numTaxa] : null;
+            sampledStates = new int[numNodes];
+            leafStates = new int[numTaxa];
+            logProbs = new double[numStates];
+            categoryLogProbs = new double[numCategories];
+            leafLogProbs = new double[numStates];
+        }
 
-        rootFrequencies = substitutionModel.getFrequencies();
-        double[] proportions = siteModel.getCategoryProportions(root);
+        /**
+         * Sample all leaf genotypes at the first blockCount sites of blockSites.
+         * Partials of all sites in the block are computed first, then each site is sampled.
+         */
+        void sampleBlock(int blockCount) {
+            // 1. Compute leaf partials (independent of rate category)
+            computeLeafPartials(blockCount);
 
-        // Compute marginal log-likelihood for each category
-        double maxCatLogProb = Double.NEGATIVE_INFINITY;
-        for (int cat = 0; cat < numCategories; cat++) {
-            double marginal = 0.0;
-            for (int g = 0; g < numStates; g++) {
-                marginal += rootFrequencies[g] * partials[cat][rootNr][g];
+            // 2. For each rate category, compute internal node partials
+            for (int cat = 0; cat < numCategories; cat++) {
+                computeInternalPartials(cat, blockCount);
+            }
+
+            for (int b = 0; b < blockCount; b++) {
+                if (seeded) {
+                    randomState = siteSeed(seed, blockSites[b]);
+                }
+
+                // 3. Sample rate category and root state
+                int category = sampleCategoryAndRootState(b);
+
+                // 4. Sample all descendant states (pre-order traversal)
+                leafEntropy = 0.0;
+                sampleDescendantStates(b, category);
+                if (adaptEntropies) {
+                    // mean leaf entropy, scaled by the largest possible entropy
+                    siteEntropies[blockSites[b]] = leafEntropy / (leafCount * Math.log(numStates));
+                    entropyUpdates++;
+                }
+
+                // 5. Update leaf states in alignment
+                updateLeafStates(b);
+            }
+            if (staged) {
+                synchronized (GibbsSiteOperator.this) {
+                    for (int b = 0; b < blockCount; b++) {
+                        setSiteValues(blockSites[b], stagedStates[b]);
+                    }
+                }
             }
-            categoryLogProbs[cat] = Math.log(proportions[cat]) + Math.log(marginal);
-            maxCatLogProb = Math.max(maxCatLogProb, categoryLogProbs[cat]);
         }
 
-        // Sample rate category
-        int sampledCategory = sampleFromLogProbs(categoryLogProbs, numCategories, maxCatLogProb);
+        /**
+         * Offset of the partials of a node, rate category and site of the block.
+         * Leaves have the node numbers 0 to leafCount - 1 and one partial for all rate categories.
+         */
+        private int partialsOffset(int nodeNr, int category, int b) {
+            if (nodeNr < leafCount) {
+                return (nodeNr * blockSize + b) * numStates;
+            }
+            return ((leafCount + (nodeNr - leafCount) * numCategories + category) * blockSize + b) * numStates;
+        }
 
-        // Sample root state within the selected category
-        double maxLogProb = Double.NEGATIVE_INFINITY;
-        for (int g = 0; g < numStates; g++) {
-            logProbs[g] = Math.log(rootFrequencies[g]) + Math.log(partials[sampledCategory][rootNr][g]);
-            maxLogProb = Math.max(maxLogProb, logProbs[g]);
+        /**
+         * Compute partial likelihoods for the leaves using read count model.
+         * Leaf partials are independent of rate category, so they are stored once for all categories.
+         * partial[g] = P(read_counts | genotype = g)
+         */
+        private void computeLeafPartials(int blockCount) {
+            for (int l = 0; l < leafCount; l++) {
+                int nodeNr = leafNrs[l];
+                int taxonIndex = nodeNrToTaxonIndex[nodeNr];
+                for (int b = 0; b < blockCount; b++) {
+                    readCountModel.getEmissionLogProbs(taxonIndex, blockSites[b], leafLogProbs);
+                    int offset = partialsOffset(nodeNr, 0, b);
+                    for (int g = 0; g < numStates; g++) {
+                        partials[offset + g] = Math.exp(leafLogProbs[g]);
+                    }
+                }
+            }
         }
-        sampledStates[rootNr] = sampleFromLogProbs(logProbs, numStates, maxLogProb);
 
-        return sampledCategory;
-    }
+        /**
+         * Compute internal node partials for a specific rate category for all sites of the block,
+         * visiting children before parents.
+         * Leaf partials must already be set before calling this.
+         */
+        private void computeInternalPartials(int category, int blockCount) {
+            final int rowBlocks = numStates & ~3;
+            for (int i = 0; i < postOrderCount; i++) {
+                int nodeNr = postOrder[i];
+                int nodeOffset = partialsOffset(nodeNr, category, 0);
+
+                // Initialize partials to 1 (for multiplication)
+                Arrays.fill(partials, nodeOffset, nodeOffset + blockCount * numStates, 1.0);
+
+                // For each child, multiply in the contribution
+                for (int childNr : childNrs[nodeNr]) {
+                    // Transition matrix for this branch under this rate category
+                    double[] transitionMatrix = transitionMatrices[category][childNr];
+                    int childOffset = partialsOffset(childNr, category, 0);
+
+                    for (int b = 0; b < blockCount; b++) {
+                        int u = nodeOffset + b * numStates;
+                        int v = childOffset + b * numStates;
+                        // For each parent state, compute sum over child states,
+                        // four parent states at a time so the sums are independent
+                        int parentState = 0;
+                        for (; parentState < rowBlocks; parentState += 4) {
+                            int w = parentState * numStates;
+                            double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+                            for (int childState = 0; childState < numStates; childState++) {
+                                double childPartial = partials[v + childState];
+                                sum0 += transitionMatrix[w + childState] * childPartial;
+                                sum1 += transitionMatrix[w + numStates + childState] * childPartial;
+                                sum2 += transitionMatrix[w + 2 * numStates + childState] * childPartial;
+                                sum3 += transitionMatrix[w + 3 * numStates + childState] * childPartial;
+                            }
+                            partials[u + parentState] *= sum0;
+                            partials[u + parentState + 1] *= sum1;
+                            partials[u + parentState + 2] *= sum2;
+                            partials[u + parentState + 3] *= sum3;
+                        }
+                        for (; parentState < numStates; parentState++) {
+                            double sum = 0.0;
+                            int w = parentState * numStates;
+                            for (int childState = 0; childState < numStates; childState++) {
+                                sum += transitionMatrix[w + childState] * partials[v + childState];
+                            }
+                            partials[u + parentState] *= sum;
+                        }
+                    }
+                }
+            }
+        }
 
-    /**
-     * Pre-order traversal to sample all descendant states using the selected rate category.
-     * For each node: P(node = g | parent) proportional to P(g | parentState) * partial[node][g]
-     */
-    private void sampleDescendantStates(Node node, int category) {
-        for (int childIdx = 0; childIdx < node.getChildCount(); childIdx++) {
-            Node child = node.getChild(childIdx);
-            int childNr = child.getNr();
-            int parentState = sampledStates[node.getNr()];
+        /**
+         * Sample the rate category and root state jointly for site b of the block.
+         * P(cat, root=g) proportional to proportion[cat] * pi[g] * partials[cat][root][g]
+         * First marginalizes over root states to sample the category,
+         * then samples the root state within the selected category.
+         * Returns the sampled category index.
+         */
+        private int sampleCategoryAndRootState(int b) {
+            // Compute marginal log-likelihood for each category
+            double maxCatLogProb = Double.NEGATIVE_INFINITY;
+            for (int cat = 0; cat < numCategories; cat++) {
+                int offset = partialsOffset(rootNr, cat, b);
+                double marginal = 0.0;
+                for (int g = 0; g < numStates; g++) {
+                    marginal += rootFrequencies[g] * partials[offset + g];
+                }
+                categoryLogProbs[cat] = Math.log(categoryProportions[cat]) + Math.log(marginal);
+                maxCatLogProb = Math.max(maxCatLogProb, categoryLogProbs[cat]);
+            }
 
-            // Get transition matrix
-            getTransitionMatrix(child, category, transitionMatrix);
+            // Sample rate category
+            int sampledCategory = sampleFromLogProbs(categoryLogProbs, numCategories, maxCatLogProb);
 
-            // Compute log probabilities for each child state
+            // Sample root state within the selected category
+            int offset = partialsOffset(rootNr, sampledCategory, b);
             double maxLogProb = Double.NEGATIVE_INFINITY;
             for (int g = 0; g < numStates; g++) {
-                double transProb = transitionMatrix[parentState * numStates + g];
-                logProbs[g] = Math.log(transProb) + Math.log(partials[category][childNr][g]);
+                logProbs[g] = Math.log(rootFrequencies[g]) + Math.log(partials[offset + g]);
                 maxLogProb = Math.max(maxLogProb, logProbs[g]);
             }
+            sampledStates[rootNr] = sampleFromLogProbs(logProbs, numStates, maxLogProb);
 
-            // Sample child state
-            sampledStates[childNr] = sampleFromLogProbs(logProbs, numStates, maxLogProb);
+            return sampledCategory;
+        }
 
-            // Recurse to children
-            if (!child.isLeaf()) {
-                sampleDescendantStates(child, category);
+        /**
+         * Pre-order traversal to sample all descendant states of site b of the block using the selected rate category.
+         * For each node: P(node = g | parent) proportional to P(g | parentState) * partial[node][g]
+         */
+        private void sampleDescendantStates(int b, int category) {
+            for (int i = 0; i < preOrderCount; i++) {
+                int childNr = preOrder[i];
+                int parentState = sampledStates[parentNrs[childNr]];
+
+                // Get transition matrix
+                double[] transitionMatrix = transitionMatrices[category][childNr];
+                int offset = partialsOffset(childNr, category, b);
+
+                // Compute log probabilities for each child state
+                double maxLogProb = Double.NEGATIVE_INFINITY;
+                for (int g = 0; g < numStates; g++) {
+                    double transProb = transitionMatrix[parentState * numStates + g];
+                    logProbs[g] = Math.log(transProb) + Math.log(partials[offset + g]);
+                    maxLogProb = Math.max(maxLogProb, logProbs[g]);
+                }
+
+                // Sample child state
+                if (adaptEntropies && nodeNrToTaxonIndex[childNr] >= 0) {
+                    double sumExp = CategoricalSampling.expInPlace(logProbs, numStates, maxLogProb);
+                    leafEntropy += CategoricalSampling.entropy(logProbs, numStates, sumExp);
+                    double u = seeded ? nextSiteDouble() : Randomizer.nextDouble();
+                    sampledStates[childNr] = CategoricalSampling.sample(logProbs, numStates, sumExp, u);
+                } else {
+                    sampledStates[childNr] = sampleFromLogProbs(logProbs, numStates, maxLogProb);
+                }
             }
         }
-    }
 
-    /**
-     * Update leaf states in the mutable alignment.
-     */
-    private void updateLeafStates(int siteIndex) {
-        for (Node leaf : tree.getExternalNodes()) {
-            int nodeNr = leaf.getNr();
-            int taxonIndex = nodeNrToTaxonIndex[nodeNr];
-            leafStates[taxonIndex] = sampledStates[nodeNr];
+        /**
+         * Update leaf states of site b of the block in the mutable alignment and report the site to the likelihoods,
+         * or keep them until the block is sampled if staged.
+         */
+        private void updateLeafStates(int b) {
+            int[] states = staged ? stagedStates[b] : leafStates;
+            for (int l = 0; l < leafCount; l++) {
+                int nodeNr = leafNrs[l];
+                int taxonIndex = nodeNrToTaxonIndex[nodeNr];
+                states[taxonIndex] = sampledStates[nodeNr];
+            }
+            if (!staged) {
+                setSiteValues(blockSites[b], leafStates);
+            }
         }
-        alignment.setSiteValuesBySite(siteIndex, leafStates);
-    }
 
-    /**
-     * Sample a state from log probabilities using log-sum-exp for numerical stability.
-     */
-    private int sampleFromLogProbs(double[] logProbs, int size, double maxLogProb) {
-        // Convert to probabilities using log-sum-exp trick
-        double sumExp = 0.0;
-        double[] probs = new double[size];
-        for (int i = 0; i < size; i++) {
-            probs[i] = Math.exp(logProbs[i] - maxLogProb);
-            sumExp += probs[i];
+        /**
+         * Sample a state from log probabilities using log-sum-exp for numerical stability.
+         * The log probabilities are overwritten.
+         */
+        private int sampleFromLogProbs(double[] logProbs, int size, double maxLogProb) {
+            double sumExp = CategoricalSampling.expInPlace(logProbs, size, maxLogProb);
+            double u = seeded ? nextSiteDouble() : Randomizer.nextDouble();
+            return CategoricalSampling.sample(logProbs, size, sumExp, u);
         }
 
-        // Normalize and sample
-        double rand = Randomizer.nextDouble() * sumExp;
-        double cumulative = 0.0;
-        for (int i = 0; i < size; i++) {
-            cumulative += probs[i];
-            if (rand < cumulative) {
-                return i;
-            }
+        /**
+         * Next uniform random number in [0, 1) of the stream of the current site, without allocating a generator.
+         */
+        private double nextSiteDouble() {
+            randomState += SPLITMIX_INCREMENT;
+            return (mix64(randomState) >>> 11) * 0x1.0p-53;
         }
-
-        // Fallback (should not reach here)
-        return size - 1;
     }
 }
@@ -0,0 +1,496 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import phylonco.beast.evolution.likelihood.TransitionMatrixCache;
+
+import java.util.Arrays;
+
+/**
+ * Site log likelihoods of a mutable alignment for every state of one leaf, given the states of all other leaves.
+ *
+ * Computes the same values as calling {@link MATreeLikelihood#getLogProbsForStateSequence(int, int[])}
+ * with each constant state sequence, but in one pass over the tree instead of one pass per state.
+ * {@link #update()} computes the post-order partials of all internal nodes. For each site of a leaf,
+ * {@link #calculateLogProbs(int, double[])} then carries the pre-order (outside) partials down the path
+ * from the root to the leaf, multiplying in the post-order partials of the subtrees off the path.
+ *
+ * When the leaves are resampled one after the other, {@link #updateLeaf(int)} recomputes the post-order
+ * partials on the path from a changed leaf to the root, so a sweep over all leaves costs a pass over
+ * the path of each leaf instead of a pass over the tree per state.
+ *
+ * When only one leaf is needed, {@link #updatePathFromCore(int)} instead copies the post-order partials
+ * of the subtrees off the path of the leaf from the likelihood core of the tree likelihood, so the cost
+ * does not depend on the size of the tree. {@link #updateNodeFromCore(Node)} recomputes a node whose
+ * children changed since the tree likelihood was last calculated, e.g. after an exchange.
+ *
+ * Partials are rescaled at every node, so the log likelihoods do not underflow on large trees.
+ */
+public class LeafConditionalLikelihood {
+
+    private final MATreeLikelihood treeLikelihood;
+    private final MutableAlignment alignment;
+    private final TreeInterface tree;
+    private final SiteModel.Base siteModel;
+    private final BranchRateModel branchRateModel;
+    private final SubstitutionModel substitutionModel;
+    private final Frequencies rootFrequenciesModel;
+    private final SubstitutionModel transitionModel;
+
+    private final int numStates;
+    private final int numSites;
+    private final int numCategories;
+    private final int sitePartialsSize;            // numCategories * numStates
+
+    private final double[][][] transitionMatrices; // [numCategories][numNodes][numStates * numStates]
+    private final double[][] partials;             // [numNodes][numSites * numCategories * numStates] - post-order partials of internal nodes
+    private final double[][] logScales;            // [numNodes][numSites] - log of the scale factors in the subtree of each internal node
+    private final int[][] leafStates;              // [numNodes][numSites] - states of each leaf, -1 if ambiguous
+    private final double[] outside;                // [numCategories * numStates] - pre-order partials on the path at one site
+    private final double[] nextOutside;            // [numCategories * numStates]
+    private final double[] below;                  // [numStates] - partials of the path node without the path child
+    private final Node[] path;                     // nodes on the path, from the root down to the leaf
+    private final int[] leafNrs;                   // leaf node numbers
+    private final int[] nodeNrToTaxonIndex;        // [numNodes]
+    private final int[] taxonIndexToNodeNr;        // [numTaxa]
+    private double[] corePartials;                 // [numCategories * numSites * numStates] - partials of a node in the likelihood core
+
+    /**
+     * Uses the tree, site model, branch rate model and root frequencies of the tree likelihood.
+     * @param transitionModel provides transition matrices, either the substitution model of the site model
+     *                        or a {@link TransitionMatrixCache} of it
+     */
+    public LeafConditionalLikelihood(MATreeLikelihood treeLikelihood, SubstitutionModel transitionModel) {
+        this(treeLikelihood,
+                (MutableAlignment) treeLikelihood.dataInput.get(),
+                treeLikelihood.treeInput.get(),
+                (SiteModel.Base) treeLikelihood.siteModelInput.get(),
+                treeLikelihood.branchRateModelInput.get(),
+                treeLikelihood.rootFrequenciesInput.get(),
+                transitionModel);
+    }
+
+    public LeafConditionalLikelihood(MutableAlignment alignment, TreeInterface tree, SiteModel.Base siteModel,
+                                     BranchRateModel branchRateModel, Frequencies rootFrequencies,
+                                     SubstitutionModel transitionModel) {
+        this(null, alignment, tree, siteModel, branchRateModel, rootFrequencies, transitionModel);
+    }
+
+    private LeafConditionalLikelihood(MATreeLikelihood treeLikelihood, MutableAlignment alignment, TreeInterface tree,
+                                      SiteModel.Base siteModel, BranchRateModel branchRateModel,
+                                      Frequencies rootFrequencies, SubstitutionModel transitionModel) {
+        this.treeLikelihood = treeLikelihood;
+        this.alignment = alignment;
+        this.tree = tree;
+        this.siteModel = siteModel;
+        this.branchRateModel = branchRateModel;
+        this.substitutionModel = siteModel.getSubstitutionModel();
+        this.rootFrequenciesModel = rootFrequencies;
+        this.transitionModel = transitionModel;
+
+        numStates = alignment.getDataType().getStateCount();
+        numSites = alignment.getSiteCount();
+        numCategories = siteModel.getCategoryCount();
+        sitePartialsSize = numCategories * numStates;
+        int numNodes = tree.getNodeCount();
+
+        transitionMatrices = new double[numCategories][numNodes][numStates * numStates];
+        partials = new double[numNodes][];
+        logScales = new double[numNodes][];
+        leafStates = new int[numNodes][];
+        outside = new double[sitePartialsSize];
+        nextOutside = new double[sitePartialsSize];
+        below = new double[numStates];
+        path = new Node[numNodes];
+        leafNrs = new int[tree.getLeafNodeCount()];
+
+        nodeNrToTaxonIndex = new int[numNodes];
+        Arrays.fill(nodeNrToTaxonIndex, -1);
+        taxonIndexToNodeNr = new int[alignment.getTaxonCount()];
+        Arrays.fill(taxonIndexToNodeNr, -1);
+        int i = 0;
+        for (Node leaf : tree.getExternalNodes()) {
+            leafNrs[i++] = leaf.getNr();
+            int taxonIndex = alignment.getTaxonIndex(leaf.getID());
+            nodeNrToTaxonIndex[leaf.getNr()] = taxonIndex;
+            taxonIndexToNodeNr[taxonIndex] = leaf.getNr();
+        }
+        // leaves have the first node numbers, which do not change when the tree changes
+        for (int nr = 0; nr < numNodes; nr++) {
+            if (nodeNrToTaxonIndex[nr] >= 0) {
+                leafStates[nr] = new int[numSites];
+            } else {
+                partials[nr] = new double[numSites * sitePartialsSize];
+                logScales[nr] = new double[numSites];
+            }
+        }
+    }
+
+    /**
+     * @return index in the alignment of the taxon of the leaf with the given node number
+     */
+    public int getTaxonIndex(int leafNr) {
+        return nodeNrToTaxonIndex[leafNr];
+    }
+
+    /**
+     * @return node number of the leaf of the taxon with the given index in the alignment
+     */
+    public int getLeafNr(int taxonIndex) {
+        return taxonIndexToNodeNr[taxonIndex];
+    }
+
+    /**
+     * Reads the transition matrices and leaf states, and computes the post-order partials of all internal nodes.
+     * Must be called after the tree, parameters or alignment changed, before calculating log probabilities.
+     */
+    public void update() {
+        updateTransitionMatrices();
+        for (int leafNr : leafNrs) {
+            updateLeafStates(leafNr);
+        }
+        updatePartials(tree.getRoot());
+    }
+
+    /**
+     * Reads the states of a leaf that was changed in the alignment since the last update,
+     * and recomputes the post-order partials on the path from the leaf to the root.
+     */
+    public void updateLeaf(int leafNr) {
+        updateLeafStates(leafNr);
+        for (Node node = tree.getNode(leafNr).getParent(); node != null; node = node.getParent()) {
+            computePartials(node);
+        }
+    }
+
+    /**
+     * Reads the transition matrices and states needed for the conditional log probabilities of one leaf,
+     * and copies the post-order partials of the subtrees off the path from the leaf to the root from
+     * the likelihood core. Only valid while the likelihood core is up to date with the tree and alignment.
+     * The core may scale its partials, so the log probabilities are then only known up to a constant per site,
+     * which cancels when they are normalised over the states of the leaf.
+     */
+    public void updatePathFromCore(int leafNr) {
+        if (treeLikelihood == null) {
+            throw new IllegalStateException("partials can only be read from the core of a tree likelihood");
+        }
+        int pathLength = storePath(tree.getNode(leafNr));
+        if (siteModel.getProportionInvariant() > 0) {
+            // invariant sites need the states of all leaves
+            for (int nr : leafNrs) {
+                updateLeafStates(nr);
+            }
+        }
+        for (int p = 0; p < pathLength - 1; p++) {
+            Node pathChild = path[p + 1];
+            updateTransitionMatrices(pathChild);
+            for (Node child : path[p].getChildren()) {
+                if (child != pathChild) {
+                    updateChildFromCore(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the post-order partials of a node whose children changed since the likelihood core
+     * was last updated, using the partials of its children in the likelihood core.
+     * The subtrees of the children must be unchanged since then.
+     */
+    public void updateNodeFromCore(Node node) {
+        for (Node child : node.getChildren()) {
+            updateChildFromCore(child);
+        }
+        computePartials(node);
+    }
+
+    /**
+     * Reads the transition matrices of the branch above child and its states or post-order partials.
+     */
+    private void updateChildFromCore(Node child) {
+        updateTransitionMatrices(child);
+        if (child.isLeaf()) {
+            updateLeafStates(child.getNr());
+            return;
+        }
+        LikelihoodCore core = treeLikelihood.getLikelihoodCore();
+        if (core.getUseScaling() && siteModel.getProportionInvariant() > 0) {
+            // invariant sites need unscaled partials, so compute the subtree
+            updateSubtree(child);
+            return;
+        }
+        if (corePartials == null) {
+            corePartials = new double[numCategories * numSites * numStates];
+        }
+        // core partials are ordered by category, then site, then state
+        core.getNodePartials(child.getNr(), corePartials);
+        double[] childPartials = partials[child.getNr()];
+        for (int cat = 0; cat < numCategories; cat++) {
+            for (int s = 0; s < numSites; s++) {
+                System.arraycopy(corePartials, (cat * numSites + s) * numStates,
+                        childPartials, s * sitePartialsSize + cat * numStates, numStates);
+            }
+        }
+        Arrays.fill(logScales[child.getNr()], 0.0);
+    }
+
+    /**
+     * Reads the transition matrices and leaf states in the subtree of node and computes its post-order partials.
+     */
+    private void updateSubtree(Node node) {
+        for (Node child : node.getChildren()) {
+            updateTransitionMatrices(child);
+            if (child.isLeaf()) {
+                updateLeafStates(child.getNr());
+            } else {
+                updateSubtree(child);
+            }
+        }
+        computePartials(node);
+    }
+
+    /**
+     * Computes the site log likelihoods of the alignment when the leaf with the given node number has state g,
+     * for every site and state. The states of the leaf itself are ignored.
+     * @param logProbs receives the log likelihood of site s and state g at index s * numStates + g
+     */
+    public void calculateLogProbs(int leafNr, double[] logProbs) {
+        int pathLength = storePath(tree.getNode(leafNr));
+        double[] proportions = siteModel.getCategoryProportions(tree.getRoot());
+        double[] rootFrequencies = rootFrequenciesModel != null ?
+                rootFrequenciesModel.getFreqs() : substitutionModel.getFrequencies();
+        double proportionInvariant = siteModel.getProportionInvariant();
+
+        for (int s = 0; s < numSites; s++) {
+            double logScale = 0.0;
+
+            // pre-order partials of the root are the root frequencies
+            for (int cat = 0; cat < numCategories; cat++) {
+                System.arraycopy(rootFrequencies, 0, outside, cat * numStates, numStates);
+            }
+
+            // carry the pre-order partials down the path, multiplying in the subtrees off the path
+            for (int p = 0; p < pathLength - 1; p++) {
+                Node node = path[p];
+                Node pathChild = path[p + 1];
+                for (Node child : node.getChildren()) {
+                    if (child != pathChild && !child.isLeaf()) {
+                        logScale += logScales[child.getNr()][s];
+                    }
+                }
+                double max = 0.0;
+                for (int cat = 0; cat < numCategories; cat++) {
+                    int offset = cat * numStates;
+                    System.arraycopy(outside, offset, below, 0, numStates);
+                    for (Node child : node.getChildren()) {
+                        if (child != pathChild) {
+                            multiplyChild(child, cat, s, below, 0);
+                        }
+                    }
+                    double[] matrix = transitionMatrices[cat][pathChild.getNr()];
+                    for (int x = 0; x < numStates; x++) {
+                        double sum = 0.0;
+                        for (int y = 0; y < numStates; y++) {
+                            sum += below[y] * matrix[y * numStates + x];
+                        }
+                        nextOutside[offset + x] = sum;
+                        max = Math.max(max, sum);
+                    }
+                }
+                logScale += rescale(nextOutside, 0, sitePartialsSize, max);
+                System.arraycopy(nextOutside, 0, outside, 0, sitePartialsSize);
+            }
+
+            // pre-order partials of the leaf are its conditional likelihoods
+            int base = s * numStates;
+            Arrays.fill(logProbs, base, base + numStates, 0.0);
+            for (int cat = 0; cat < numCategories; cat++) {
+                int offset = cat * numStates;
+                for (int g = 0; g < numStates; g++) {
+                    logProbs[base + g] += proportions[cat] * outside[offset + g];
+                }
+            }
+            if (proportionInvariant > 0) {
+                int constantState = getConstantState(leafNr, s);
+                if (constantState >= 0) {
+                    logProbs[base + constantState] +=
+                            proportionInvariant * rootFrequencies[constantState] * Math.exp(-logScale);
+                }
+            }
+            for (int g = 0; g < numStates; g++) {
+                logProbs[base + g] = Math.log(logProbs[base + g]) + logScale;
+            }
+        }
+    }
+
+    /**
+     * Computes the post-order partials of all internal nodes in the subtree of node, children before parents.
+     */
+    private void updatePartials(Node node) {
+        if (node.isLeaf()) {
+            return;
+        }
+        for (Node child : node.getChildren()) {
+            updatePartials(child);
+        }
+        computePartials(node);
+    }
+
+    /**
+     * Computes the post-order partials of an internal node at all sites under all rate categories.
+     * The partials of internal children must be computed already.
+     */
+    private void computePartials(Node node) {
+        int nodeNr = node.getNr();
+        double[] nodePartials = partials[nodeNr];
+        double[] nodeLogScales = logScales[nodeNr];
+        Arrays.fill(nodePartials, 1.0);
+        Arrays.fill(nodeLogScales, 0.0);
+        for (Node child : node.getChildren()) {
+            for (int s = 0; s < numSites; s++) {
+                for (int cat = 0; cat < numCategories; cat++) {
+                    multiplyChild(child, cat, s, nodePartials, s * sitePartialsSize + cat * numStates);
+                }
+            }
+            if (!child.isLeaf()) {
+                double[] childLogScales = logScales[child.getNr()];
+                for (int s = 0; s < numSites; s++) {
+                    nodeLogScales[s] += childLogScales[s];
+                }
+            }
+        }
+        for (int s = 0; s < numSites; s++) {
+            int offset = s * sitePartialsSize;
+            double max = 0.0;
+            for (int i = offset; i < offset + sitePartialsSize; i++) {
+                max = Math.max(max, nodePartials[i]);
+            }
+            nodeLogScales[s] += rescale(nodePartials, offset, offset + sitePartialsSize, max);
+        }
+    }
+
+    /**
+     * Multiplies the partials of the branch above child at site s under rate category cat into
+     * the parent partials starting at offset. The partials of internal children must be computed already.
+     */
+    private void multiplyChild(Node child, int cat, int s, double[] parentPartials, int offset) {
+        int childNr = child.getNr();
+        double[] matrix = transitionMatrices[cat][childNr];
+        if (child.isLeaf()) {
+            int state = leafStates[childNr][s];
+            if (state >= 0) {
+                for (int y = 0; y < numStates; y++) {
+                    parentPartials[offset + y] *= matrix[y * numStates + state];
+                }
+            }
+            // ambiguous states contribute a factor of one, as in the tree likelihood
+            return;
+        }
+        double[] childPartials = partials[childNr];
+        int childOffset = s * sitePartialsSize + cat * numStates;
+        for (int y = 0; y < numStates; y++) {
+            double sum = 0.0;
+            int w = y * numStates;
+            for (int x = 0; x < numStates; x++) {
+                sum += matrix[w + x] * childPartials[childOffset + x];
+            }
+            parentPartials[offset + y] *= sum;
+        }
+    }
+
+    /**
+     * Divides the values from start to end by max if it is positive.
+     * @return log of the scale factor
+     */
+    private static double rescale(double[] values, int start, int end, double max) {
+        if (max <= 0.0 || max == 1.0) {
+            return 0.0;
+        }
+        for (int i = start; i < end; i++) {
+            values[i] /= max;
+        }
+        return Math.log(max);
+    }
+
+    /**
+     * Stores the nodes on the path from the leaf to the root, from the root down.
+     * @return number of nodes on the path
+     */
+    private int storePath(Node leaf) {
+        int length = 0;
+        for (Node node = leaf; node != null; node = node.getParent()) {
+            length++;
+        }
+        int i = length;
+        for (Node node = leaf; node != null; node = node.getParent()) {
+            path[--i] = node;
+        }
+        return length;
+    }
+
+    /**
+     * Gets the transition probability matrices of all branches under all rate categories.
+     */
+    private void updateTransitionMatrices() {
+        for (Node node : tree.getNodesAsArray()) {
+            if (node.isRoot()) continue;
+            updateTransitionMatrices(node);
+        }
+    }
+
+    /**
+     * Gets the transition probability matrices of the branch above node under all rate categories.
+     */
+    private void updateTransitionMatrices(Node node) {
+        int nodeNr = node.getNr();
+        double branchRate = (branchRateModel != null) ? branchRateModel.getRateForBranch(node) : 1.0;
+        for (int cat = 0; cat < numCategories; cat++) {
+            double rate = branchRate * siteModel.getRateForCategory(cat, node);
+            transitionModel.getTransitionProbabilities(
+                    node,
+                    node.getParent().getHeight(),
+                    node.getHeight(),
+                    rate,
+                    transitionMatrices[cat][nodeNr]
+            );
+        }
+    }
+
+    /**
+     * Reads the states of a leaf from the alignment, storing -1 for ambiguous states.
+     */
+    private void updateLeafStates(int leafNr) {
+        DataType dataType = alignment.getDataType();
+        int taxonIndex = nodeNrToTaxonIndex[leafNr];
+        int[] states = leafStates[leafNr];
+        for (int s = 0; s < numSites; s++) {
+            int[] statesForCode = dataType.getStatesForCode(alignment.getPattern(taxonIndex, s));
+            states[s] = statesForCode.length == 1 ? statesForCode[0] : -1;
+        }
+    }
+
+    /**
+     * @return the state shared by all leaves other than leafNr at site s, or -1 if they differ
+     */
+    private int getConstantState(int leafNr, int s) {
+        int constantState = -1;
+        for (int nr : leafNrs) {
+            if (nr == leafNr) continue;
+            int state = leafStates[nr][s];
+            if (state < 0 || (constantState >= 0 && state != constantState)) {
+                return -1;
+            }
+            constantState = state;
+        }
+        return constantState;
+    }
+
+}
@@ -14,8 +14,12 @@ import phylonco.beast.evolution.datatype.NucleotideDiploid10;
 import phylonco.beast.evolution.datatype.NucleotideDiploid16;
 import phylonco.beast.evolution.datatype.ReadCount;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 public class LikelihoodReadCountModel extends Distribution {
@@ -32,6 +36,10 @@ public class LikelihoodReadCountModel extends Distribution {
     public Input<RealParameter> w1Input = new Input<>("w1", "homozygous genotype overdispersion parameter of Dirichlet multinomial distribution");
     public Input<RealParameter> w2Input = new Input<>("w2", "heterogeneous genotype overdispersion parameter of Dirichlet multinomial distribution");
 
+    public Input<Boolean> emissionTableInput = new Input<>("emissionTable", "cache log P(read counts | genotype) for every taxon, site and genotype, used by the Gibbs operators", false);
+    public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to calculate per taxon log likelihoods on the common fork join pool, 1 for serial calculation", 1);
+    public Input<Boolean> singlePrecisionInput = new Input<>("singlePrecision", "store the emission table as floats to halve its memory", false);
+
     // other parameters of read count model
 
     private RealParameter epsilon;
@@ -43,25 +51,25 @@ public class LikelihoodReadCountModel extends Distribution {
     private RealParameter w2;
     private Alignment alignment;
     private ReadCount readCount;
-    private double[] negp1, negp2, negr1, negr2;
-    private double[] wv;
-    private double[][][] wPropensitiesLogGamma = new double[2][10][4];
+    // cached tables are double-buffered, the leading index selects the buffer
+    private double[][] negp1, negp2, negr1, negr2;
+    private double[][][][] wPropensitiesLogGamma = new double[2][2][10][4];
     private int[][] coverages;
     private final double[] alpha = new double[]{1.0, 2.0};
     private double [] currentLogPi, storedLogPi;
-    private double[] wLogGamma = new double[2];
-    private double[] deltaLog = new double[2];
-    private double[][] p1Log;
-    private double[][] p2Log;
-    private double[][] rGammaLog;
+    private double[][] wLogGamma = new double[2][2];
+    private double[][] deltaLog = new double[2][2];
+    private double[][][] p1Log;
+    private double[][][] p2Log;
+    private double[][][] rGammaLog;
     private final double log0_5 = Math.log(0.5);
     private int maxReadDepth = 0;
     private int maxReadCount = 0;
     private double[] readDepthLog;
     private double[] readDepthLogGamma;
-    private double[][][] c_rLogGamma;
-    private double[][][][] rc_wPropLogGamma;
-    private double[][] c_wLogGamma;
+    private double[][][][] c_rLogGamma;
+    private double[][][][][] rc_wPropLogGamma;
+    private double[][][] c_wLogGamma;
 
     // Mapping from alignment taxon index to ReadCount taxon index.
     // These may differ when alignment sequences and ReadCount data rows
@@ -71,6 +79,62 @@ public class LikelihoodReadCountModel extends Distribution {
     private int[][] gt16IndexTable;
     private int[][] gt10IndexTable;
 
+    // Inputs flagged dirty by requiresRecalculation() whose cached tables have not been rebuilt yet.
+    // Coverage tables depend on t, v and s[i]; propensity tables on epsilon and w1/w2;
+    // overdispersion tables on w1/w2 only; dropout on delta only.
+    private boolean[] coverageDirty;
+    private final boolean[] propensityDirty = new boolean[2];
+    private final boolean[] overdispersionDirty = new boolean[2];
+    private boolean dropoutDirty;
+
+    // Buffer holding the current tables for each cell (coverage) or overdispersion (propensity, overdispersion).
+    // A table is rebuilt into the other buffer the first time it changes after store(),
+    // so restore() only has to swap back to the stored buffer indices.
+    private int[] coverageBuffer, storedCoverageBuffer;
+    private int[] propensityBuffer = new int[2], storedPropensityBuffer = new int[2];
+    private int[] overdispersionBuffer = new int[2], storedOverdispersionBuffer = new int[2];
+    private int dropoutBuffer, storedDropoutBuffer;
+
+    // Per-cell log likelihoods for the MutableAlignment path, indexed [site * taxonCount + taxon],
+    // together with the genotype each cell was computed for, UNSCORED for cells of weight 0 sites
+    // which have log likelihood 0 and are not part of currentLogPi.
+    private static final int UNSCORED = -1;
+    private double[] siteLogP, storedSiteLogP;
+    private int[] siteStates, storedSiteStates;
+    // Cells changed since store(): cell index, previous log likelihood and previous genotype
+    private int[] editedCells = new int[16];
+    private double[] editedLogP = new double[16];
+    private int[] editedStates = new int[16];
+    private int editCount;
+    // True if every cell was recomputed into the stored buffers since store()
+    private boolean siteLogPSwapped;
+    // Sites reported by markSiteChanged() since the last calculation
+    private int[] changedSites;
+    private boolean[] isChangedSite;
+    private int changedSiteCount;
+    // Cells computed with read count tables that have been rebuilt since.
+    // Coverage tables only affect the cells of one taxon, the others affect every cell.
+    private boolean[] coverageStale;
+    private boolean allCellsStale;
+
+    // Version of each coverage table [buffer][cell], and of the propensity, overdispersion and dropout tables.
+    // Emission table entries record the versions they were computed with, and are refreshed when these differ.
+    private int[][] coverageVersion;
+    private int sharedVersion, storedSharedVersion;
+    private int tableVersion;
+
+    // Emission table of log P(read counts | genotype), indexed [(site * taxonCount + taxon) * stateCount + genotype].
+    // Only one of emissionLogP and emissionLogPFloat is allocated.
+    private boolean useEmissionTable;
+    private int stateCount;
+    private double[] emissionLogP;
+    private float[] emissionLogPFloat;
+    private int[] emissionCoverageVersion;
+    private int[] emissionSharedVersion;
+
+    // Number of blocks of taxa calculated in parallel, 1 if calculating serially
+    private int threadCount;
+
     DataType datatype;    //private double[] sv;
 
     @Override
@@ -170,18 +234,20 @@ public class LikelihoodReadCountModel extends Distribution {
             }
         }
 
-        negp1 = new double[s.getDimension()];
-        negp2 = new double[s.getDimension()];
-        negr1 = new double[s.getDimension()];
-        negr2 = new double[s.getDimension()];
+        negp1 = new double[2][s.getDimension()];
+        negp2 = new double[2][s.getDimension()];
+        negr1 = new double[2][s.getDimension()];
+        negr2 = new double[2][s.getDimension()];
         coverages = new int[alignment.getTaxonCount()][alignment.getSiteCount()];
         for (int i = 0; i < alignment.getTaxonCount(); i++) {
             int rcIdx = alignToRCIndex[i];
             for (int j = 0; j < alignment.getSiteCount(); j++) {
-                for (int k = 0; k < 4; k++) {
-                    coverages[i][j] += readCount.getReadCounts(rcIdx,j)[k];
-                    if (readCount.getReadCounts(rcIdx,j)[k] > maxReadCount) {
-                        maxReadCount = readCount.getReadCounts(rcIdx,j)[k];
+                int offset = readCount.getOffset(rcIdx, j);
+                for (int k = 0; k < ReadCount.NUCLEOTIDES; k++) {
+                    int count = readCount.getCountBuffer().get(offset + k);
+                    coverages[i][j] += count;
+                    if (count > maxReadCount) {
+                        maxReadCount = count;
                     }
                 }
                 if (coverages[i][j] > maxReadDepth) {
@@ -199,113 +265,197 @@ public class LikelihoodReadCountModel extends Distribution {
 
         currentLogPi = new double[alignment.getTaxonCount()];
         storedLogPi =  new double[alignment.getTaxonCount()];
-        rGammaLog = new double[2][s.getDimension()];
-        p1Log = new double[2][s.getDimension()];
-        p2Log = new double[2][s.getDimension()];
-        c_rLogGamma = new double[2][s.getDimension()][maxReadDepth+1];
-        c_wLogGamma = new double[2][maxReadDepth+1];
-        rc_wPropLogGamma = new double[2][maxReadCount+1][10][4];
+        rGammaLog = new double[2][2][s.getDimension()];
+        p1Log = new double[2][2][s.getDimension()];
+        p2Log = new double[2][2][s.getDimension()];
+        c_rLogGamma = new double[2][2][s.getDimension()][maxReadDepth+1];
+        c_wLogGamma = new double[2][2][maxReadDepth+1];
+        rc_wPropLogGamma = new double[2][2][maxReadCount+1][10][4];
+
+        coverageDirty = new boolean[s.getDimension()];
+        coverageStale = new boolean[s.getDimension()];
+        coverageBuffer = new int[s.getDimension()];
+        storedCoverageBuffer = new int[s.getDimension()];
+        coverageVersion = new int[2][s.getDimension()];
+        threadCount = Math.max(1, Math.min(threadsInput.get(), alignment.getTaxonCount()));
+        useEmissionTable = emissionTableInput.get();
+        if (useEmissionTable) {
+            stateCount = datatype.getStateCount();
+            int cellCount = alignment.getTaxonCount() * alignment.getSiteCount();
+            if (singlePrecisionInput.get()) {
+                emissionLogPFloat = new float[cellCount * stateCount];
+            } else {
+                emissionLogP = new double[cellCount * stateCount];
+            }
+            emissionCoverageVersion = new int[cellCount];
+            emissionSharedVersion = new int[cellCount];
+        }
+        if (alignment instanceof MutableAlignment) {
+            int cellCount = alignment.getTaxonCount() * alignment.getSiteCount();
+            siteLogP = new double[cellCount];
+            storedSiteLogP = new double[cellCount];
+            siteStates = new int[cellCount];
+            storedSiteStates = new int[cellCount];
+            // no cell is scored yet, so a cell turned on by a weight change is rescored whatever its genotype
+            Arrays.fill(siteStates, UNSCORED);
+            Arrays.fill(storedSiteStates, UNSCORED);
+            changedSites = new int[alignment.getSiteCount()];
+            isChangedSite = new boolean[alignment.getSiteCount()];
+        }
+        initialize();
     }
 
     // calculate propensities matrix of dirichlet multinomial distribution(read count model)
     // and params of negative binomial distribution(coverage model)
     /**
-     * Recompute cached values from current parameter values.
+     * Recompute all cached values from current parameter values.
      * Package-private so GibbsSiteOperator can ensure caches are fresh
      * before sampling (they may be stale after a rejected parameter proposal).
      */
     void initialize() {
-        double mean1;
-        double mean2;
-        double variance1;
-        double variance2;
-        double eps = epsilon.getValue();
-        double del = delta.getValue();
-        double tv = t.getValue();
-        double vv = v.getValue();
-        Double[] sv = s.getValues();
-        wv = new double[]{w1.getValue(), w2.getValue()};
-        double[][] propensities;
-
-        for (int i = 0; i < s.getDimension(); i++) {
-            mean1 = alpha[0] * tv * sv[i];
-            mean2 = alpha[1] * tv * sv[i];
-            variance1 = mean1 + Math.pow(alpha[0], 2) * vv * Math.pow(sv[i], 2);
-            variance2 = mean2 + Math.pow(alpha[1], 2) * vv * Math.pow(sv[i], 2);
-            negp1[i] = mean1 / variance1;
-            negp2[i] = mean2 / variance2;
-            negr1[i] = Math.pow(mean1, 2) / (variance1 - mean1);
-            negr2[i] = Math.pow(mean2, 2) / (variance2 - mean2);
-            rGammaLog[0][i] = Gamma.logGamma(negr1[i]);
-            rGammaLog[1][i] = Gamma.logGamma(negr2[i]);
-            p1Log[0][i] = Math.log(negp1[i]);
-            p1Log[1][i] = Math.log(1-negp1[i]);
-            p2Log[0][i] = Math.log(negp2[i]);
-            p2Log[1][i] = Math.log(1-negp2[i]);
-            for (int j =0; j < maxReadDepth+1; j++) {
-                c_rLogGamma[0][i][j] = Gamma.logGamma(j + negr1[i]);
-                c_rLogGamma[1][i][j] = Gamma.logGamma(j + negr2[i]);
+        Arrays.fill(coverageDirty, true);
+        Arrays.fill(propensityDirty, true);
+        Arrays.fill(overdispersionDirty, true);
+        dropoutDirty = true;
+        updateCaches();
+    }
+
+    /**
+     * Rebuild only the cached tables whose inputs are flagged dirty.
+     * A table is written to the spare buffer if it has not changed since store(),
+     * otherwise it is rebuilt in place, so the stored buffer is never overwritten.
+     */
+    private void updateCaches() {
+        for (int i = 0; i < coverageDirty.length; i++) {
+            if (coverageDirty[i]) {
+                if (coverageBuffer[i] == storedCoverageBuffer[i]) {
+                    coverageBuffer[i] = 1 - coverageBuffer[i];
+                }
+                updateCoverageCache(i);
+                coverageDirty[i] = false;
+                coverageStale[i] = true;
             }
         }
+        for (int i = 0; i < 2; i++) {
+            if (propensityDirty[i]) {
+                if (propensityBuffer[i] == storedPropensityBuffer[i]) {
+                    propensityBuffer[i] = 1 - propensityBuffer[i];
+                }
+                updatePropensityCache(i);
+                propensityDirty[i] = false;
+                allCellsStale = true;
+                sharedVersion = ++tableVersion;
+            }
+            if (overdispersionDirty[i]) {
+                if (overdispersionBuffer[i] == storedOverdispersionBuffer[i]) {
+                    overdispersionBuffer[i] = 1 - overdispersionBuffer[i];
+                }
+                updateOverdispersionCache(i);
+                overdispersionDirty[i] = false;
+                allCellsStale = true;
+                sharedVersion = ++tableVersion;
+            }
+        }
+        if (dropoutDirty) {
+            if (dropoutBuffer == storedDropoutBuffer) {
+                dropoutBuffer = 1 - dropoutBuffer;
+            }
+            deltaLog[dropoutBuffer][0] = Math.log(delta.getValue());
+            deltaLog[dropoutBuffer][1] = Math.log(1 - delta.getValue());
+            dropoutDirty = false;
+            allCellsStale = true;
+            sharedVersion = ++tableVersion;
+        }
+    }
 
-        double x0, x1, x2, x3;
-        for (int i =0; i < wPropensitiesLogGamma.length; i++) {
-            x0 = Gamma.logGamma((1 -eps)*wv[i]);
-            x1 = Gamma.logGamma((eps/3)*wv[i]);
-            x2 = Gamma.logGamma((0.5 - eps/6)*wv[i]);
-            x3 = Gamma.logGamma((eps/6)*wv[i]);
-            wPropensitiesLogGamma[i] = new double[][]{
-                    {x0, x1, x1, x1},   // AA or A_ 0
-                    {x2, x2, x3, x3},   // AC or CA 1
-                    {x2, x3, x2, x3},   // AG or GA 2
-                    {x2, x3, x3, x2},   // AT or TA 3
-                    {x1, x0, x1, x1},   // CC or C_ 4
-                    {x3, x2, x2, x3},   // CG or GC 5
-                    {x3, x2, x3, x2},   // CT or TC 6
-                    {x1, x1, x0, x1},   // GG or G_ 7
-                    {x3, x3, x2, x2},   // GT or TG 8
-                    {x1, x1, x1, x0},   // TT or T_ 9
-            };
+    // negative binomial coverage params of cell i, depends on t, v and s[i]
+    private void updateCoverageCache(int i) {
+        double tv = t.getValue();
+        double vv = v.getValue();
+        double sv = s.getValue(i);
+        double mean1 = alpha[0] * tv * sv;
+        double mean2 = alpha[1] * tv * sv;
+        double variance1 = mean1 + Math.pow(alpha[0], 2) * vv * Math.pow(sv, 2);
+        double variance2 = mean2 + Math.pow(alpha[1], 2) * vv * Math.pow(sv, 2);
+        int b = coverageBuffer[i];
+        coverageVersion[b][i] = ++tableVersion;
+        negp1[b][i] = mean1 / variance1;
+        negp2[b][i] = mean2 / variance2;
+        negr1[b][i] = Math.pow(mean1, 2) / (variance1 - mean1);
+        negr2[b][i] = Math.pow(mean2, 2) / (variance2 - mean2);
+        rGammaLog[b][0][i] = Gamma.logGamma(negr1[b][i]);
+        rGammaLog[b][1][i] = Gamma.logGamma(negr2[b][i]);
+        p1Log[b][0][i] = Math.log(negp1[b][i]);
+        p1Log[b][1][i] = Math.log(1-negp1[b][i]);
+        p2Log[b][0][i] = Math.log(negp2[b][i]);
+        p2Log[b][1][i] = Math.log(1-negp2[b][i]);
+        for (int j =0; j < maxReadDepth+1; j++) {
+            c_rLogGamma[b][0][i][j] = Gamma.logGamma(j + negr1[b][i]);
+            c_rLogGamma[b][1][i][j] = Gamma.logGamma(j + negr2[b][i]);
         }
+    }
 
-        double y0, y1, y2, y3;
-        for (int i = 0; i < rc_wPropLogGamma.length; i++) {
-            y0 = (1 -eps)*wv[i];
-            y1 = eps/3*wv[i];
-            y2 = (0.5 - eps/6)*wv[i];
-            y3 = eps/6*wv[i];
-            propensities = new double[][]{
-                    {y0, y1, y1, y1},   // AA or A_ 0
-                    {y2, y2, y3, y3},   // AC or CA 1
-                    {y2, y3, y2, y3},   // AG or GA 2
-                    {y2, y3, y3, y2},   // AT or TA 3
-                    {y1, y0, y1, y1},   // CC or C_ 4
-                    {y3, y2, y2, y3},   // CG or GC 5
-                    {y3, y2, y3, y2},   // CT or TC 6
-                    {y1, y1, y0, y1},   // GG or G_ 7
-                    {y3, y3, y2, y2},   // GT or TG 8
-                    {y1, y1, y1, y0},   // TT or T_ 9
-            };
-            for (int j = 0; j < rc_wPropLogGamma[i].length; j++) {
-                for (int k = 0; k < rc_wPropLogGamma[i][j].length; k++) {
-                    for (int l = 0; l < rc_wPropLogGamma[i][j][k].length; l++) {
-                        rc_wPropLogGamma[i][j][k][l] = Gamma.logGamma(propensities[k][l] + j);
-                    }
+    // dirichlet multinomial propensities for overdispersion wIndex, depends on epsilon and w1 or w2
+    private void updatePropensityCache(int wIndex) {
+        double eps = epsilon.getValue();
+        double w = getOverdispersion(wIndex);
+
+        double x0 = Gamma.logGamma((1 -eps)*w);
+        double x1 = Gamma.logGamma((eps/3)*w);
+        double x2 = Gamma.logGamma((0.5 - eps/6)*w);
+        double x3 = Gamma.logGamma((eps/6)*w);
+        int b = propensityBuffer[wIndex];
+        wPropensitiesLogGamma[b][wIndex] = new double[][]{
+                {x0, x1, x1, x1},   // AA or A_ 0
+                {x2, x2, x3, x3},   // AC or CA 1
+                {x2, x3, x2, x3},   // AG or GA 2
+                {x2, x3, x3, x2},   // AT or TA 3
+                {x1, x0, x1, x1},   // CC or C_ 4
+                {x3, x2, x2, x3},   // CG or GC 5
+                {x3, x2, x3, x2},   // CT or TC 6
+                {x1, x1, x0, x1},   // GG or G_ 7
+                {x3, x3, x2, x2},   // GT or TG 8
+                {x1, x1, x1, x0},   // TT or T_ 9
+        };
+
+        double y0 = (1 -eps)*w;
+        double y1 = eps/3*w;
+        double y2 = (0.5 - eps/6)*w;
+        double y3 = eps/6*w;
+        double[][] propensities = new double[][]{
+                {y0, y1, y1, y1},   // AA or A_ 0
+                {y2, y2, y3, y3},   // AC or CA 1
+                {y2, y3, y2, y3},   // AG or GA 2
+                {y2, y3, y3, y2},   // AT or TA 3
+                {y1, y0, y1, y1},   // CC or C_ 4
+                {y3, y2, y2, y3},   // CG or GC 5
+                {y3, y2, y3, y2},   // CT or TC 6
+                {y1, y1, y0, y1},   // GG or G_ 7
+                {y3, y3, y2, y2},   // GT or TG 8
+                {y1, y1, y1, y0},   // TT or T_ 9
+        };
+        double[][][] table = rc_wPropLogGamma[b][wIndex];
+        for (int j = 0; j < table.length; j++) {
+            for (int k = 0; k < table[j].length; k++) {
+                for (int l = 0; l < table[j][k].length; l++) {
+                    table[j][k][l] = Gamma.logGamma(propensities[k][l] + j);
                 }
             }
         }
+    }
 
-        for (int i = 0; i < c_wLogGamma.length; i++) {
-            for (int j = 0; j < c_wLogGamma[i].length; j++) {
-                c_wLogGamma[i][j] = Gamma.logGamma(wv[i] + j);
-            }
+    // dirichlet multinomial normalising terms for overdispersion wIndex, depends on w1 or w2 only
+    private void updateOverdispersionCache(int wIndex) {
+        double w = getOverdispersion(wIndex);
+        int b = overdispersionBuffer[wIndex];
+        for (int j = 0; j < c_wLogGamma[b][wIndex].length; j++) {
+            c_wLogGamma[b][wIndex][j] = Gamma.logGamma(w + j);
         }
+        wLogGamma[b][wIndex] = Gamma.logGamma(w);
+    }
 
-        wLogGamma[0] = Gamma.logGamma(wv[0]);
-        wLogGamma[1] = Gamma.logGamma(wv[1]);
-        deltaLog[0] = Math.log(del);
-        deltaLog[1] = Math.log(1-del);
-
+    private double getOverdispersion(int wIndex) {
+        return wIndex == 0 ? w1.getValue() : w2.getValue();
     }
 
     /** Returns the mapping from alignment taxon index to ReadCount taxon index. */
@@ -316,13 +466,14 @@ public class LikelihoodReadCountModel extends Distribution {
     //Calculate the log likelihood of read count model by summarizing the log likelihood at each site
     @Override
     public double calculateLogP() {
-        initialize();
+        updateCaches();
         if (alignment instanceof MutableAlignment a) {
             return calculateLogP(a);
         }
         //logP = 0;
         int[] weights = alignment.getWeights();
-        for (int i = 0; i < alignment.getTaxonCount(); i++) {
+        IntBuffer counts = readCount.getCountBuffer();
+        forEachTaxon(i -> {
             double logPi = 0;
             int rcIdx = alignToRCIndex[i];
             for (int j = 0; j < alignment.getSiteCount(); j++) {
@@ -330,11 +481,11 @@ public class LikelihoodReadCountModel extends Distribution {
                 if (weights[patternIndex] == 0) continue;
                 // dirichlet multinomial pmf
                 int genotypeState = alignment.getPattern(i, patternIndex);
-                int[] readCountNumbers = readCount.getReadCounts(rcIdx, j);
-                logPi += logLiklihoodRC(genotypeState, readCountNumbers, coverages[i][j], rcIdx);
+                logPi += logLiklihoodRC(genotypeState, counts, readCount.getOffset(rcIdx, j), coverages[i][j], rcIdx);
             }
             currentLogPi[i] = logPi;
-        }
+        });
+        // sum in taxon order, so the result does not depend on the number of threads
         logP = 0;
         for (double d : currentLogPi) {
             logP += d;
@@ -343,50 +494,229 @@ public class LikelihoodReadCountModel extends Distribution {
     }
 
     private double calculateLogP(MutableAlignment mutableAlignment) {
+        int taxonCount = mutableAlignment.getTaxonCount();
+        boolean allCoverageStale = true;
+        for (int i = 0; i < taxonCount && allCoverageStale; i++) {
+            allCoverageStale = coverageStale[alignToRCIndex[i]];
+        }
+        if (allCellsStale || allCoverageStale) {
+            recalculateAllCells(mutableAlignment);
+        } else {
+            for (int i = 0; i < taxonCount; i++) {
+                if (coverageStale[alignToRCIndex[i]]) {
+                    recalculateTaxon(mutableAlignment, i);
+                }
+            }
+            /** only rescore cells whose genotype changed, looking at the sites or sequences that changed **/
+            Integer[] dirtySequences = mutableAlignment.getDirtySequenceIndices();
+            if (changedSiteCount > 0) {
+                for (int k = 0; k < changedSiteCount; k++) {
+                    updateChangedSite(mutableAlignment, changedSites[k]);
+                }
+            } else if (dirtySequences.length == 0 || dirtySequences.length == taxonCount) {
+                updateChangedCells(mutableAlignment);
+            } else {
+                for (int i : dirtySequences) {
+                    updateChangedCells(mutableAlignment, i);
+                }
+            }
+        }
+        clearChangedSites();
+        Arrays.fill(coverageStale, false);
+        allCellsStale = false;
+
+        /** sum over all sequence contributions **/
+        logP = 0;
+        for (double d : currentLogPi) {
+            logP += d;
+        }
+        return logP;
+    }
+
+    // rescore every cell, writing into the stored buffers so restore() can swap them back
+    private void recalculateAllCells(MutableAlignment mutableAlignment) {
+        if (!siteLogPSwapped) {
+            undoCellEdits();
+            swapSiteBuffers();
+            siteLogPSwapped = true;
+        }
+        int taxonCount = mutableAlignment.getTaxonCount();
         int[] weights = mutableAlignment.getWeights();
-        /** update currentLogPi only for sequences that changed **/
-        if (mutableAlignment.getDirtySequenceIndices().length != 0) {
-            for (int i : mutableAlignment.getDirtySequenceIndices()) {
-                double logPi = 0;
-                int rcIdx = alignToRCIndex[i];
-                for (int j = 0; j < mutableAlignment.getSiteCount(); j++) {
-                    int patternIndex = mutableAlignment.getPatternIndex(j);
-                    if (weights[patternIndex] == 0) continue;
-                    // dirichlet multinomial pmf
-                    int genotypeState = mutableAlignment.getPattern(i, patternIndex);
-                    int[] readCountNumbers = readCountInput.get().getReadCounts(rcIdx, j);
-                    logPi += logLiklihoodRC(genotypeState, readCountNumbers, coverages[i][j], rcIdx);
+        IntBuffer counts = readCount.getCountBuffer();
+        forEachTaxon(i -> {
+            double logPi = 0;
+            int rcIdx = alignToRCIndex[i];
+            for (int j = 0; j < mutableAlignment.getSiteCount(); j++) {
+                int patternIndex = mutableAlignment.getPatternIndex(j);
+                int cell = j * taxonCount + i;
+                if (weights[patternIndex] == 0) {
+                    siteStates[cell] = UNSCORED;
+                    siteLogP[cell] = 0;
+                    continue;
                 }
-                currentLogPi[i] = logPi;
+                int genotypeState = mutableAlignment.getPattern(i, patternIndex);
+                siteStates[cell] = genotypeState;
+                siteLogP[cell] = logLiklihoodRC(genotypeState, counts, readCount.getOffset(rcIdx, j), coverages[i][j], rcIdx);
+                logPi += siteLogP[cell];
             }
+            currentLogPi[i] = logPi;
+        });
+    }
 
-            /** sum over all sequence contributions **/
-            logP = 0;
-            for (double d : currentLogPi) {
-                logP += d;
+    /**
+     * Run a per taxon calculation for every taxon, split into one block of taxa per thread
+     * on the common fork join pool if threads > 1, so no threads are owned by this model.
+     * Each call may only write entries of its own taxon.
+     */
+    private void forEachTaxon(IntConsumer taxonCalculation) {
+        int taxonCount = alignment.getTaxonCount();
+        if (threadCount == 1) {
+            for (int i = 0; i < taxonCount; i++) {
+                taxonCalculation.accept(i);
             }
-            return logP;
         } else {
-            for (int i = 0; i < alignment.getTaxonCount(); i++) {
-                double logPi = 0;
-                int rcIdx = alignToRCIndex[i];
-                for (int j = 0; j < alignment.getSiteCount(); j++) {
-                    int patternIndex = alignment.getPatternIndex(j);
-                    if (weights[patternIndex] == 0) continue;
-                    // dirichlet multinomial pmf
-                    int genotypeState = alignment.getPattern(i, patternIndex);
-                    int[] readCountNumbers = readCount.getReadCounts(rcIdx, j);
-                    logPi += logLiklihoodRC(genotypeState, readCountNumbers, coverages[i][j], rcIdx);
+            IntStream.range(0, threadCount).parallel().forEach(block -> {
+                int end = (block + 1) * taxonCount / threadCount;
+                for (int i = block * taxonCount / threadCount; i < end; i++) {
+                    taxonCalculation.accept(i);
+                }
+            });
+        }
+    }
+
+    // rescore every cell of one taxon
+    private void recalculateTaxon(MutableAlignment mutableAlignment, int taxon) {
+        int taxonCount = mutableAlignment.getTaxonCount();
+        int[] weights = mutableAlignment.getWeights();
+        double logPi = 0;
+        for (int j = 0; j < mutableAlignment.getSiteCount(); j++) {
+            int patternIndex = mutableAlignment.getPatternIndex(j);
+            int cell = j * taxonCount + taxon;
+            if (weights[patternIndex] == 0) {
+                if (siteStates[cell] != UNSCORED) {
+                    recordCellEdit(cell);
+                    siteStates[cell] = UNSCORED;
+                    siteLogP[cell] = 0;
+                }
+                continue;
+            }
+            setCell(cell, taxon, j, mutableAlignment.getPattern(taxon, patternIndex));
+            logPi += siteLogP[cell];
+        }
+        currentLogPi[taxon] = logPi;
+    }
+
+    // rescore cells of all taxa whose genotype differs from the one they were computed for
+    private void updateChangedCells(MutableAlignment mutableAlignment) {
+        int taxonCount = mutableAlignment.getTaxonCount();
+        int[] weights = mutableAlignment.getWeights();
+        for (int j = 0; j < mutableAlignment.getSiteCount(); j++) {
+            int patternIndex = mutableAlignment.getPatternIndex(j);
+            if (weights[patternIndex] == 0) continue;
+            int[] pattern = mutableAlignment.getPattern(patternIndex);
+            int offset = j * taxonCount;
+            if (Arrays.equals(pattern, 0, taxonCount, siteStates, offset, offset + taxonCount)) continue;
+            for (int i = 0; i < taxonCount; i++) {
+                if (pattern[i] != siteStates[offset + i]) {
+                    updateCell(offset + i, i, j, pattern[i]);
                 }
-                currentLogPi[i] = logPi;
             }
-            logP = 0;
-            for (double d : currentLogPi) {
-                logP += d;
+        }
+    }
+
+    // rescore cells of one site whose genotype differs from the one they were computed for
+    private void updateChangedSite(MutableAlignment mutableAlignment, int site) {
+        int patternIndex = mutableAlignment.getPatternIndex(site);
+        if (mutableAlignment.getWeights()[patternIndex] == 0) return;
+        int taxonCount = mutableAlignment.getTaxonCount();
+        int[] pattern = mutableAlignment.getPattern(patternIndex);
+        int offset = site * taxonCount;
+        for (int i = 0; i < taxonCount; i++) {
+            if (pattern[i] != siteStates[offset + i]) {
+                updateCell(offset + i, i, site, pattern[i]);
             }
-            return logP;
         }
+    }
+
+    /**
+     * Report a site of the MutableAlignment that was edited since the last calculation,
+     * so only the cells of reported sites are compared and rescored.
+     * Alignment edits are only read from the MutableAlignment when no site was reported,
+     * so an operator that reports sites must report every site it changes.
+     */
+    public void markSiteChanged(int siteIndex) {
+        if (isChangedSite != null && !isChangedSite[siteIndex]) {
+            isChangedSite[siteIndex] = true;
+            changedSites[changedSiteCount++] = siteIndex;
+        }
+    }
 
+    private void clearChangedSites() {
+        for (int k = 0; k < changedSiteCount; k++) {
+            isChangedSite[changedSites[k]] = false;
+        }
+        changedSiteCount = 0;
+    }
+
+    // rescore cells of one taxon whose genotype differs from the one they were computed for
+    private void updateChangedCells(MutableAlignment mutableAlignment, int taxon) {
+        int taxonCount = mutableAlignment.getTaxonCount();
+        int[] weights = mutableAlignment.getWeights();
+        for (int j = 0; j < mutableAlignment.getSiteCount(); j++) {
+            int patternIndex = mutableAlignment.getPatternIndex(j);
+            if (weights[patternIndex] == 0) continue;
+            int state = mutableAlignment.getPattern(taxon, patternIndex);
+            int cell = j * taxonCount + taxon;
+            if (state != siteStates[cell]) {
+                updateCell(cell, taxon, j, state);
+            }
+        }
+    }
+
+    private void updateCell(int cell, int taxon, int site, int state) {
+        double oldLogP = siteLogP[cell];
+        setCell(cell, taxon, site, state);
+        currentLogPi[taxon] += siteLogP[cell] - oldLogP;
+    }
+
+    // rescore one cell, recording its previous value unless restore() swaps buffers anyway
+    private void setCell(int cell, int taxon, int site, int state) {
+        recordCellEdit(cell);
+        int rcIdx = alignToRCIndex[taxon];
+        siteStates[cell] = state;
+        siteLogP[cell] = logLiklihoodRC(state, readCount.getCountBuffer(), readCount.getOffset(rcIdx, site), coverages[taxon][site], rcIdx);
+    }
+
+    private void recordCellEdit(int cell) {
+        if (!siteLogPSwapped) {
+            if (editCount == editedCells.length) {
+                int length = 2 * editCount;
+                editedCells = Arrays.copyOf(editedCells, length);
+                editedLogP = Arrays.copyOf(editedLogP, length);
+                editedStates = Arrays.copyOf(editedStates, length);
+            }
+            editedCells[editCount] = cell;
+            editedLogP[editCount] = siteLogP[cell];
+            editedStates[editCount] = siteStates[cell];
+            editCount++;
+        }
+    }
+
+    private void undoCellEdits() {
+        for (int k = editCount - 1; k >= 0; k--) {
+            siteLogP[editedCells[k]] = editedLogP[k];
+            siteStates[editedCells[k]] = editedStates[k];
+        }
+        editCount = 0;
+    }
+
+    private void swapSiteBuffers() {
+        double[] tmpLogP = storedSiteLogP;
+        storedSiteLogP = siteLogP;
+        siteLogP = tmpLogP;
+        int[] tmpStates = storedSiteStates;
+        storedSiteStates = siteStates;
+        siteStates = tmpStates;
     }
 
     public double[] sequenceLogLikelihood(int taxonIndex, int[] genotypeSequence) {
@@ -394,20 +724,85 @@ public class LikelihoodReadCountModel extends Distribution {
         if (genotypeSequence.length != alignment.getSiteCount()) {
             throw new RuntimeException("genotypeSequence.length != alignment.getSiteCount()");
         }
-        int rcIdx = alignToRCIndex[taxonIndex];
         for (int j = 0; j < genotypeSequence.length; j++) {
             // dirichlet multinomial pmf
-            int genotypeState = genotypeSequence[j];
-            int[] readCountNumbers = readCount.getReadCounts(rcIdx, j);
-            taxonLogP[j] = logLiklihoodRC(genotypeState, readCountNumbers, coverages[taxonIndex][j], rcIdx);
+            taxonLogP[j] = getEmissionLogP(taxonIndex, j, genotypeSequence[j]);
         }
         return taxonLogP;
     }
 
+    /**
+     * Log probability of the read counts of a taxon at a site given its genotype.
+     * Served from the emission table if enabled.
+     * @param taxonIndex alignment taxon index
+     */
+    public double getEmissionLogP(int taxonIndex, int siteIndex, int genotypeState) {
+        if (!useEmissionTable || genotypeState >= stateCount) {
+            int rcIdx = alignToRCIndex[taxonIndex];
+            return logLiklihoodRC(genotypeState, readCount.getCountBuffer(), readCount.getOffset(rcIdx, siteIndex), coverages[taxonIndex][siteIndex], rcIdx);
+        }
+        int offset = refreshEmissions(taxonIndex, siteIndex) + genotypeState;
+        return emissionLogP != null ? emissionLogP[offset] : emissionLogPFloat[offset];
+    }
+
+    /**
+     * Fill logProbs with the log probability of the read counts of a taxon at a site
+     * for every genotype. Served from the emission table if enabled.
+     * @param taxonIndex alignment taxon index
+     */
+    public void getEmissionLogProbs(int taxonIndex, int siteIndex, double[] logProbs) {
+        if (!useEmissionTable) {
+            int rcIdx = alignToRCIndex[taxonIndex];
+            IntBuffer counts = readCount.getCountBuffer();
+            int offset = readCount.getOffset(rcIdx, siteIndex);
+            for (int g = 0; g < logProbs.length; g++) {
+                logProbs[g] = logLiklihoodRC(g, counts, offset, coverages[taxonIndex][siteIndex], rcIdx);
+            }
+            return;
+        }
+        int offset = refreshEmissions(taxonIndex, siteIndex);
+        if (emissionLogP != null) {
+            System.arraycopy(emissionLogP, offset, logProbs, 0, stateCount);
+        } else {
+            for (int g = 0; g < stateCount; g++) {
+                logProbs[g] = emissionLogPFloat[offset + g];
+            }
+        }
+    }
+
+    // recompute the emission table entries of a cell if the read count tables changed since, returns their offset
+    private int refreshEmissions(int taxonIndex, int siteIndex) {
+        int rcIdx = alignToRCIndex[taxonIndex];
+        int cell = siteIndex * alignment.getTaxonCount() + taxonIndex;
+        int offset = cell * stateCount;
+        int version = coverageVersion[coverageBuffer[rcIdx]][rcIdx];
+        if (emissionCoverageVersion[cell] != version || emissionSharedVersion[cell] != sharedVersion) {
+            IntBuffer counts = readCount.getCountBuffer();
+            int countOffset = readCount.getOffset(rcIdx, siteIndex);
+            int coverage = coverages[taxonIndex][siteIndex];
+            for (int g = 0; g < stateCount; g++) {
+                double logP = logLiklihoodRC(g, counts, countOffset, coverage, rcIdx);
+                if (emissionLogP != null) {
+                    emissionLogP[offset + g] = logP;
+                } else {
+                    emissionLogPFloat[offset + g] = (float) logP;
+                }
+            }
+            emissionCoverageVersion[cell] = version;
+            emissionSharedVersion[cell] = sharedVersion;
+        }
+        return offset;
+    }
+
 
     // calculate probability of read counts given genotype
     // genotypeState represents genotype alignment
     public double logLiklihoodRC(int genotypeState, int[] readCountNumbers, int coverage, int taxonIndex) {
+        return logLiklihoodRC(genotypeState, IntBuffer.wrap(readCountNumbers), 0, coverage, taxonIndex);
+    }
+
+    // as above, with the A, C, G, T counts starting at offset, e.g. in ReadCount.getCountBuffer()
+    public double logLiklihoodRC(int genotypeState, IntBuffer readCountNumbers, int offset, int coverage, int taxonIndex) {
 
         int[] indices = getGenotypeIndices(genotypeState);
 
@@ -422,27 +817,30 @@ public class LikelihoodReadCountModel extends Distribution {
         double logPart2;
         double max;
 
+        int cb = coverageBuffer[taxonIndex];
+        double[][] propensities0 = wPropensitiesLogGamma[propensityBuffer[0]][0];
+        double[] deltaLogs = deltaLog[dropoutBuffer];
 
         if (homozygous(genotypeState)) {
-            logLikelihoodDirichletMDDiploid = logLikelihoodDirichletMD(0, coverage, readCountNumbers, wPropensitiesLogGamma[0][indices[0]], indices[0]);
-            logCoverageLikelihoodDiploid = logCoverageLikelihood(coverage, negr2[taxonIndex], rGammaLog[1][taxonIndex], p2Log[0][taxonIndex], p2Log[1][taxonIndex], c_rLogGamma[1][taxonIndex][coverage]);
-            logLikelihoodDirichletMDHaploid0 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, wPropensitiesLogGamma[0][indices[1]], indices[1]);
-            logCoverageLikelihoodHaploid = logCoverageLikelihood(coverage, negr1[taxonIndex], rGammaLog[0][taxonIndex], p1Log[0][taxonIndex], p1Log[1][taxonIndex], c_rLogGamma[0][taxonIndex][coverage]);
-            logPart0 = logLikelihoodDirichletMDDiploid + logCoverageLikelihoodDiploid + deltaLog[1];
-            logPart1 = logLikelihoodDirichletMDHaploid0 + logCoverageLikelihoodHaploid + deltaLog[0];
+            logLikelihoodDirichletMDDiploid = logLikelihoodDirichletMD(0, coverage, readCountNumbers, offset, propensities0[indices[0]], indices[0]);
+            logCoverageLikelihoodDiploid = logCoverageLikelihood(coverage, negr2[cb][taxonIndex], rGammaLog[cb][1][taxonIndex], p2Log[cb][0][taxonIndex], p2Log[cb][1][taxonIndex], c_rLogGamma[cb][1][taxonIndex][coverage]);
+            logLikelihoodDirichletMDHaploid0 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, offset, propensities0[indices[1]], indices[1]);
+            logCoverageLikelihoodHaploid = logCoverageLikelihood(coverage, negr1[cb][taxonIndex], rGammaLog[cb][0][taxonIndex], p1Log[cb][0][taxonIndex], p1Log[cb][1][taxonIndex], c_rLogGamma[cb][0][taxonIndex][coverage]);
+            logPart0 = logLikelihoodDirichletMDDiploid + logCoverageLikelihoodDiploid + deltaLogs[1];
+            logPart1 = logLikelihoodDirichletMDHaploid0 + logCoverageLikelihoodHaploid + deltaLogs[0];
             max = Math.max(logPart0, logPart1);
             logLikelihood = max + Math.log(
                     Math.exp(logPart0 - max) + Math.exp(logPart1 - max)
             );
         } else {
-            logLikelihoodDirichletMDDiploid = logLikelihoodDirichletMD(1, coverage, readCountNumbers, wPropensitiesLogGamma[1][indices[0]], indices[0]);
-            logCoverageLikelihoodDiploid = logCoverageLikelihood(coverage, negr2[taxonIndex], rGammaLog[1][taxonIndex], p2Log[0][taxonIndex], p2Log[1][taxonIndex], c_rLogGamma[1][taxonIndex][coverage]);
-            logLikelihoodDirichletMDHaploid0 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, wPropensitiesLogGamma[0][indices[1]], indices[1]);
-            logCoverageLikelihoodHaploid = logCoverageLikelihood(coverage, negr1[taxonIndex], rGammaLog[0][taxonIndex], p1Log[0][taxonIndex], p1Log[1][taxonIndex], c_rLogGamma[0][taxonIndex][coverage]);
-            logLikelihoodDirichletMDHaploid1 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, wPropensitiesLogGamma[0][indices[2]], indices[2]);
-            logPart0 = logLikelihoodDirichletMDDiploid + logCoverageLikelihoodDiploid + deltaLog[1];
-            logPart1 = log0_5 + logLikelihoodDirichletMDHaploid0 + logCoverageLikelihoodHaploid + deltaLog[0];
-            logPart2 = log0_5 + logLikelihoodDirichletMDHaploid1 + logCoverageLikelihoodHaploid + deltaLog[0];
+            logLikelihoodDirichletMDDiploid = logLikelihoodDirichletMD(1, coverage, readCountNumbers, offset, wPropensitiesLogGamma[propensityBuffer[1]][1][indices[0]], indices[0]);
+            logCoverageLikelihoodDiploid = logCoverageLikelihood(coverage, negr2[cb][taxonIndex], rGammaLog[cb][1][taxonIndex], p2Log[cb][0][taxonIndex], p2Log[cb][1][taxonIndex], c_rLogGamma[cb][1][taxonIndex][coverage]);
+            logLikelihoodDirichletMDHaploid0 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, offset, propensities0[indices[1]], indices[1]);
+            logCoverageLikelihoodHaploid = logCoverageLikelihood(coverage, negr1[cb][taxonIndex], rGammaLog[cb][0][taxonIndex], p1Log[cb][0][taxonIndex], p1Log[cb][1][taxonIndex], c_rLogGamma[cb][0][taxonIndex][coverage]);
+            logLikelihoodDirichletMDHaploid1 = logLikelihoodDirichletMD(0, coverage, readCountNumbers, offset, propensities0[indices[2]], indices[2]);
+            logPart0 = logLikelihoodDirichletMDDiploid + logCoverageLikelihoodDiploid + deltaLogs[1];
+            logPart1 = log0_5 + logLikelihoodDirichletMDHaploid0 + logCoverageLikelihoodHaploid + deltaLogs[0];
+            logPart2 = log0_5 + logLikelihoodDirichletMDHaploid1 + logCoverageLikelihoodHaploid + deltaLogs[0];
             max = Math.max(logPart0, Math.max(logPart1, logPart2));
             logLikelihood = max + Math.log(
                     Math.exp(logPart0 - max) + Math.exp(logPart1 - max) + Math.exp(logPart2 - max)
@@ -487,9 +885,15 @@ public class LikelihoodReadCountModel extends Distribution {
 
     //calculate the likelihood given read count (multinomial distribution)
     public double logLikelihoodDirichletMD( int wIndex, int coverage, int[] readCountNumbers, double[] wPropensitiesLogGamma, int index){
+        return logLikelihoodDirichletMD(wIndex, coverage, IntBuffer.wrap(readCountNumbers), 0, wPropensitiesLogGamma, index);
+    }
+
+    public double logLikelihoodDirichletMD( int wIndex, int coverage, IntBuffer readCountNumbers, int offset, double[] wPropensitiesLogGamma, int index){
         double logLikelihood = logFFunctionCov(coverage, wIndex);
-        for (int i = 0; i < readCountNumbers.length; i++) {
-            logLikelihood -= logFFunctionRC(readCountNumbers[i], wPropensitiesLogGamma[i], rc_wPropLogGamma[wIndex][readCountNumbers[i]][index][i]);
+        double[][][] rcPropensitiesLogGamma = rc_wPropLogGamma[propensityBuffer[wIndex]][wIndex];
+        for (int i = 0; i < ReadCount.NUCLEOTIDES; i++) {
+            int rc = readCountNumbers.get(offset + i);
+            logLikelihood -= logFFunctionRC(rc, wPropensitiesLogGamma[i], rcPropensitiesLogGamma[rc][index][i]);
         }
         return logLikelihood;
     }
@@ -497,7 +901,8 @@ public class LikelihoodReadCountModel extends Distribution {
     public double logFFunctionCov(int coverage, int wIndex){
         double result;
         if (coverage > 0){
-            result = readDepthLog[coverage] + wLogGamma[wIndex] + readDepthLogGamma[coverage] - c_wLogGamma[wIndex][coverage];
+            int b = overdispersionBuffer[wIndex];
+            result = readDepthLog[coverage] + wLogGamma[b][wIndex] + readDepthLogGamma[coverage] - c_wLogGamma[b][wIndex][coverage];
             return result;
         } else return 0.0;
     }
@@ -511,9 +916,42 @@ public class LikelihoodReadCountModel extends Distribution {
     }
 
 
+    /**
+     * Flag the cached tables that depend on changed parameters,
+     * so calculateLogP() only rebuilds those tables.
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        if (t.somethingIsDirty() || v.somethingIsDirty()) {
+            Arrays.fill(coverageDirty, true);
+        } else if (s.somethingIsDirty()) {
+            for (int i = 0; i < coverageDirty.length; i++) {
+                coverageDirty[i] |= s.isDirty(i);
+            }
+        }
+        boolean epsilonChanged = epsilon.somethingIsDirty();
+        if (epsilonChanged || w1.somethingIsDirty()) {
+            propensityDirty[0] = true;
+        }
+        if (epsilonChanged || w2.somethingIsDirty()) {
+            propensityDirty[1] = true;
+        }
+        overdispersionDirty[0] |= w1.somethingIsDirty();
+        overdispersionDirty[1] |= w2.somethingIsDirty();
+        dropoutDirty |= delta.somethingIsDirty();
+        return true;
+    }
+
     @Override
     public void store() {
         super.store();
+        System.arraycopy(coverageBuffer, 0, storedCoverageBuffer, 0, coverageBuffer.length);
+        System.arraycopy(propensityBuffer, 0, storedPropensityBuffer, 0, 2);
+        System.arraycopy(overdispersionBuffer, 0, storedOverdispersionBuffer, 0, 2);
+        storedDropoutBuffer = dropoutBuffer;
+        storedSharedVersion = sharedVersion;
+        editCount = 0;
+        siteLogPSwapped = false;
         /**
          * make a copy of current LogP's for each sequence
          * so that when the proposal is rejected it can be reversed
@@ -525,10 +963,39 @@ public class LikelihoodReadCountModel extends Distribution {
     public void restore() {
         super.restore();
 
-        // Recompute cached arrays (negr1, negp1, wPropensitiesLogGamma, etc.)
-        // from the now-restored parameter values. Without this, these caches
-        // retain values computed from the rejected proposal.
-        initialize();
+        // Switch cached arrays (negr1, negp1, wPropensitiesLogGamma, etc.)
+        // back to the buffers holding the tables of the restored parameter values.
+        // Tables rebuilt for the rejected proposal stay in the spare buffers.
+        int[] tmpBuffer = storedCoverageBuffer;
+        storedCoverageBuffer = coverageBuffer;
+        coverageBuffer = tmpBuffer;
+        tmpBuffer = storedPropensityBuffer;
+        storedPropensityBuffer = propensityBuffer;
+        propensityBuffer = tmpBuffer;
+        tmpBuffer = storedOverdispersionBuffer;
+        storedOverdispersionBuffer = overdispersionBuffer;
+        overdispersionBuffer = tmpBuffer;
+        int tmpDropout = storedDropoutBuffer;
+        storedDropoutBuffer = dropoutBuffer;
+        dropoutBuffer = tmpDropout;
+        sharedVersion = storedSharedVersion;
+        // the restored tables match the restored parameters, nothing is pending
+        Arrays.fill(coverageDirty, false);
+        Arrays.fill(propensityDirty, false);
+        Arrays.fill(overdispersionDirty, false);
+        dropoutDirty = false;
+
+        // undo the per-cell updates of the MutableAlignment path
+        if (siteLogP != null) {
+            undoCellEdits();
+            if (siteLogPSwapped) {
+                swapSiteBuffers();
+                siteLogPSwapped = false;
+            }
+            clearChangedSites();
+        }
+        Arrays.fill(coverageStale, false);
+        allCellsStale = false;
 
         /**
          * swap storedLogPi and currentLogPi, so that currentLogPi is now uptodate again
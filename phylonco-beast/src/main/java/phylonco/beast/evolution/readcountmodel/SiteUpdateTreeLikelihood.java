@@ -0,0 +1,397 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.BeerLikelihoodCore4;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import mutablealignment.MATreeLikelihood;
+
+import java.util.Arrays;
+
+/**
+ * Tree likelihood of a mutable alignment that recalculates only the sites resampled by an operator.
+ *
+ * {@link MATreeLikelihood} recalculates the partials of all patterns at every node whenever the alignment
+ * changes. Operators that resample whole sites, like {@link GibbsSiteOperator}, report each site they changed
+ * with {@link #markSiteChanged(int)}. If nothing but the alignment changed since the last calculation, only
+ * the partials of the reported sites are pruned again from the new leaf states, using the transition matrices
+ * already in the likelihood core, and the partials and log likelihoods of all other sites are kept.
+ * When more than half of the sites changed, or when the tree or model parameters changed as well,
+ * the whole tree is recalculated as before.
+ *
+ * The reported sites are recalculated in the current partials of the likelihood core, so the values they
+ * replace are kept in an undo log and written back when the proposal is rejected.
+ * Every changed site must be reported, since the site updates do not see other edits of the alignment.
+ * Scaling, ambiguities and tip likelihoods are not supported by the site updates, in which case the whole
+ * tree is recalculated. The tree must be binary, as for the likelihood core.
+ */
+@Description("Tree likelihood of a mutable alignment that only recalculates the sites resampled by an operator")
+public class SiteUpdateTreeLikelihood extends MATreeLikelihood {
+
+    private boolean canUpdateSites;
+    private int numStates;
+    private int numPatterns;
+    private int numCategories;
+    private int sitePartialsSize;            // numCategories * numStates
+    private int leafCount;
+    private int internalCount;
+    private int[] leafNrToTaxonIndex;        // [leafCount]
+    private boolean[] constantStates;        // [numPatterns * numStates] - states of the invariant category, null if none
+    private double[] storedPatternLogLikelihoods;
+
+    // sites reported since the last calculation
+    private int[] changedSites;
+    private boolean[] isChangedSite;         // [numPatterns]
+    private int changedSiteCount;
+    private boolean updateSitesOnly;
+    private long siteUpdateCount;            // calculations that only updated the reported sites
+
+    // internal nodes of the current tree, children before parents
+    private int[] postOrder;
+    private int[][] childNrs;                // [numNodes] - child node numbers
+    private int postOrderCount;
+
+    // values replaced by the site updates since the last store, one entry per updated site
+    private int undoCount;
+    private int[] undoSites;
+    private int[] undoBuffers;               // [entry][internal node] - partials buffer of the core that was updated
+    private double[] undoPartials;           // [entry][internal node][numCategories * numStates]
+    private int[] undoStates;                // [entry][leaf]
+
+    @Override
+    public void initAndValidate() {
+        for (Node node : treeInput.get().getNodesAsArray()) {
+            if (!node.isLeaf() && node.getChildCount() != 2) {
+                throw new IllegalArgumentException("SiteUpdateTreeLikelihood requires a binary tree, but node " +
+                        node.getNr() + " has " + node.getChildCount() + " children");
+            }
+        }
+        super.initAndValidate();
+
+        Alignment data = dataInput.get();
+        TreeInterface tree = treeInput.get();
+        numStates = data.getMaxStateCount();
+        numPatterns = data.getPatternCount();
+        numCategories = m_siteModel.getCategoryCount();
+        sitePartialsSize = numCategories * numStates;
+        leafCount = tree.getLeafNodeCount();
+        internalCount = tree.getInternalNodeCount();
+        canUpdateSites = !m_useAmbiguities.get() && !m_useTipLikelihoods.get();
+
+        leafNrToTaxonIndex = new int[leafCount];
+        for (Node leaf : tree.getExternalNodes()) {
+            leafNrToTaxonIndex[leaf.getNr()] = data.getTaxonIndex(leaf.getID());
+        }
+        if (getConstantPattern() != null) {
+            constantStates = new boolean[numPatterns * numStates];
+            for (int i : getConstantPattern()) {
+                constantStates[i] = true;
+            }
+        }
+        storedPatternLogLikelihoods = new double[numPatterns];
+
+        changedSites = new int[numPatterns];
+        isChangedSite = new boolean[numPatterns];
+        postOrder = new int[internalCount];
+        childNrs = new int[tree.getNodeCount()][2];
+        allocateUndo(4);
+    }
+
+    @Override
+    protected LikelihoodCore createLikelihoodCore(int stateCount) {
+        if (stateCount == 4) {
+            return new SiteLikelihoodCore4();
+        }
+        return new SiteLikelihoodCore(stateCount);
+    }
+
+    /**
+     * Reports that the leaf states of a site were changed in the mutable alignment since the last calculation,
+     * so the next calculation can recalculate this site only.
+     */
+    public void markSiteChanged(int siteIndex) {
+        if (!isChangedSite[siteIndex]) {
+            isChangedSite[siteIndex] = true;
+            changedSites[changedSiteCount++] = siteIndex;
+        }
+    }
+
+    @Override
+    public double calculateLogP() {
+        if (updateSitesOnly) {
+            updateSitesOnly = false;
+            updateSites();
+            clearChangedSites();
+            calcLogP();
+            if (logP != Double.NEGATIVE_INFINITY) {
+                siteUpdateCount++;
+                return logP;
+            }
+            // recalculate the whole tree, which switches on scaling
+        }
+        clearChangedSites();
+        return super.calculateLogP();
+    }
+
+    /**
+     * @return number of calculations that only updated the reported sites instead of the whole tree
+     */
+    long getSiteUpdateCount() {
+        return siteUpdateCount;
+    }
+
+    /**
+     * Prune the reported sites again from the leaf states in the alignment, keeping the replaced values for restore.
+     */
+    private void updateSites() {
+        SiteAccess core = (SiteAccess) likelihoodCore;
+        DataType dataType = dataInput.get().getDataType();
+        Node root = treeInput.get().getRoot();
+        int rootNr = root.getNr();
+        postOrderCount = 0;
+        updatePostOrder(root);
+
+        double[] proportions = m_siteModel.getCategoryProportions(root);
+        double proportionInvariant = m_siteModel.getProportionInvariant();
+        double[] rootFrequencies = rootFrequenciesInput.get() != null ?
+                rootFrequenciesInput.get().getFreqs() : substitutionModel.getFrequencies();
+
+        for (int k = 0; k < changedSiteCount; k++) {
+            int site = changedSites[k];
+            int entry = addUndoEntry(site);
+
+            // leaf states, coded as in MATreeLikelihood
+            for (int leafNr = 0; leafNr < leafCount; leafNr++) {
+                int[] states = core.getStates(leafNr);
+                undoStates[entry * leafCount + leafNr] = states[site];
+                int code = dataInput.get().getPattern(leafNrToTaxonIndex[leafNr], site);
+                int[] statesForCode = dataType.getStatesForCode(code);
+                states[site] = statesForCode.length == 1 ? statesForCode[0] : code;
+            }
+
+            // partials of the internal nodes, children before parents
+            for (int i = 0; i < postOrderCount; i++) {
+                int nodeNr = postOrder[i];
+                int buffer = core.getCurrentPartialsIndex(nodeNr);
+                double[] partials = core.getPartialsBuffer(buffer, nodeNr);
+                int undoIndex = entry * internalCount + nodeNr - leafCount;
+                undoBuffers[undoIndex] = buffer;
+                for (int cat = 0; cat < numCategories; cat++) {
+                    int offset = (cat * numPatterns + site) * numStates;
+                    System.arraycopy(partials, offset, undoPartials, undoIndex * sitePartialsSize + cat * numStates, numStates);
+                    Arrays.fill(partials, offset, offset + numStates, 1.0);
+                    for (int childNr : childNrs[nodeNr]) {
+                        double[] matrices = core.getCurrentMatrices(childNr);
+                        int w = cat * numStates * numStates;
+                        int[] childStates = core.getStates(childNr);
+                        if (childStates != null) {
+                            // ambiguous states contribute 1
+                            int state = childStates[site];
+                            if (state < numStates) {
+                                for (int parentState = 0; parentState < numStates; parentState++) {
+                                    partials[offset + parentState] *= matrices[w + parentState * numStates + state];
+                                }
+                            }
+                        } else {
+                            double[] childPartials = core.getPartialsBuffer(core.getCurrentPartialsIndex(childNr), childNr);
+                            for (int parentState = 0; parentState < numStates; parentState++) {
+                                double sum = 0.0;
+                                for (int childState = 0; childState < numStates; childState++) {
+                                    sum += matrices[w + parentState * numStates + childState] * childPartials[offset + childState];
+                                }
+                                partials[offset + parentState] *= sum;
+                            }
+                        }
+                    }
+                }
+            }
+
+            // root partials integrated over categories, then the site log likelihood
+            double[] rootPartials = core.getPartialsBuffer(core.getCurrentPartialsIndex(rootNr), rootNr);
+            double sum = 0.0;
+            for (int state = 0; state < numStates; state++) {
+                double rootPartial = rootPartials[site * numStates + state] * proportions[0];
+                for (int cat = 1; cat < numCategories; cat++) {
+                    rootPartial += rootPartials[(cat * numPatterns + site) * numStates + state] * proportions[cat];
+                }
+                if (constantStates != null && constantStates[site * numStates + state]) {
+                    rootPartial += proportionInvariant;
+                }
+                m_fRootPartials[site * numStates + state] = rootPartial;
+                sum += rootFrequencies[state] * rootPartial;
+            }
+            patternLogLikelihoods[site] = Math.log(sum);
+        }
+    }
+
+    private void updatePostOrder(Node node) {
+        if (node.isLeaf()) {
+            return;
+        }
+        int nodeNr = node.getNr();
+        for (int i = 0; i < 2; i++) {
+            Node child = node.getChild(i);
+            childNrs[nodeNr][i] = child.getNr();
+            updatePostOrder(child);
+        }
+        postOrder[postOrderCount++] = nodeNr;
+    }
+
+    private void clearChangedSites() {
+        for (int k = 0; k < changedSiteCount; k++) {
+            isChangedSite[changedSites[k]] = false;
+        }
+        changedSiteCount = 0;
+    }
+
+    private int addUndoEntry(int site) {
+        if (undoCount == undoSites.length) {
+            allocateUndo(2 * undoCount);
+        }
+        undoSites[undoCount] = site;
+        return undoCount++;
+    }
+
+    private void allocateUndo(int entries) {
+        if (undoSites == null) {
+            undoSites = new int[0];
+            undoBuffers = new int[0];
+            undoPartials = new double[0];
+            undoStates = new int[0];
+        }
+        undoSites = Arrays.copyOf(undoSites, entries);
+        undoBuffers = Arrays.copyOf(undoBuffers, entries * internalCount);
+        undoPartials = Arrays.copyOf(undoPartials, entries * internalCount * sitePartialsSize);
+        undoStates = Arrays.copyOf(undoStates, entries * leafCount);
+    }
+
+    /**
+     * Write back the leaf states and partials replaced by the site updates, last update first.
+     */
+    private void undoSiteUpdates() {
+        SiteAccess core = (SiteAccess) likelihoodCore;
+        for (int entry = undoCount - 1; entry >= 0; entry--) {
+            int site = undoSites[entry];
+            for (int leafNr = 0; leafNr < leafCount; leafNr++) {
+                core.getStates(leafNr)[site] = undoStates[entry * leafCount + leafNr];
+            }
+            for (int i = 0; i < internalCount; i++) {
+                int undoIndex = entry * internalCount + i;
+                double[] partials = core.getPartialsBuffer(undoBuffers[undoIndex], leafCount + i);
+                for (int cat = 0; cat < numCategories; cat++) {
+                    System.arraycopy(undoPartials, undoIndex * sitePartialsSize + cat * numStates,
+                            partials, (cat * numPatterns + site) * numStates, numStates);
+                }
+            }
+        }
+        undoCount = 0;
+    }
+
+    /**
+     * check state for changed variables and update temp results if necessary *
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean isDirty = super.requiresRecalculation();
+        // the reported sites are updated in place if nothing else changed
+        updateSitesOnly = isDirty && canUpdateSites && changedSiteCount > 0
+                && 2 * changedSiteCount <= numPatterns
+                && !likelihoodCore.getUseScaling()
+                && !dataInput.get().isDirtyCalculation()
+                && !m_siteModel.isDirtyCalculation()
+                && (branchRateModel == null || !branchRateModel.isDirtyCalculation())
+                && (rootFrequenciesInput.get() == null || !rootFrequenciesInput.get().isDirtyCalculation())
+                && !treeInput.get().somethingIsDirty();
+        return isDirty;
+    }
+
+    @Override
+    public void store() {
+        undoCount = 0;
+        super.store();
+        System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, numPatterns);
+    }
+
+    @Override
+    public void restore() {
+        undoSiteUpdates();
+        clearChangedSites();
+        updateSitesOnly = false;
+        super.restore();
+        double[] tmp = patternLogLikelihoods;
+        patternLogLikelihoods = storedPatternLogLikelihoods;
+        storedPatternLogLikelihoods = tmp;
+    }
+
+    @Override
+    protected void accept() {
+        undoCount = 0;
+        clearChangedSites();
+        super.accept();
+    }
+
+    /**
+     * Arrays of the likelihood core read and updated by the site updates.
+     */
+    private interface SiteAccess {
+        int getCurrentPartialsIndex(int nodeIndex);
+        double[] getPartialsBuffer(int bufferIndex, int nodeIndex);
+        int[] getStates(int nodeIndex);
+        double[] getCurrentMatrices(int nodeIndex);
+    }
+
+    private static class SiteLikelihoodCore extends BeerLikelihoodCore implements SiteAccess {
+
+        SiteLikelihoodCore(int nrOfStates) {
+            super(nrOfStates);
+        }
+
+        @Override
+        public int getCurrentPartialsIndex(int nodeIndex) {
+            return currentPartialsIndex[nodeIndex];
+        }
+
+        @Override
+        public double[] getPartialsBuffer(int bufferIndex, int nodeIndex) {
+            return partials[bufferIndex][nodeIndex];
+        }
+
+        @Override
+        public int[] getStates(int nodeIndex) {
+            return states[nodeIndex];
+        }
+
+        @Override
+        public double[] getCurrentMatrices(int nodeIndex) {
+            return matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+        }
+    }
+
+    private static class SiteLikelihoodCore4 extends BeerLikelihoodCore4 implements SiteAccess {
+
+        @Override
+        public int getCurrentPartialsIndex(int nodeIndex) {
+            return currentPartialsIndex[nodeIndex];
+        }
+
+        @Override
+        public double[] getPartialsBuffer(int bufferIndex, int nodeIndex) {
+            return partials[bufferIndex][nodeIndex];
+        }
+
+        @Override
+        public int[] getStates(int nodeIndex) {
+            return states[nodeIndex];
+        }
+
+        @Override
+        public double[] getCurrentMatrices(int nodeIndex) {
+            return matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+        }
+    }
+
+}
@@ -5,14 +5,13 @@ import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.datatype.Binary;
 import beast.base.evolution.datatype.DataType;
-import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 
 /**
  * Implements a general binary substitution model
  */
 @Description("A binary substitution model with a single rate parameter")
-public class BinarySubstitutionModel extends GeneralSubstitutionModel implements SubstitutionModel {
+public class BinarySubstitutionModel extends ClosedFormSubstitutionModel implements SubstitutionModel {
     final public Input<RealParameter> lambdaInput = new Input<>("lambda", "lambda the rate of deletion and back mutation",  Input.Validate.REQUIRED);
 
     private RealParameter lambda;
@@ -36,6 +35,7 @@ public class BinarySubstitutionModel extends GeneralSubstitutionModel implements
         } catch(Exception e) {
             e.printStackTrace();
         }
+        initClosedForm();
     }
 
     @Override
@@ -0,0 +1,200 @@
+package phylonco.beast.evolution.substitutionmodel;
+
+import beast.base.core.Description;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.base.evolution.tree.Node;
+
+/**
+ * Substitution model with two or three states where transition probabilities have a closed form.
+ * The rate matrix Q has eigenvalues 0 and one or two distinct negative real values mu_k,
+ * so by Sylvester's formula
+ *
+ *  P(t) = sum_k exp(mu_k * t) * A_k
+ *
+ * with spectral projectors A_k = prod_{j != k} (Q - mu_j I) / (mu_k - mu_j).
+ * The projectors are computed once when the rate matrix changes, while holding the lock on the model,
+ * so a transition matrix costs one or two exponentials. Matrices are not cached for each branch here,
+ * a {@link phylonco.beast.evolution.likelihood.TransitionMatrixCache} can be put in front of the model for that.
+ * If the eigenvalues are not distinct and real the eigen system is used instead.
+ */
+@Description("Substitution model with closed form transition probabilities for two or three states")
+public abstract class ClosedFormSubstitutionModel extends GeneralSubstitutionModel {
+
+    // relative gap between eigenvalues below which the closed form is not used
+    private static final double EIGENVALUE_TOLERANCE = 1e-8;
+
+    // eigenvalues of the rate matrix, the first one is zero
+    protected double[] eigenValues;
+    // spectral projector of each eigenvalue, flattened n x n
+    protected double[][] projectors;
+    protected boolean closedForm;
+
+    private double[] storedEigenValues;
+    private double[][] storedProjectors;
+    private boolean storedClosedForm;
+    private double[][] storedRateMatrix;
+
+    protected void initClosedForm() {
+        eigenValues = new double[nrOfStates];
+        projectors = new double[nrOfStates][nrOfStates * nrOfStates];
+        storedEigenValues = new double[nrOfStates];
+        storedProjectors = new double[nrOfStates][nrOfStates * nrOfStates];
+        storedRateMatrix = new double[nrOfStates][nrOfStates];
+    }
+
+    @Override
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        synchronized (this) {
+            if (updateMatrix) {
+                updateProjectors();
+            }
+        }
+        if (!closedForm) {
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            return;
+        }
+        calculateTransitionProbabilities((startTime - endTime) * rate, matrix);
+    }
+
+    private void calculateTransitionProbabilities(double distance, double[] matrix) {
+        int size = nrOfStates * nrOfStates;
+        System.arraycopy(projectors[0], 0, matrix, 0, size);
+        for (int k = 1; k < nrOfStates; k++) {
+            double e = Math.exp(eigenValues[k] * distance);
+            double[] projector = projectors[k];
+            for (int i = 0; i < size; i++) {
+                matrix[i] += e * projector[i];
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (matrix[i] < 0.0) {
+                matrix[i] = 0.0;
+            }
+        }
+    }
+
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        synchronized (this) {
+            if (updateMatrix) {
+                updateProjectors();
+            }
+            if (eigenDecomposition == null) {
+                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+            }
+        }
+        return eigenDecomposition;
+    }
+
+    /**
+     * Sets up the rate matrix and its spectral projectors,
+     * the eigen decomposition is only calculated when it is needed
+     */
+    private void updateProjectors() {
+        setupRelativeRates();
+        setupRateMatrix();
+        closedForm = setupEigenValues() && setupProjectors();
+        eigenDecomposition = closedForm ? null : eigenSystem.decomposeMatrix(rateMatrix);
+        updateMatrix = false;
+    }
+
+    /**
+     * The rows of Q sum to zero, so the nonzero eigenvalues are the roots of
+     * mu^2 - trace(Q) * mu + (sum of principal 2 x 2 minors) for three states, and trace(Q) for two states
+     */
+    private boolean setupEigenValues() {
+        eigenValues[0] = 0.0;
+        double trace = 0.0;
+        for (int i = 0; i < nrOfStates; i++) {
+            trace += rateMatrix[i][i];
+        }
+        if (nrOfStates == 2) {
+            eigenValues[1] = trace;
+            return trace < 0.0;
+        }
+        if (nrOfStates != 3) {
+            return false;
+        }
+        double minors = 0.0;
+        for (int i = 0; i < nrOfStates; i++) {
+            for (int j = i + 1; j < nrOfStates; j++) {
+                minors += rateMatrix[i][i] * rateMatrix[j][j] - rateMatrix[i][j] * rateMatrix[j][i];
+            }
+        }
+        double discriminant = trace * trace - 4 * minors;
+        if (!(discriminant > 0.0) || minors <= 0.0) {
+            return false;
+        }
+        // stable roots, the product of the roots is the sum of minors
+        double mu2 = (trace - Math.sqrt(discriminant)) / 2;
+        double mu1 = minors / mu2;
+        eigenValues[1] = mu1;
+        eigenValues[2] = mu2;
+        return mu1 < 0.0 && (mu1 - mu2) > EIGENVALUE_TOLERANCE * -mu2;
+    }
+
+    private boolean setupProjectors() {
+        int n = nrOfStates;
+        double[] product = new double[n * n];
+        for (int k = 0; k < n; k++) {
+            double[] projector = projectors[k];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    projector[i * n + j] = i == j ? 1.0 : 0.0;
+                }
+            }
+            for (int m = 0; m < n; m++) {
+                if (m == k) {
+                    continue;
+                }
+                double scale = 1.0 / (eigenValues[k] - eigenValues[m]);
+                // projector * (Q - mu_m I) / (mu_k - mu_m)
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        double sum = -eigenValues[m] * projector[i * n + j];
+                        for (int l = 0; l < n; l++) {
+                            sum += projector[i * n + l] * rateMatrix[l][j];
+                        }
+                        product[i * n + j] = sum * scale;
+                    }
+                }
+                System.arraycopy(product, 0, projector, 0, n * n);
+            }
+            for (double value : projector) {
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(eigenValues, 0, storedEigenValues, 0, nrOfStates);
+        for (int k = 0; k < nrOfStates; k++) {
+            System.arraycopy(projectors[k], 0, storedProjectors[k], 0, nrOfStates * nrOfStates);
+            System.arraycopy(rateMatrix[k], 0, storedRateMatrix[k], 0, nrOfStates);
+        }
+        storedClosedForm = closedForm;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = eigenValues;
+        eigenValues = storedEigenValues;
+        storedEigenValues = tmp;
+        double[][] tmp2 = projectors;
+        projectors = storedProjectors;
+        storedProjectors = tmp2;
+        // the eigen decomposition may be calculated later from the rate matrix
+        tmp2 = rateMatrix;
+        rateMatrix = storedRateMatrix;
+        storedRateMatrix = tmp2;
+        closedForm = storedClosedForm;
+        super.restore();
+    }
+
+}
@@ -3,8 +3,12 @@ package phylonco.beast.evolution.substitutionmodel;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.substitutionmodel.DefaultEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.EigenSystem;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
 import beast.base.inference.parameter.RealParameter;
 import phylonco.beast.evolution.datatype.NucleotideDiploid16;
 
@@ -23,8 +27,25 @@ public class GT16 extends GeneralSubstitutionModel implements SubstitutionModel
 
     final public Input<RealParameter> nucRatesInput = new Input<>("nucRates", "rate parameters for AC, AG, AT, CG, CT, GT");
 
+    final public Input<Boolean> factoriseInput = new Input<>("factorise", "compute transition probabilities from the " +
+            "two allele processes when the rate matrix factorises, which is the case for equal genotype frequencies", true);
+
     private RealParameter rates;
 
+    private static final int BASES = 4;
+    // relative tolerance when checking whether the rate matrix factorises
+    private static final double FACTORISE_TOLERANCE = 1e-12;
+
+    // whether the rate matrix is the Kronecker sum of a rate matrix for each allele
+    private boolean factorised;
+    private boolean storedFactorised;
+    private EigenSystem alleleEigenSystem;
+    // eigen decompositions of the rate matrices of the first and second allele
+    private EigenDecomposition firstDecomposition;
+    private EigenDecomposition secondDecomposition;
+    private EigenDecomposition storedFirstDecomposition;
+    private EigenDecomposition storedSecondDecomposition;
+
     public GT16() {
         super.ratesInput.setRule(Input.Validate.OPTIONAL);
     }
@@ -59,6 +80,176 @@ public class GT16 extends GeneralSubstitutionModel implements SubstitutionModel
         } catch(Exception e) {
             e.printStackTrace();
         }
+        alleleEigenSystem = new DefaultEigenSystem(BASES);
+    }
+
+    @Override
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        if (!factoriseInput.get()) {
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            return;
+        }
+        EigenDecomposition firstAllele;
+        EigenDecomposition secondAllele;
+        synchronized (this) {
+            if (updateMatrix) {
+                updateEigenDecomposition();
+            }
+            firstAllele = factorised ? firstDecomposition : null;
+            secondAllele = secondDecomposition;
+        }
+        if (firstAllele == null) {
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            return;
+        }
+        double distance = (startTime - endTime) * rate;
+        // work arrays are local since tree likelihoods may call this from several threads
+        double[] firstProbabilities = new double[BASES * BASES];
+        double[] secondProbabilities = new double[BASES * BASES];
+        getAlleleProbabilities(firstAllele, distance, firstProbabilities);
+        getAlleleProbabilities(secondAllele, distance, secondProbabilities);
+        // P(t) is the Kronecker product of the transition probabilities of each allele
+        int u = 0;
+        for (int a = 0; a < BASES; a++) {
+            for (int b = 0; b < BASES; b++) {
+                for (int c = 0; c < BASES; c++) {
+                    double first = firstProbabilities[a * BASES + c];
+                    for (int d = 0; d < BASES; d++) {
+                        matrix[u++] = first * secondProbabilities[b * BASES + d];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        if (!factoriseInput.get()) {
+            return super.getEigenDecomposition(node);
+        }
+        synchronized (this) {
+            if (updateMatrix) {
+                updateEigenDecomposition();
+            }
+        }
+        return eigenDecomposition;
+    }
+
+    private void updateEigenDecomposition() {
+        setupRelativeRates();
+        setupRateMatrix();
+        factorised = isKroneckerSum();
+        if (factorised) {
+            double[][] first = new double[BASES][BASES];
+            double[][] second = new double[BASES][BASES];
+            for (int a = 0; a < BASES; a++) {
+                for (int c = 0; c < BASES; c++) {
+                    if (a != c) {
+                        first[a][c] = rateMatrix[a * BASES][c * BASES];
+                        first[a][a] -= first[a][c];
+                        second[a][c] = rateMatrix[a][c];
+                        second[a][a] -= second[a][c];
+                    }
+                }
+            }
+            firstDecomposition = alleleEigenSystem.decomposeMatrix(first);
+            secondDecomposition = alleleEigenSystem.decomposeMatrix(second);
+            eigenDecomposition = getKroneckerDecomposition(firstDecomposition, secondDecomposition);
+        } else {
+            eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+        }
+        updateMatrix = false;
+    }
+
+    /**
+     * @return true if a change of the first allele has the same rate whatever the second allele is and vice versa,
+     * so the rate matrix is the Kronecker sum of one rate matrix for each allele
+     */
+    private boolean isKroneckerSum() {
+        for (int i = 0; i < nrOfStates; i++) {
+            int fromFirst = i / BASES;
+            int fromSecond = i % BASES;
+            for (int j = 0; j < nrOfStates; j++) {
+                int toFirst = j / BASES;
+                int toSecond = j % BASES;
+                double expected;
+                if (i == j) {
+                    continue;
+                } else if (fromSecond == toSecond) {
+                    expected = rateMatrix[fromFirst * BASES][toFirst * BASES];
+                } else if (fromFirst == toFirst) {
+                    expected = rateMatrix[fromSecond][toSecond];
+                } else {
+                    expected = 0.0;
+                }
+                if (Math.abs(rateMatrix[i][j] - expected) > FACTORISE_TOLERANCE * Math.abs(expected)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static EigenDecomposition getKroneckerDecomposition(EigenDecomposition first, EigenDecomposition second) {
+        int n = BASES * BASES;
+        double[] eigenVectors = new double[n * n];
+        double[] inverseEigenVectors = new double[n * n];
+        double[] eigenValues = new double[n];
+        double[] firstVectors = first.getEigenVectors();
+        double[] secondVectors = second.getEigenVectors();
+        double[] firstInverse = first.getInverseEigenVectors();
+        double[] secondInverse = second.getInverseEigenVectors();
+        for (int p = 0; p < BASES; p++) {
+            for (int q = 0; q < BASES; q++) {
+                eigenValues[p * BASES + q] = first.getEigenValues()[p] + second.getEigenValues()[q];
+            }
+        }
+        for (int a = 0; a < BASES; a++) {
+            for (int b = 0; b < BASES; b++) {
+                for (int p = 0; p < BASES; p++) {
+                    for (int q = 0; q < BASES; q++) {
+                        eigenVectors[(a * BASES + b) * n + p * BASES + q] = firstVectors[a * BASES + p] * secondVectors[b * BASES + q];
+                        inverseEigenVectors[(p * BASES + q) * n + a * BASES + b] = firstInverse[p * BASES + a] * secondInverse[q * BASES + b];
+                    }
+                }
+            }
+        }
+        return new EigenDecomposition(eigenVectors, inverseEigenVectors, eigenValues);
+    }
+
+    private static void getAlleleProbabilities(EigenDecomposition decomposition, double distance, double[] matrix) {
+        double[] eigenVectors = decomposition.getEigenVectors();
+        double[] inverseEigenVectors = decomposition.getInverseEigenVectors();
+        double[] eigenValues = decomposition.getEigenValues();
+        double[] exponentials = new double[BASES];
+        for (int k = 0; k < BASES; k++) {
+            exponentials[k] = Math.exp(distance * eigenValues[k]);
+        }
+        for (int i = 0; i < BASES; i++) {
+            for (int j = 0; j < BASES; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < BASES; k++) {
+                    sum += eigenVectors[i * BASES + k] * exponentials[k] * inverseEigenVectors[k * BASES + j];
+                }
+                matrix[i * BASES + j] = Math.max(sum, 0.0);
+            }
+        }
+    }
+
+    @Override
+    public void store() {
+        storedFactorised = factorised;
+        storedFirstDecomposition = firstDecomposition;
+        storedSecondDecomposition = secondDecomposition;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        factorised = storedFactorised;
+        firstDecomposition = storedFirstDecomposition;
+        secondDecomposition = storedSecondDecomposition;
+        super.restore();
     }
 
     @Override
@@ -5,7 +5,6 @@ import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.datatype.Binary;
 import beast.base.evolution.datatype.DataType;
-import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 
 /**
@@ -27,7 +26,7 @@ import beast.base.evolution.substitutionmodel.SubstitutionModel;
  *  pi1 = 1 / (x)
  */
 @Description("SiFit binary substitution model")
-public class SiFit2 extends GeneralSubstitutionModel implements SubstitutionModel {
+public class SiFit2 extends ClosedFormSubstitutionModel implements SubstitutionModel {
     final public Input<RealParameter> lambdaDInput = new Input<>("lambdaD", "lambda D the rate of deletions in the SiFit Binary model",  Input.Validate.REQUIRED);
     final public Input<RealParameter> lambdaLInput = new Input<>("lambdaL", "lambda L the rate of LOH in the SiFit Binary model",  Input.Validate.REQUIRED);
 
@@ -54,6 +53,7 @@ public class SiFit2 extends GeneralSubstitutionModel implements SubstitutionMode
         } catch(Exception e) {
             e.printStackTrace();
         }
+        initClosedForm();
     }
 
     @Override
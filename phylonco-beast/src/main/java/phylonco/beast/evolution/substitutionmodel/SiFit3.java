@@ -3,7 +3,6 @@ package phylonco.beast.evolution.substitutionmodel;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.datatype.DataType;
-import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.inference.parameter.RealParameter;
 import phylonco.beast.evolution.datatype.Ternary;
@@ -49,7 +48,7 @@ import phylonco.beast.evolution.datatype.Ternary;
  *
  */
 @Description("SiFit ternary substitution model")
-public class SiFit3 extends GeneralSubstitutionModel implements SubstitutionModel {
+public class SiFit3 extends ClosedFormSubstitutionModel implements SubstitutionModel {
     final public Input<RealParameter> lambdaDInput = new Input<>("lambdaD", "lambda D the rate of deletions in the SiFit Ternary model",  Input.Validate.REQUIRED);
     final public Input<RealParameter> lambdaLInput = new Input<>("lambdaL", "lambda L the rate of LOH in the SiFit Ternary model",  Input.Validate.REQUIRED);
     final public Input<Boolean> mutationPathInput = new Input<>("mutationPath", "allow mutation paths from state 1 to 0 and state 1 to 2", false);
@@ -79,6 +78,7 @@ public class SiFit3 extends GeneralSubstitutionModel implements SubstitutionMode
         } catch(Exception e) {
             e.printStackTrace();
         }
+        initClosedForm();
     }
 
     @Override
@@ -0,0 +1,96 @@
+package phylonco.beast.evolution.datatype;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadCountTest {
+
+    @Test
+    public void testParseValue() {
+        ReadCount readCount = new ReadCount("1:0:0:11,0:17:0:12\n7:0:0:26,0:12:0:8\n");
+        assertEquals(2, readCount.getTaxaNumber());
+        assertEquals(2, readCount.getSiteNumber());
+        assertArrayEquals(new int[]{1, 0, 0, 11}, readCount.getReadCounts(0, 0));
+        assertArrayEquals(new int[]{0, 17, 0, 12}, readCount.getReadCounts(0, 1));
+        assertArrayEquals(new int[]{7, 0, 0, 26}, readCount.getReadCounts(1, 0));
+        assertArrayEquals(new int[]{0, 12, 0, 8}, readCount.getReadCounts(1, 1));
+    }
+
+    @Test
+    public void testParseFile() throws IOException {
+        String value = "  1:0:0:11, 0:17:0:12,\r\n\n7:0:0:26,0:12:0:8";
+        Path file = Files.createTempFile("readCounts", ".txt");
+        try {
+            Files.writeString(file, value);
+            ReadCount readCount = new ReadCount();
+            readCount.initByName("file", file.toString());
+            assertArrayEquals(new ReadCount(value).getCounts(), readCount.getCounts());
+            assertEquals(2, readCount.getTaxaNumber());
+            assertEquals(2, readCount.getSiteNumber());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testMapBinaryFile() throws IOException {
+        Path file = Files.createTempFile("readCounts", ".rcb");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(ReadCount.BINARY_MAGIC);
+            out.writeInt(ReadCount.BINARY_VERSION);
+            out.writeInt(2); // ntaxa
+            out.writeInt(2); // nchar
+            for (String taxon : new String[]{"cell1", "cell2"}) {
+                out.writeInt(taxon.length());
+                out.writeBytes(taxon);
+            }
+            out.writeInt(100);
+            out.writeInt(205);
+            out.writeByte(3);
+            out.writeByte(-1);
+            for (int count : new int[]{1, 0, 0, 11, 0, 17, 0, 12, 7, 0, 0, 26, 0, 12, 0, 8}) {
+                out.writeInt(count);
+            }
+        }
+        try {
+            ReadCount readCount = new ReadCount();
+            readCount.initByName("file", file.toString());
+            assertTrue(readCount.isMapped());
+            assertArrayEquals(new ReadCount("1:0:0:11,0:17:0:12\n7:0:0:26,0:12:0:8").getCounts(), readCount.getCounts());
+            assertArrayEquals(new String[]{"cell1", "cell2"}, readCount.getTaxaNames());
+            assertArrayEquals(new String[]{"100", "205"}, readCount.getSitesIndex());
+            assertArrayEquals(new int[]{0, 12, 0, 8}, readCount.getReadCounts("cell2", "205"));
+            assertEquals(3, readCount.getRefIndex(0));
+            assertEquals(-1, readCount.getRefIndex(1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingCount() {
+        new ReadCount("1:0:0,0:17:0:12\n");
+    }
+
+    @Test
+    public void testOffsets() {
+        ReadCount readCount = new ReadCount(2, 3);
+        readCount.setReadCounts(1, 2, new int[]{3, 1, 4, 1});
+        int offset = readCount.getOffset(1, 2);
+        int[] counts = readCount.getCounts();
+        for (int i = 0; i < ReadCount.NUCLEOTIDES; i++) {
+            assertEquals(readCount.getReadCounts(1, 2)[i], counts[offset + i]);
+        }
+        assertEquals(9, readCount.getCoverage(1, 2));
+        assertEquals(0, readCount.getCoverage(0, 2));
+    }
+
+}
@@ -249,4 +249,38 @@ public class BeagleTreeLikelihoodWithErrorTest {
         double expectedLogP = -5.1071258693509041;
         assertEquals(expectedLogP, logP, DELTA);
     }
-}
\ No newline at end of file
+
+    /**
+     * A scheme that underflowed with rescaling on during the benchmark is not kept, even when it was the fastest.
+     * The first underflow of dynamic rescaling switches rescaling on, is recovered and is not reported as unsafe,
+     * so dynamic is kept if it is the fastest scheme.
+     */
+    @Test
+    public void testScalingBenchmarkSkipsUnderflow() {
+        BeagleTreeLikelihoodWithError likelihood = new BeagleTreeLikelihoodWithError();
+        int evaluations = 2;
+        likelihood.startBenchmark(evaluations);
+        // times for dynamic, always and delayed, in the order the schemes are timed in
+        long[] times = {10, 30, 20};
+        int[] order = {0, 1, 2, 2, 1, 0};
+        for (int step = 0; step < order.length; step++) {
+            int scheme = order[step];
+            for (int i = 0; i < evaluations; i++) {
+                likelihood.updateBenchmark(times[scheme], true, false);
+            }
+        }
+        assertEquals(BeagleTreeLikelihoodWithError.PartialsRescalingScheme.DYNAMIC, likelihood.getRescalingScheme());
+
+        likelihood.startBenchmark(evaluations);
+        for (int step = 0; step < order.length; step++) {
+            int scheme = order[step];
+            for (int i = 0; i < evaluations; i++) {
+                // dynamic underflows with rescaling on once in its second pass
+                boolean unsafe = scheme == 0 && step == 5 && i == 0;
+                likelihood.updateBenchmark(times[scheme], true, unsafe);
+            }
+        }
+        assertEquals(BeagleTreeLikelihoodWithError.PartialsRescalingScheme.DELAYED, likelihood.getRescalingScheme());
+    }
+
+}
@@ -0,0 +1,137 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ErrorLikelihoodCoreTest {
+
+    private static final double DELTA = 1e-15;
+
+    private static final int NR_OF_STATES = 4;
+    private static final int NR_OF_CODES = 6;
+    private static final int NR_OF_PATTERNS = 7;
+    private static final int NR_OF_MATRICES = 3;
+
+    private static double[][] randomErrorMatrix(Random random) {
+        double[][] errorMatrix = new double[NR_OF_CODES][NR_OF_STATES];
+        for (int code = 0; code < NR_OF_CODES; code++) {
+            for (int i = 0; i < NR_OF_STATES; i++) {
+                errorMatrix[code][i] = random.nextDouble();
+            }
+        }
+        return errorMatrix;
+    }
+
+    /**
+     * Sets up three tips and two internal nodes, tips are observed codes when useCodes is true,
+     * otherwise tips are partials copied from the error matrix rows of the codes.
+     */
+    private static BeerLikelihoodCore createCore(boolean useCodes, boolean integrateCategories, double[][] errorMatrix) {
+        Random random = new Random(42);
+        BeerLikelihoodCore core = useCodes ? new ErrorLikelihoodCore(NR_OF_STATES, NR_OF_CODES) : new BeerLikelihoodCore(NR_OF_STATES);
+        core.initialize(5, NR_OF_PATTERNS, NR_OF_MATRICES, integrateCategories, true);
+        double[] matrix = new double[NR_OF_STATES * NR_OF_STATES];
+        for (int node = 0; node < 5; node++) {
+            if (node < 3) {
+                int[] codes = new int[NR_OF_PATTERNS];
+                double[] partials = new double[NR_OF_PATTERNS * NR_OF_STATES];
+                for (int k = 0; k < NR_OF_PATTERNS; k++) {
+                    codes[k] = random.nextInt(NR_OF_CODES);
+                    System.arraycopy(errorMatrix[codes[k]], 0, partials, k * NR_OF_STATES, NR_OF_STATES);
+                }
+                if (useCodes) {
+                    core.createNodeStates(node);
+                    core.setNodeStates(node, codes);
+                } else {
+                    core.createNodePartials(node);
+                    core.setNodePartials(node, partials);
+                }
+            } else {
+                core.createNodePartials(node);
+            }
+            for (int l = 0; l < NR_OF_MATRICES; l++) {
+                for (int i = 0; i < matrix.length; i++) {
+                    matrix[i] = random.nextDouble();
+                }
+                core.setNodeMatrix(node, l, matrix);
+            }
+        }
+        if (useCodes) {
+            ((ErrorLikelihoodCore) core).setErrorMatrix(errorMatrix);
+        }
+        return core;
+    }
+
+    private static double[] calculatePartials(BeerLikelihoodCore core, int[] matrixMap) {
+        // tip and tip, then partials and tip so the tip is swapped to the first child
+        if (matrixMap == null) {
+            core.calculatePartials(0, 1, 3);
+            core.calculatePartials(3, 2, 4);
+        } else {
+            core.calculatePartials(0, 1, 3, matrixMap);
+            core.calculatePartials(3, 2, 4, matrixMap);
+        }
+        int size = NR_OF_PATTERNS * NR_OF_STATES * (matrixMap == null ? NR_OF_MATRICES : 1);
+        double[] result = new double[size * 2];
+        double[] nodePartials = new double[size];
+        core.getPartials(3, nodePartials);
+        System.arraycopy(nodePartials, 0, result, 0, size);
+        core.getPartials(4, nodePartials);
+        System.arraycopy(nodePartials, 0, result, size, size);
+        return result;
+    }
+
+    private static int[] createMatrixMap() {
+        int[] matrixMap = new int[NR_OF_PATTERNS];
+        for (int k = 0; k < NR_OF_PATTERNS; k++) {
+            matrixMap[k] = (k * 2) % NR_OF_MATRICES;
+        }
+        return matrixMap;
+    }
+
+    @Test
+    public void testPartialsIntegrateCategories() {
+        double[][] errorMatrix = randomErrorMatrix(new Random(7));
+        double[] expected = calculatePartials(createCore(false, true, errorMatrix), null);
+        double[] partials = calculatePartials(createCore(true, true, errorMatrix), null);
+        assertArrayEquals(expected, partials, DELTA);
+    }
+
+    @Test
+    public void testPartialsMatrixMap() {
+        double[][] errorMatrix = randomErrorMatrix(new Random(7));
+        int[] matrixMap = createMatrixMap();
+        double[] expected = calculatePartials(createCore(false, false, errorMatrix), matrixMap);
+        double[] partials = calculatePartials(createCore(true, false, errorMatrix), matrixMap);
+        assertArrayEquals(expected, partials, DELTA);
+    }
+
+    /**
+     * A rejected error matrix change should restore the previous error matrix.
+     */
+    @Test
+    public void testErrorMatrixRestore() {
+        Random random = new Random(7);
+        double[][] errorMatrix = randomErrorMatrix(random);
+        double[][] proposedErrorMatrix = randomErrorMatrix(random);
+        int[] matrixMap = createMatrixMap();
+
+        ErrorLikelihoodCore core = (ErrorLikelihoodCore) createCore(true, false, errorMatrix);
+        double[] expected = calculatePartials(core, matrixMap);
+        core.store();
+
+        core.setErrorMatrix(proposedErrorMatrix);
+        core.setNodePartialsForUpdate(3);
+        core.setNodePartialsForUpdate(4);
+        double[] proposed = calculatePartials(core, matrixMap);
+        assertArrayEquals(calculatePartials(createCore(false, false, proposedErrorMatrix), matrixMap), proposed, DELTA);
+
+        core.restore();
+        assertArrayEquals(expected, calculatePartials(core, matrixMap), DELTA);
+    }
+
+}
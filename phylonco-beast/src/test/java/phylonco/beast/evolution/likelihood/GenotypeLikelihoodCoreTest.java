@@ -0,0 +1,70 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class GenotypeLikelihoodCoreTest {
+
+    private static final double DELTA = 1e-15;
+
+    private static double[] calculatePartials(BeerLikelihoodCore core, int nrOfStates, int nrOfPatterns, int nrOfMatrices) {
+        Random random = new Random(42);
+        core.initialize(5, nrOfPatterns, nrOfMatrices, true, true);
+        int[] states = new int[nrOfPatterns];
+        for (int k = 0; k < nrOfPatterns; k++) {
+            // include unknown states
+            states[k] = random.nextInt(nrOfStates + 1);
+        }
+        double[] partials = new double[nrOfPatterns * nrOfStates];
+        for (int i = 0; i < partials.length; i++) {
+            partials[i] = random.nextDouble();
+        }
+        double[] matrix = new double[nrOfStates * nrOfStates];
+        for (int node = 0; node < 5; node++) {
+            if (node == 0) {
+                core.createNodeStates(node);
+                core.setNodeStates(node, states);
+            } else {
+                core.createNodePartials(node);
+                if (node == 1) {
+                    core.setNodePartials(node, partials);
+                }
+            }
+            for (int l = 0; l < nrOfMatrices; l++) {
+                for (int i = 0; i < matrix.length; i++) {
+                    matrix[i] = random.nextDouble();
+                }
+                core.setNodeMatrix(node, l, matrix);
+            }
+        }
+        // states and partials, then partials and partials
+        core.calculatePartials(0, 1, 2);
+        core.calculatePartials(2, 1, 3);
+        double[] result = new double[nrOfPatterns * nrOfStates * nrOfMatrices * 2];
+        double[] nodePartials = new double[nrOfPatterns * nrOfStates * nrOfMatrices];
+        core.getPartials(2, nodePartials);
+        System.arraycopy(nodePartials, 0, result, 0, nodePartials.length);
+        core.getPartials(3, nodePartials);
+        System.arraycopy(nodePartials, 0, result, nodePartials.length, nodePartials.length);
+        return result;
+    }
+
+    @Test
+    public void testPartialsGT10() {
+        double[] expected = calculatePartials(new BeerLikelihoodCore(10), 10, 7, 4);
+        double[] partials = calculatePartials(new GenotypeLikelihoodCore(10), 10, 7, 4);
+        assertArrayEquals(expected, partials, DELTA);
+    }
+
+    @Test
+    public void testPartialsGT16() {
+        double[] expected = calculatePartials(new BeerLikelihoodCore(16), 16, 7, 4);
+        double[] partials = calculatePartials(new GenotypeLikelihoodCore(16), 16, 7, 4);
+        assertArrayEquals(expected, partials, DELTA);
+    }
+
+}
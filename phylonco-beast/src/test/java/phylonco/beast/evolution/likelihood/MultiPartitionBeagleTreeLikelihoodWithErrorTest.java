@@ -0,0 +1,210 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.datatype.Nucleotide;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.errormodel.ErrorModelBase;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Uses one BEAGLE instance for all partitions if BEAGLE is installed,
+ * otherwise one java likelihood for each partition.
+ */
+public class MultiPartitionBeagleTreeLikelihoodWithErrorTest {
+
+    private static final double DELTA = 1e-10;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    private static Alignment getAlignment(String a, String b, String c) {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", a),
+                "sequence", new Sequence("b", b),
+                "sequence", new Sequence("c", c),
+                "dataType", "nucleotide"
+        );
+        return data;
+    }
+
+    private static SiteModel getSiteModel(String mutationRate) {
+        JukesCantor subsModel = new JukesCantor();
+        subsModel.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", mutationRate, "gammaCategoryCount", 4, "shape", "0.5", "substModel", subsModel);
+        return siteModel;
+    }
+
+    private static ErrorModelBase getErrorModel(Object epsilon) {
+        ErrorModelBase errorModel = new ErrorModelBase();
+        errorModel.initByName("epsilon", epsilon, "datatype", new Nucleotide());
+        return errorModel;
+    }
+
+    private static TreeParser getTree(Alignment data) {
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a:0.2,b:0.3):0.1,c:0.4);",
+                "IsLabelledNewick", true
+        );
+        return tree;
+    }
+
+    private static double calculateLikelihoodWithError(Alignment data, TreeParser tree, SiteModel siteModel, ErrorModelBase errorModel) {
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "useAmbiguities", true,
+                "useTipLikelihoods", true,
+                "errorModel", errorModel);
+        return likelihood.calculateLogP();
+    }
+
+    @Test
+    public void testJCLikelihoodTwoPartitions() {
+        Alignment data1 = getAlignment("ACGTNR", "AAGT-Y", "CCGANA");
+        Alignment data2 = getAlignment("TTGCA", "TAGCA", "CTGGA");
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data1,
+                "newick", "((a:0.2,b:0.3):0.1,c:0.4);",
+                "IsLabelledNewick", true
+        );
+
+        double expectedLogP = 0;
+        String[] mutationRates = {"1.0", "2.0"};
+        String[] epsilons = {"0.1", "0.05"};
+        Alignment[] alignments = {data1, data2};
+        for (int k = 0; k < alignments.length; k++) {
+            TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+            likelihood.initByName(
+                    "data", alignments[k],
+                    "tree", tree,
+                    "siteModel", getSiteModel(mutationRates[k]),
+                    "useAmbiguities", true,
+                    "useTipLikelihoods", true,
+                    "errorModel", getErrorModel(epsilons[k]));
+            expectedLogP += likelihood.calculateLogP();
+        }
+
+        MultiPartitionBeagleTreeLikelihoodWithError likelihood = new MultiPartitionBeagleTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", Arrays.asList(data1, data2),
+                "tree", tree,
+                "siteModel", Arrays.asList(getSiteModel(mutationRates[0]), getSiteModel(mutationRates[1])),
+                "errorModel", Arrays.asList(getErrorModel(epsilons[0]), getErrorModel(epsilons[1])));
+        double logP = likelihood.calculateLogP();
+        assertEquals(expectedLogP, logP, DELTA);
+    }
+
+    /**
+     * Tips are uploaded only for the partition whose error model changed,
+     * and the previous tip partials are restored when the proposal is rejected.
+     */
+    @Test
+    public void testRestoreAfterEpsilonChange() {
+        Alignment data1 = getAlignment("ACGTNR", "AAGT-Y", "CCGANA");
+        Alignment data2 = getAlignment("TTGCA", "TAGCA", "CTGGA");
+        TreeParser tree = getTree(data1);
+        SiteModel siteModel1 = getSiteModel("1.0");
+        SiteModel siteModel2 = getSiteModel("2.0");
+        RealParameter epsilon1 = new RealParameter("0.1");
+        RealParameter epsilon2 = new RealParameter("0.05");
+        ErrorModelBase errorModel1 = getErrorModel(epsilon1);
+        ErrorModelBase errorModel2 = getErrorModel(epsilon2);
+
+        MultiPartitionBeagleTreeLikelihoodWithError likelihood = new MultiPartitionBeagleTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", Arrays.asList(data1, data2),
+                "tree", tree,
+                "siteModel", Arrays.asList(siteModel1, siteModel2),
+                "errorModel", Arrays.asList(errorModel1, errorModel2));
+        State state = new State();
+        state.initByName("stateNode", epsilon1, "stateNode", epsilon2);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        // epsilon of the first or second partition, and whether the change is accepted
+        RealParameter[] parameters = {epsilon2, epsilon1, epsilon2, epsilon1, epsilon2};
+        double[] values = {0.2, 0.3, 0.01, 0.02, 0.15};
+        boolean[] accept = {false, true, false, false, true};
+        for (int i = 0; i < values.length; i++) {
+            state.store(i);
+            parameters[i].setValue(values[i]);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            double expected = calculateLikelihoodWithError(data1, tree, siteModel1, errorModel1) +
+                    calculateLikelihoodWithError(data2, tree, siteModel2, errorModel2);
+            assertEquals(expected, likelihood.calculateLogP(), DELTA);
+            if (accept[i]) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            expected = calculateLikelihoodWithError(data1, tree, siteModel1, errorModel1) +
+                    calculateLikelihoodWithError(data2, tree, siteModel2, errorModel2);
+            assertEquals(expected, likelihood.getCurrentLogP(), DELTA);
+        }
+        double logP = likelihood.getCurrentLogP();
+        state.robustlyCalcPosterior(likelihood);
+        assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+    }
+
+    /**
+     * The shared BEAGLE instance should give the sum of one BEAGLE likelihood for each partition.
+     */
+    @Test
+    public void testBeagleSumOfPartitions() {
+        Alignment data1 = getAlignment("ACGTNR", "AAGT-Y", "CCGANA");
+        Alignment data2 = getAlignment("TTGCA", "TAGCA", "CTGGA");
+        TreeParser tree = getTree(data1);
+        MultiPartitionBeagleTreeLikelihoodWithError likelihood = new MultiPartitionBeagleTreeLikelihoodWithError();
+        likelihood.initByName(
+                "data", Arrays.asList(data1, data2),
+                "tree", tree,
+                "siteModel", Arrays.asList(getSiteModel("1.0"), getSiteModel("2.0")),
+                "errorModel", Arrays.asList(getErrorModel("0.1"), getErrorModel("0.05")));
+        Assume.assumeTrue("BEAGLE partition operations are not available", likelihood.beagle != null);
+
+        String[] mutationRates = {"1.0", "2.0"};
+        String[] epsilons = {"0.1", "0.05"};
+        Alignment[] alignments = {data1, data2};
+        double expectedLogP = 0;
+        double[] expectedPartitionLogP = new double[alignments.length];
+        for (int k = 0; k < alignments.length; k++) {
+            BeagleTreeLikelihoodWithError partitionLikelihood = new BeagleTreeLikelihoodWithError();
+            partitionLikelihood.initByName(
+                    "data", alignments[k],
+                    "tree", tree,
+                    "siteModel", getSiteModel(mutationRates[k]),
+                    "errorModel", getErrorModel(epsilons[k]));
+            expectedPartitionLogP[k] = partitionLikelihood.calculateLogP();
+            expectedLogP += expectedPartitionLogP[k];
+        }
+        assertEquals(expectedLogP, likelihood.calculateLogP(), DELTA);
+        assertArrayEquals(expectedPartitionLogP, likelihood.getPartitionLogLikelihoods(), DELTA);
+    }
+
+}
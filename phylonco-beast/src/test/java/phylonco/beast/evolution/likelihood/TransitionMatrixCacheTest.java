@@ -0,0 +1,151 @@
+package phylonco.beast.evolution.likelihood;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.errormodel.ErrorModelBase;
+import phylonco.beast.evolution.substitutionmodel.SiFit3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TransitionMatrixCacheTest {
+
+    private static final double DELTA = 1e-15;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    private static HKY getHKY() {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter("0.1 0.2 0.3 0.4"));
+        HKY hky = new HKY();
+        hky.initByName("kappa", new RealParameter("2.0"), "frequencies", freqs);
+        return hky;
+    }
+
+    @Test
+    public void testCachedMatrices() {
+        HKY hky = getHKY();
+        TransitionMatrixCache cache = new TransitionMatrixCache();
+        cache.initByName("substModel", hky, "matricesPerBranch", 2);
+
+        Node node = new Node();
+        node.setNr(3);
+        double[] expected = new double[16];
+        double[] matrix = new double[16];
+        hky.getTransitionProbabilities(node, 1.0, 0.5, 1.5, expected);
+        cache.getTransitionProbabilities(node, 1.0, 0.5, 1.5, matrix);
+        assertArrayEquals(expected, matrix, DELTA);
+        assertEquals(1, cache.getMissCount());
+
+        // same distance for the same branch is a hit
+        cache.getTransitionProbabilities(node, 0.75, 0.25, 1.5, matrix);
+        assertArrayEquals(expected, matrix, DELTA);
+        assertEquals(1, cache.getHitCount());
+
+        // a different distance is calculated and kept next to the first one
+        hky.getTransitionProbabilities(node, 1.0, 0.5, 3.0, expected);
+        cache.getTransitionProbabilities(node, 1.0, 0.5, 3.0, matrix);
+        assertArrayEquals(expected, matrix, DELTA);
+        assertEquals(2, cache.getMissCount());
+        cache.getTransitionProbabilities(node, 1.0, 0.5, 1.5, matrix);
+        assertEquals(2, cache.getHitCount());
+
+        // invalidated matrices are calculated again
+        cache.invalidate();
+        cache.getTransitionProbabilities(node, 1.0, 0.5, 3.0, matrix);
+        assertArrayEquals(expected, matrix, DELTA);
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testTreeLikelihoodWithCache() {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGTNAAC"),
+                "sequence", new Sequence("b", "AAGT-CAC"),
+                "sequence", new Sequence("c", "CCGANAGT"),
+                "dataType", "nucleotide"
+        );
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a:0.2,b:0.3):0.1,c:0.4);",
+                "IsLabelledNewick", true
+        );
+        ErrorModelBase errorModel = new ErrorModelBase();
+        errorModel.initByName("epsilon", "0.1", "datatype", data.getDataType());
+
+        HKY hky = getHKY();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+        TreeLikelihoodWithError likelihood = new TreeLikelihoodWithError();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "errorModel", errorModel);
+        double expectedLogP = likelihood.calculateLogP();
+
+        TransitionMatrixCache cache = new TransitionMatrixCache();
+        cache.initByName("substModel", hky);
+        TreeLikelihoodWithError cachedLikelihood = new TreeLikelihoodWithError();
+        cachedLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "errorModel", errorModel,
+                "transitionMatrixCache", cache);
+        assertEquals(expectedLogP, cachedLikelihood.calculateLogP(), DELTA);
+        // one matrix for each category of the four branches
+        assertEquals(16, cache.getMissCount());
+    }
+
+    /**
+     * Closed form models do not cache matrices themselves, the cache in front of them
+     * recalculates matrices after a parameter change and matches the model again after restore.
+     */
+    @Test
+    public void testClosedFormModel() {
+        RealParameter lambdaD = new RealParameter("2.0");
+        SiFit3 sifit3 = new SiFit3();
+        sifit3.initByName("lambdaD", lambdaD, "lambdaL", new RealParameter("3.0"));
+        TransitionMatrixCache cache = new TransitionMatrixCache();
+        cache.initByName("substModel", sifit3);
+        State state = new State();
+        state.initByName("stateNode", lambdaD);
+        state.initialise();
+        state.setPosterior(cache);
+
+        Node node = new Node();
+        node.setNr(1);
+        double[] before = new double[9];
+        double[] expected = new double[9];
+        double[] matrix = new double[9];
+        cache.getTransitionProbabilities(node, 0.4, 0.1, 1.0, before);
+        cache.getTransitionProbabilities(node, 0.4, 0.1, 1.0, matrix);
+        assertArrayEquals(before, matrix, DELTA);
+        assertEquals(1, cache.getHitCount());
+
+        state.store(0);
+        lambdaD.setValue(0.5);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        sifit3.getTransitionProbabilities(node, 0.4, 0.1, 1.0, expected);
+        cache.getTransitionProbabilities(node, 0.4, 0.1, 1.0, matrix);
+        assertArrayEquals(expected, matrix, DELTA);
+        assertEquals(2, cache.getMissCount());
+
+        state.restore();
+        state.restoreCalculationNodes();
+        cache.getTransitionProbabilities(node, 0.4, 0.1, 1.0, matrix);
+        assertArrayEquals(before, matrix, DELTA);
+        sifit3.getTransitionProbabilities(node, 0.4, 0.1, 1.0, expected);
+        assertArrayEquals(expected, matrix, DELTA);
+    }
+
+}
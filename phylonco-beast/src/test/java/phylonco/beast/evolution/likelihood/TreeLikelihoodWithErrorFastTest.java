@@ -8,12 +8,14 @@ import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.JukesCantor;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import phylonco.beast.TestUtils;
 import phylonco.beast.evolution.datatype.NucleotideDiploid16;
 import phylonco.beast.evolution.errormodel.BinaryErrorModel;
+import phylonco.beast.evolution.errormodel.ErrorModel;
 import phylonco.beast.evolution.errormodel.ErrorModelBase;
 import phylonco.beast.evolution.errormodel.GT16ErrorModel;
 import phylonco.beast.evolution.substitutionmodel.BinarySubstitutionModel;
@@ -102,6 +104,209 @@ public class TreeLikelihoodWithErrorFastTest {
         assertEquals(expectedLogP, logP, DELTA);
     }
 
+    @Test
+    public void testJCLikelihoodTipCodes() {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGTNR"),
+                "sequence", new Sequence("b", "AAGT-Y"),
+                "sequence", new Sequence("c", "CCGANA"),
+                "dataType", "nucleotide"
+        );
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, c: 0.4);",
+                "IsLabelledNewick", true
+        );
+
+        JukesCantor subsModel = new JukesCantor();
+        subsModel.initAndValidate();
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", subsModel);
+        siteModel.initAndValidate();
+
+        ErrorModelBase errorModel = new ErrorModelBase();
+        errorModel.initByName("epsilon", "0.1", "datatype", new Nucleotide());
+        errorModel.initAndValidate();
+
+        double[] logP = new double[2];
+        boolean[] useTipCodes = {false, true};
+        for (int i = 0; i < useTipCodes.length; i++) {
+            TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+            likelihood.initByName(
+                    "data", data,
+                    "tree", tree,
+                    "siteModel", siteModel,
+                    "useAmbiguities", true,
+                    "useTipLikelihoods", true,
+                    "useTipCodes", useTipCodes[i],
+                    "errorModel", errorModel);
+            logP[i] = likelihood.calculateLogP();
+        }
+        assertEquals(logP[0], logP[1], DELTA);
+    }
+
+    /**
+     * With tip codes the error matrix is copied into the likelihood core after epsilon change,
+     * and the previous error matrix is restored with the core when the proposal is rejected.
+     */
+    @Test
+    public void testJCLikelihoodTipCodesUpdates() {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGTNR"),
+                "sequence", new Sequence("b", "AAGT-Y"),
+                "sequence", new Sequence("c", "CCGANA"),
+                "dataType", "nucleotide"
+        );
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, c: 0.4);",
+                "IsLabelledNewick", true
+        );
+        JukesCantor subsModel = new JukesCantor();
+        subsModel.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", subsModel);
+
+        RealParameter epsilon = new RealParameter("0.1");
+        ErrorModelBase errorModel = new ErrorModelBase();
+        errorModel.initByName("epsilon", epsilon, "datatype", new Nucleotide());
+
+        TreeLikelihoodWithErrorFast likelihood = createLikelihoodTipCodes(data, tree, siteModel, errorModel, true);
+        State state = new State();
+        state.initByName("stateNode", epsilon);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        double[] values = {0.05, 0.2, 0.3, 0.01, 0.15};
+        boolean[] accept = {true, false, true, false, false};
+        for (int i = 0; i < values.length; i++) {
+            state.store(i);
+            epsilon.setValue(values[i]);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            double expected = createLikelihoodTipCodes(data, tree, siteModel, errorModel, false).calculateLogP();
+            assertEquals(expected, likelihood.calculateLogP(), DELTA);
+            if (accept[i]) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            expected = createLikelihoodTipCodes(data, tree, siteModel, errorModel, false).calculateLogP();
+            assertEquals(expected, likelihood.getCurrentLogP(), DELTA);
+        }
+        // recalculating everything after the rejected changes gives the same likelihood
+        double logP = likelihood.getCurrentLogP();
+        state.robustlyCalcPosterior(likelihood);
+        assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+    }
+
+    private TreeLikelihoodWithErrorFast createLikelihoodTipCodes(Alignment data, TreeParser tree, SiteModel siteModel,
+                                                                 ErrorModel errorModel, boolean useTipCodes) {
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "useAmbiguities", true,
+                "useTipLikelihoods", true,
+                "useTipCodes", useTipCodes,
+                "errorModel", errorModel);
+        return likelihood;
+    }
+
+    /**
+     * Leaf partials are refreshed in place after epsilon or delta change,
+     * and restored with the likelihood core when the proposal is rejected.
+     */
+    @Test
+    public void testGT16ErrorParameterUpdates() {
+        Alignment data = new Alignment();
+        data.initByName(
+                "sequence", new Sequence("a", "05AF3M-7"),
+                "sequence", new Sequence("b", "0FA5CRK7"),
+                "sequence", new Sequence("c", "1562?W0E"),
+                "sequence", new Sequence("d", "05A2BY9D"),
+                "userDataType", new NucleotideDiploid16()
+        );
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "((a: 0.2, b: 0.3): 0.1, (c: 0.4, d: 0.1): 0.2);",
+                "IsLabelledNewick", true
+        );
+
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+        RealParameter nucRates = new RealParameter(new Double[]{1.0, 2.0, 3.0, 4.0, 5.0, 6.0});
+        nucRates.initByName("keys", "AC AG AT CG CT GT");
+        phylonco.beast.evolution.substitutionmodel.GT16 subsModel = new phylonco.beast.evolution.substitutionmodel.GT16();
+        subsModel.initByName("nucRates", nucRates, "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", subsModel);
+
+        RealParameter epsilon = new RealParameter("0.1");
+        RealParameter delta = new RealParameter("0.2");
+        GT16ErrorModel errorModel = new GT16ErrorModel();
+        errorModel.initByName("epsilon", epsilon, "delta", delta, "datatype", new NucleotideDiploid16());
+
+        TreeLikelihoodWithErrorFast likelihood = new TreeLikelihoodWithErrorFast();
+        likelihood.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "errorModel", errorModel);
+        State state = new State();
+        state.initByName("stateNode", epsilon, "stateNode", delta);
+        state.initialise();
+        state.setPosterior(likelihood);
+        state.robustlyCalcPosterior(likelihood);
+
+        double[][] values = {{0.05, 0.2}, {0.05, 0.3}, {0.2, 0.1}, {0.15, 0.1}, {0.01, 0.4}, {0.3, 0.25}};
+        boolean[] accept = {true, false, false, true, false, true};
+        for (int i = 0; i < values.length; i++) {
+            state.store(i);
+            // change epsilon, delta or both
+            if (values[i][0] != epsilon.getValue()) {
+                epsilon.setValue(values[i][0]);
+            }
+            if (values[i][1] != delta.getValue()) {
+                delta.setValue(values[i][1]);
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            assertEquals(calculateLikelihoodWithError(data, tree, siteModel, errorModel), likelihood.calculateLogP(), DELTA);
+            if (accept[i]) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            // a fresh likelihood reads the error matrix of the current, possibly restored, parameters
+            assertEquals(calculateLikelihoodWithError(data, tree, siteModel, errorModel), likelihood.getCurrentLogP(), DELTA);
+        }
+        double logP = likelihood.getCurrentLogP();
+        state.robustlyCalcPosterior(likelihood);
+        assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+    }
+
+    private double calculateLikelihoodWithError(Alignment data, TreeParser tree, SiteModel siteModel, ErrorModel errorModel) {
+        TreeLikelihoodWithError likelihood = new TreeLikelihoodWithError();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "errorModel", errorModel);
+        return likelihood.calculateLogP();
+    }
+
     private double calculateLikelihoodBinary(String seq, String alpha, String beta) {
         Alignment data = new Alignment();
         Sequence seqA = new Sequence("a", seq.substring(0, 1));
@@ -0,0 +1,44 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AliasTableTest {
+
+    @Test
+    public void testSampleProportions() {
+        double[] weights = {1.0, 0.0, 3.0, 0.5, 2.5, 0.0, 1.0};
+        AliasTable table = new AliasTable();
+        table.build(weights, weights.length);
+        assertEquals(8.0, table.getTotal(), 1e-15);
+
+        // evenly spaced uniform numbers give the weights up to the spacing
+        int draws = 800000;
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < draws; i++) {
+            counts[table.sample((i + 0.5) / draws)]++;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(weights[i] / 8.0, (double) counts[i] / draws, 1e-4);
+        }
+        assertEquals(0, counts[1]);
+        assertEquals(0, counts[5]);
+    }
+
+    @Test
+    public void testRebuild() {
+        AliasTable table = new AliasTable();
+        table.build(new double[]{1.0, 1.0, 1.0, 1.0}, 4);
+        // fewer weights reuse the arrays of the first table
+        table.build(new double[]{0.0, 2.0, 0.0, 0.0}, 2);
+        assertEquals(2.0, table.getTotal(), 1e-15);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, table.sample(i / 100.0));
+        }
+
+        table.build(new double[]{0.0, 0.0}, 2);
+        assertEquals(0.0, table.getTotal(), 0.0);
+    }
+
+}
@@ -0,0 +1,91 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CategoricalSamplingTest {
+
+    private static final double DELTA = 1e-12;
+
+    @Test
+    public void testLogSumExp() {
+        double[] logProbs = {Math.log(0.1), Math.log(0.2), Math.log(0.3), Math.log(0.4)};
+        assertEquals(0.0, CategoricalSampling.logSumExp(logProbs, 4), DELTA);
+        // only the first size entries are used
+        assertEquals(Math.log(0.3), CategoricalSampling.logSumExp(logProbs, 2), DELTA);
+
+        // exp overflows without the shift by the maximum
+        double[] large = {1000.0, 1000.0, 999.0};
+        assertEquals(1000.0 + Math.log(2.0 + Math.exp(-1.0)), CategoricalSampling.logSumExp(large, 3), DELTA);
+        double[] small = {-1000.0, -1001.0};
+        assertEquals(-1000.0 + Math.log(1.0 + Math.exp(-1.0)), CategoricalSampling.logSumExp(small, 2), DELTA);
+
+        double[] withZero = {Double.NEGATIVE_INFINITY, Math.log(0.5), Double.NEGATIVE_INFINITY, Math.log(0.5)};
+        assertEquals(0.0, CategoricalSampling.logSumExp(withZero, 4), DELTA);
+        double[] allZero = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        assertEquals(Double.NEGATIVE_INFINITY, CategoricalSampling.logSumExp(allZero, 2), 0.0);
+    }
+
+    @Test
+    public void testSampleFromLogProbs() {
+        double[] probs = {0.05, 0.0, 0.4, 0.15, 0.3, 0.1};
+        double[] logProbs = new double[probs.length];
+
+        // evenly spaced uniform numbers give the probabilities up to the spacing
+        int draws = 100000;
+        int[] counts = new int[probs.length];
+        for (int i = 0; i < draws; i++) {
+            for (int j = 0; j < probs.length; j++) {
+                // shifted far from zero, exp of the unshifted log probabilities would underflow
+                logProbs[j] = Math.log(probs[j]) - 800.0;
+            }
+            counts[CategoricalSampling.sampleFromLogProbs(logProbs, probs.length, (i + 0.5) / draws)]++;
+        }
+        for (int j = 0; j < probs.length; j++) {
+            assertEquals(probs[j], (double) counts[j] / draws, 1e-4);
+        }
+        assertEquals(0, counts[1]);
+    }
+
+    @Test
+    public void testExpInPlace() {
+        double[] logProbs = {Math.log(2.0), Double.NEGATIVE_INFINITY, Math.log(6.0)};
+        double max = CategoricalSampling.max(logProbs, 3);
+        assertEquals(Math.log(6.0), max, DELTA);
+        double total = CategoricalSampling.expInPlace(logProbs, 3, max);
+        assertEquals(4.0 / 3.0, total, DELTA);
+        assertEquals(1.0 / 3.0, logProbs[0], DELTA);
+        assertEquals(0.0, logProbs[1], 0.0);
+        assertEquals(1.0, logProbs[2], DELTA);
+    }
+
+    @Test
+    public void testEntropy() {
+        double[] uniform = {2.0, 2.0, 2.0, 2.0};
+        assertEquals(Math.log(4.0), CategoricalSampling.entropy(uniform, 4, 8.0), DELTA);
+
+        // zero weights do not contribute
+        double[] weights = {0.0, 1.0, 3.0, 0.0};
+        double expected = -(0.25 * Math.log(0.25) + 0.75 * Math.log(0.75));
+        assertEquals(expected, CategoricalSampling.entropy(weights, 4, 4.0), DELTA);
+
+        double[] point = {0.0, 5.0, 0.0};
+        assertEquals(0.0, CategoricalSampling.entropy(point, 3, 5.0), 0.0);
+    }
+
+    @Test
+    public void testSampleZeroWeights() {
+        double[] weights = {0.0, 0.0, 1.0, 0.0, 3.0, 0.0};
+        for (int i = 0; i < 1000; i++) {
+            int index = CategoricalSampling.sample(weights, weights.length, 4.0, i / 1000.0);
+            assertEquals(i < 250 ? 2 : 4, index);
+        }
+
+        // a total larger than the cumulative sum, as from rounding, gives the last positive weight
+        assertEquals(4, CategoricalSampling.sample(weights, weights.length, 4.0 + 1e-9, 1.0 - 1e-12));
+        double[] lastZero = {0.5, 0.5, 0.0};
+        assertEquals(1, CategoricalSampling.sample(lastZero, 3, 1.0 + 1e-9, 1.0 - 1e-12));
+    }
+
+}
@@ -0,0 +1,142 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.datatype.NucleotideDiploid16;
+import phylonco.beast.evolution.datatype.ReadCount;
+import phylonco.beast.evolution.substitutionmodel.GT16;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class GibbsAlignmentOperatorTest {
+
+    private static final double DELTA = 1e-10;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    /**
+     * The incremental sweep keeps partials computed with the operator's own transition matrix cache,
+     * which must follow changes of the substitution model parameters made between sweeps.
+     */
+    @Test
+    public void testIncrementalSweepAfterParameterChange() {
+        MutableAlignment data = new MutableAlignment();
+        data.initByName(
+                "sequence", new Sequence("e", "AF05C2E7"),
+                "sequence", new Sequence("c", "1562FA0E"),
+                "sequence", new Sequence("a", "05AF3C57"),
+                "sequence", new Sequence("d", "05A2B59D"),
+                "sequence", new Sequence("b", "0FA5CA07"),
+                "userDataType", new NucleotideDiploid16()
+        );
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "newick", "(((e:0.2,c:0.3):0.1,a:0.4):0.15,(d:0.25,b:0.05):0.3);",
+                "IsLabelledNewick", true
+        );
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+        RealParameter nucRates = new RealParameter(new Double[]{1.0, 2.0, 0.5, 1.0, 2.0, 1.0});
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+        GT16 gt16 = new GT16();
+        gt16.initByName("nucRates", nucRates, "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 2, "shape", "0.5", "substModel", gt16);
+
+        Random random = new Random(5);
+        ReadCount readCount = new ReadCount(data.getTaxonCount(), data.getSiteCount());
+        for (int taxon = 0; taxon < data.getTaxonCount(); taxon++) {
+            for (int site = 0; site < data.getSiteCount(); site++) {
+                int[] counts = new int[4];
+                for (int k = 0; k < 4; k++) {
+                    counts[k] = random.nextInt(k == site % 4 ? 20 : 4);
+                }
+                readCount.setReadCounts(taxon, site, counts);
+            }
+        }
+        LikelihoodReadCountModel readCountModel = new LikelihoodReadCountModel();
+        readCountModel.initByName(
+                "alignment", data,
+                "readCount", readCount,
+                "epsilon", new RealParameter("0.06"),
+                "delta", new RealParameter("0.2"),
+                "t", new RealParameter("10.0"),
+                "v", new RealParameter("1.0"),
+                "s", new RealParameter(new Double[]{1.0, 1.1, 0.9, 1.0, 1.2}),
+                "w1", new RealParameter("10.0"),
+                "w2", new RealParameter("2.0"));
+        MATreeLikelihood treeLikelihood = new MATreeLikelihood();
+        treeLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+        GibbsAlignmentOperator operator = new GibbsAlignmentOperator();
+        operator.initByName(
+                "mutableAlignment", data,
+                "maTreeLikelihood", treeLikelihood,
+                "likelihoodReadCountModel", readCountModel,
+                "incrementalPartials", true,
+                "weight", 1.0);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", readCountModel, "distribution", treeLikelihood);
+        State state = new State();
+        state.initByName("stateNode", data, "stateNode", nucRates);
+        state.initialise();
+        state.setPosterior(posterior);
+        state.robustlyCalcPosterior(posterior);
+
+        Randomizer.setSeed(11);
+        int numStates = 16;
+        int numSites = data.getSiteCount();
+        double[] logProbs = new double[numSites * numStates];
+        double[] expected = new double[numSites * numStates];
+        double[] values = {3.0, 0.2, 5.0};
+        int step = 0;
+        for (double value : values) {
+            // parameter step
+            state.store(step++);
+            nucRates.setValue(1, value);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            posterior.calculateLogP();
+            state.acceptCalculationNodes();
+            state.setEverythingDirty(false);
+
+            // Gibbs step, the partials left by the sweep should match partials of the new alignment
+            state.store(step++);
+            operator.proposal();
+            LeafConditionalLikelihood expectedConditional = new LeafConditionalLikelihood(treeLikelihood, gt16);
+            expectedConditional.update();
+            for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+                operator.getLeafConditionalLikelihood().calculateLogProbs(leafNr, logProbs);
+                expectedConditional.calculateLogProbs(leafNr, expected);
+                assertArrayEquals(expected, logProbs, DELTA);
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            posterior.calculateLogP();
+            state.acceptCalculationNodes();
+            state.setEverythingDirty(false);
+        }
+    }
+
+}
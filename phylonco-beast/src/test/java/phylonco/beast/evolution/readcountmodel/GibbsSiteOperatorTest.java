@@ -0,0 +1,251 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+import phylonco.beast.evolution.datatype.NucleotideDiploid16;
+import phylonco.beast.evolution.datatype.ReadCount;
+import phylonco.beast.evolution.substitutionmodel.GT16;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GibbsSiteOperatorTest {
+
+    private static final double DELTA = 1e-12;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+        // Randomizer.setSeed only seeds the generators of threads that drew a number before
+        Randomizer.nextDouble();
+    }
+
+    private MutableAlignment data;
+    private TreeParser tree;
+    private RealParameter nucRates;
+    private GT16 gt16;
+    private SiteModel siteModel;
+    private ReadCount readCount;
+    private LikelihoodReadCountModel readCountModel;
+
+    @Before
+    public void setUp() {
+        data = new MutableAlignment();
+        data.initByName(
+                "sequence", new Sequence("e", "AF05C2E7"),
+                "sequence", new Sequence("c", "1562FA0E"),
+                "sequence", new Sequence("a", "05AF3C57"),
+                "sequence", new Sequence("d", "05A2B59D"),
+                "sequence", new Sequence("b", "0FA5CA07"),
+                "userDataType", new NucleotideDiploid16()
+        );
+        // leaves are numbered by taxon name, not in the order of the alignment
+        tree = new TreeParser();
+        tree.initByName(
+                "newick", "(((e:0.2,c:0.3):0.1,a:0.4):0.15,(d:0.25,b:0.05):0.3);",
+                "IsLabelledNewick", true
+        );
+        Double[] pi = new Double[16];
+        Arrays.fill(pi, 1.0 / 16);
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter(pi), "estimate", false);
+        nucRates = new RealParameter(new Double[]{1.0, 2.0, 0.5, 1.0, 2.0, 1.0});
+        nucRates.setInputValue("keys", "AC AG AT CG CT GT");
+        nucRates.initAndValidate();
+        gt16 = new GT16();
+        gt16.initByName("nucRates", nucRates, "frequencies", freqs);
+        siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 2, "shape", "0.5", "substModel", gt16);
+
+        Random random = new Random(3);
+        readCount = new ReadCount(data.getTaxonCount(), data.getSiteCount());
+        for (int taxon = 0; taxon < data.getTaxonCount(); taxon++) {
+            for (int site = 0; site < data.getSiteCount(); site++) {
+                int[] counts = new int[4];
+                for (int k = 0; k < 4; k++) {
+                    counts[k] = random.nextInt(k == site % 4 ? 20 : 4);
+                }
+                readCount.setReadCounts(taxon, site, counts);
+            }
+        }
+        readCountModel = new LikelihoodReadCountModel();
+        readCountModel.initByName(
+                "alignment", data,
+                "readCount", readCount,
+                "epsilon", new RealParameter("0.06"),
+                "delta", new RealParameter("0.2"),
+                "t", new RealParameter("10.0"),
+                "v", new RealParameter("1.0"),
+                "s", new RealParameter(new Double[]{1.0, 1.1, 0.9, 1.0, 1.2}),
+                "w1", new RealParameter("10.0"),
+                "w2", new RealParameter("2.0"));
+    }
+
+    private GibbsSiteOperator getOperator(Object... extraInputs) {
+        Object[] inputs = {
+                "mutableAlignment", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "readCountModel", readCountModel,
+                "readCount", readCount,
+                "weight", 1.0};
+        Object[] allInputs = new Object[inputs.length + extraInputs.length];
+        System.arraycopy(inputs, 0, allInputs, 0, inputs.length);
+        System.arraycopy(extraInputs, 0, allInputs, inputs.length, extraInputs.length);
+        GibbsSiteOperator operator = new GibbsSiteOperator();
+        operator.initByName(allInputs);
+        return operator;
+    }
+
+    /**
+     * The operator's own transition matrix cache is not checked by the state,
+     * so its matrices must follow a change of the substitution model parameters.
+     */
+    @Test
+    public void testTransitionMatricesAfterParameterChange() {
+        GibbsSiteOperator operator = getOperator();
+        MATreeLikelihood treeLikelihood = new MATreeLikelihood();
+        treeLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", readCountModel, "distribution", treeLikelihood);
+        State state = new State();
+        state.initByName("stateNode", data, "stateNode", nucRates);
+        state.initialise();
+        state.setPosterior(posterior);
+        state.robustlyCalcPosterior(posterior);
+
+        double[] expected = new double[16 * 16];
+        double[] values = {3.0, 0.2, 5.0};
+        for (int i = 0; i < values.length; i++) {
+            state.store(i);
+            nucRates.setValue(1, values[i]);
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            operator.proposal();
+            for (Node node : tree.getNodesAsArray()) {
+                if (node.isRoot()) continue;
+                for (int cat = 0; cat < siteModel.getCategoryCount(); cat++) {
+                    gt16.getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(),
+                            siteModel.getRateForCategory(cat, node), expected);
+                    assertArrayEquals(expected, operator.getTransitionMatrix(cat, node.getNr()), DELTA);
+                }
+            }
+            posterior.calculateLogP();
+            state.acceptCalculationNodes();
+            state.setEverythingDirty(false);
+        }
+    }
+
+    /**
+     * Samples all sites once from the original alignment with a fixed seed.
+     * @return the sampled sequence of each taxon
+     */
+    private int[][] sampleAllSites(long seed, Object... extraInputs) {
+        int numTaxa = data.getTaxonCount();
+        int[][] original = new int[numTaxa][];
+        for (int taxon = 0; taxon < numTaxa; taxon++) {
+            original[taxon] = data.getSiteValuesByTaxon(taxon);
+        }
+        GibbsSiteOperator operator = getOperator(extraInputs);
+        Randomizer.setSeed(seed);
+        operator.proposal();
+        int[][] sampled = new int[numTaxa][];
+        for (int taxon = 0; taxon < numTaxa; taxon++) {
+            sampled[taxon] = data.getSiteValuesByTaxon(taxon);
+            data.setSiteValuesByTaxon(taxon, original[taxon]);
+        }
+        return sampled;
+    }
+
+    /**
+     * Each site has its own random number stream, so the sampled states do not depend on the number of threads,
+     * and running again with the same seed gives the same states.
+     */
+    @Test
+    public void testThreadsReproducible() {
+        int[][] serial = sampleAllSites(7, "sampleAllSites", true, "blockSize", 3);
+        int[][] threaded = sampleAllSites(7, "sampleAllSites", true, "blockSize", 3, "threads", 3);
+        int[][] threadedAgain = sampleAllSites(7, "sampleAllSites", true, "blockSize", 3, "threads", 3);
+        int[][] otherSeed = sampleAllSites(8, "sampleAllSites", true, "blockSize", 3, "threads", 3);
+        boolean differs = false;
+        for (int taxon = 0; taxon < serial.length; taxon++) {
+            assertArrayEquals(serial[taxon], threaded[taxon]);
+            assertArrayEquals(threaded[taxon], threadedAgain[taxon]);
+            differs |= !Arrays.equals(threaded[taxon], otherSeed[taxon]);
+        }
+        assertTrue("another seed should sample other states", differs);
+    }
+
+    /**
+     * Pruning one site at a time or a block of sites computes the same partials, so with the same random number
+     * streams every block size samples the same states.
+     */
+    @Test
+    public void testBlockSizes() {
+        for (long seed = 1; seed <= 5; seed++) {
+            int[][] singleSites = sampleAllSites(seed, "sampleAllSites", true, "blockSize", 1);
+            int[][] smallBlocks = sampleAllSites(seed, "sampleAllSites", true, "blockSize", 3);
+            int[][] oneBlock = sampleAllSites(seed, "sampleAllSites", true, "blockSize", 64);
+            for (int taxon = 0; taxon < singleSites.length; taxon++) {
+                assertArrayEquals(singleSites[taxon], smallBlocks[taxon]);
+                assertArrayEquals(singleSites[taxon], oneBlock[taxon]);
+            }
+        }
+    }
+
+    /**
+     * Pattern weights are changed in place, the site table is rebuilt once the operator is told about it.
+     */
+    @Test
+    public void testWeightsChanged() {
+        GibbsSiteOperator operator = getOperator("entropyWeight", 1.0, "entropyProposals", 20L);
+        operator.proposal();
+
+        // only the third site stays active
+        int[] weights = data.getWeights();
+        int[] original = weights.clone();
+        Arrays.fill(weights, 0);
+        weights[2] = 1;
+        operator.markWeightsChanged();
+        int numTaxa = data.getTaxonCount();
+        int[][] before = new int[numTaxa][];
+        for (int taxon = 0; taxon < numTaxa; taxon++) {
+            before[taxon] = data.getSiteValuesByTaxon(taxon);
+        }
+        Randomizer.setSeed(3);
+        boolean changed = false;
+        for (int i = 0; i < 50; i++) {
+            operator.proposal();
+            for (int taxon = 0; taxon < numTaxa; taxon++) {
+                int[] sequence = data.getSiteValuesByTaxon(taxon);
+                for (int site = 0; site < sequence.length; site++) {
+                    if (site != 2) {
+                        assertEquals(before[taxon][site], sequence[site]);
+                    } else {
+                        changed |= sequence[site] != before[taxon][site];
+                    }
+                }
+            }
+        }
+        assertTrue("the active site should be resampled", changed);
+        System.arraycopy(original, 0, weights, 0, weights.length);
+    }
+
+}
@@ -0,0 +1,176 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LeafConditionalLikelihoodTest {
+
+    private static final double DELTA = 1e-10;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    private MutableAlignment data;
+    private TreeParser tree;
+    private HKY hky;
+    private MATreeLikelihood likelihood;
+
+    @Before
+    public void setUp() {
+        data = new MutableAlignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGTAACGTT"),
+                "sequence", new Sequence("b", "AAGTCCAGTA"),
+                "sequence", new Sequence("c", "CCGAAAGTTC"),
+                "sequence", new Sequence("d", "ACTAGAGTCC"),
+                "sequence", new Sequence("e", "TCGAAAGTGC"),
+                "dataType", "nucleotide"
+        );
+        tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", "(((a:0.2,b:0.3):0.1,c:0.4):0.15,(d:0.25,e:0.05):0.3);",
+                "IsLabelledNewick", true
+        );
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter("0.1 0.2 0.3 0.4"));
+        hky = new HKY();
+        hky.initByName("kappa", new RealParameter("2.0"), "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+        likelihood = new MATreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        likelihood.calculateLogP();
+    }
+
+    @Test
+    public void testMatchesTreeLikelihood() {
+
+        int numStates = 4;
+        int numSites = data.getSiteCount();
+        LeafConditionalLikelihood leafConditional = new LeafConditionalLikelihood(likelihood, hky);
+        double[] logProbs = new double[numSites * numStates];
+        leafConditional.update();
+        for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+            leafConditional.calculateLogProbs(leafNr, logProbs);
+            for (int g = 0; g < numStates; g++) {
+                int[] sequence = new int[numSites];
+                Arrays.fill(sequence, g);
+                double[] expected = likelihood.getLogProbsForStateSequence(leafNr, sequence);
+                for (int s = 0; s < numSites; s++) {
+                    assertEquals(expected[s], logProbs[s * numStates + g], DELTA);
+                }
+            }
+            // the tree likelihood keeps the last sequence of the leaf, so put back the original one
+            int[] sequence = new int[numSites];
+            for (int s = 0; s < numSites; s++) {
+                sequence[s] = data.getPattern(leafNr, s);
+            }
+            likelihood.getLogProbsForStateSequence(leafNr, sequence);
+        }
+    }
+
+    @Test
+    public void testTaxonIndices() {
+        // leaves are numbered by taxon name, not in the order of the alignment
+        MutableAlignment shuffled = new MutableAlignment();
+        shuffled.initByName(
+                "sequence", new Sequence("e", "TCGAAAGTGC"),
+                "sequence", new Sequence("c", "CCGAAAGTTC"),
+                "sequence", new Sequence("a", "ACGTAACGTT"),
+                "sequence", new Sequence("d", "ACTAGAGTCC"),
+                "sequence", new Sequence("b", "AAGTCCAGTA"),
+                "dataType", "nucleotide"
+        );
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+        LeafConditionalLikelihood leafConditional = new LeafConditionalLikelihood(
+                shuffled, tree, siteModel, null, null, hky);
+        for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+            int taxonIndex = leafConditional.getTaxonIndex(leafNr);
+            assertEquals(tree.getNode(leafNr).getID(), shuffled.getTaxaNames().get(taxonIndex));
+            assertEquals(leafNr, leafConditional.getLeafNr(taxonIndex));
+        }
+        assertEquals(2, leafConditional.getTaxonIndex(0));
+    }
+
+    @Test
+    public void testUpdateLeaf() {
+        int numStates = 4;
+        int numSites = data.getSiteCount();
+        LeafConditionalLikelihood leafConditional = new LeafConditionalLikelihood(likelihood, hky);
+        leafConditional.update();
+
+        // change two leaves, updating only the partials on their paths
+        data.setSiteValuesByTaxon(1, new int[]{3, 2, 1, 0, 3, 2, 1, 0, 3, 2});
+        leafConditional.updateLeaf(1);
+        data.setSiteValuesByTaxon(3, new int[]{0, 0, 1, 1, 2, 2, 3, 3, 0, 1});
+        leafConditional.updateLeaf(3);
+
+        LeafConditionalLikelihood expectedConditional = new LeafConditionalLikelihood(likelihood, hky);
+        expectedConditional.update();
+        double[] logProbs = new double[numSites * numStates];
+        double[] expected = new double[numSites * numStates];
+        for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+            leafConditional.calculateLogProbs(leafNr, logProbs);
+            expectedConditional.calculateLogProbs(leafNr, expected);
+            assertArrayEquals(expected, logProbs, DELTA);
+        }
+    }
+
+    @Test
+    public void testUpdateFromCore() {
+        int numStates = 4;
+        int numSites = data.getSiteCount();
+        LeafConditionalLikelihood coreConditional = new LeafConditionalLikelihood(likelihood, hky);
+        LeafConditionalLikelihood expectedConditional = new LeafConditionalLikelihood(likelihood, hky);
+        double[] logProbs = new double[numSites * numStates];
+        double[] expected = new double[numSites * numStates];
+        expectedConditional.update();
+        for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+            coreConditional.updatePathFromCore(leafNr);
+            coreConditional.calculateLogProbs(leafNr, logProbs);
+            expectedConditional.calculateLogProbs(leafNr, expected);
+            assertArrayEquals(expected, logProbs, DELTA);
+        }
+
+        // exchange c with its uncle (d,e), giving (((a,b),(d,e)),c)
+        Node c = tree.getNode(2);
+        Node parent = c.getParent();
+        Node grandParent = parent.getParent();
+        Node uncle = grandParent.getLeft() == parent ? grandParent.getRight() : grandParent.getLeft();
+        parent.removeChild(c);
+        grandParent.removeChild(uncle);
+        parent.addChild(uncle);
+        grandParent.addChild(c);
+
+        expectedConditional.update();
+        for (int leafNr = 0; leafNr < tree.getLeafNodeCount(); leafNr++) {
+            // the core still has the partials of the tree before the exchange
+            coreConditional.updatePathFromCore(leafNr);
+            coreConditional.updateNodeFromCore(parent);
+            coreConditional.calculateLogProbs(leafNr, logProbs);
+            expectedConditional.calculateLogProbs(leafNr, expected);
+            assertArrayEquals(expected, logProbs, DELTA);
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import beast.base.evolution.alignment.Alignment;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.parser.NexusParser;
 import beast.pkgmgmt.BEASTClassLoader;
+import mutablealignment.MutableAlignment;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import phylonco.beast.evolution.datatype.ReadCount;
@@ -15,10 +16,12 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 
 public class LikelihoodReadCountModelTest {
@@ -101,6 +104,241 @@ public class LikelihoodReadCountModelTest {
 
     }
 
+    /**
+     * Changing a single parameter should only rebuild the tables that depend on it,
+     * and give the same log likelihood as a model initialised from scratch.
+     */
+    @Test
+    public void testIncrementalParameterUpdate() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        Alignment alignment = getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile());
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+
+        RealParameter delta = new RealParameter("0.5");
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+        RealParameter w2 = new RealParameter("2.0");
+        LikelihoodReadCountModel incremental = getReadCountModel(alignment, readCounts, delta, s, w2);
+        incremental.calculateLogP();
+
+        delta.setValue(0.2);
+        s.setValue(1, 0.8);
+        w2.setValue(3.0);
+        incremental.requiresRecalculation();
+        double observedLogP = incremental.calculateLogP();
+
+        LikelihoodReadCountModel fresh = getReadCountModel(alignment, readCounts,
+                new RealParameter("0.2"), new RealParameter(new Double[]{1.0399635911708527, 0.8}), new RealParameter("3.0"));
+        double expectedLogP = fresh.calculateLogP();
+
+        assertEquals(expectedLogP, observedLogP, DELTA);
+    }
+
+    /**
+     * Restoring after a rejected parameter change should switch back to the stored tables,
+     * and the next change should be calculated from the restored tables.
+     */
+    @Test
+    public void testRestoreParameterUpdate() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        Alignment alignment = getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile());
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+
+        RealParameter delta = new RealParameter("0.5");
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+        RealParameter w2 = new RealParameter("2.0");
+        LikelihoodReadCountModel incremental = getReadCountModel(alignment, readCounts, delta, s, w2);
+        double storedLogP = incremental.calculateLogP();
+
+        // rejected proposal changing every kind of table
+        incremental.store();
+        delta.setValue(0.2);
+        s.setValue(1, 0.8);
+        w2.setValue(3.0);
+        incremental.requiresRecalculation();
+        double proposedLogP = incremental.calculateLogP();
+        assertNotEquals(storedLogP, proposedLogP, DELTA);
+        delta.setValue(0.5);
+        s.setValue(1, 1.0419228814287969);
+        w2.setValue(2.0);
+        incremental.restore();
+        assertEquals(storedLogP, incremental.calculateLogP(), DELTA);
+
+        // accepted proposal after the restore, twice so both buffers are written
+        for (double value : new double[]{0.3, 0.4}) {
+            incremental.store();
+            delta.setValue(value);
+            s.setValue(0, value + 1.0);
+            incremental.requiresRecalculation();
+            double observedLogP = incremental.calculateLogP();
+
+            LikelihoodReadCountModel fresh = getReadCountModel(alignment, readCounts, new RealParameter(Double.toString(value)),
+                    new RealParameter(new Double[]{value + 1.0, 1.0419228814287969}), new RealParameter("2.0"));
+            assertEquals(fresh.calculateLogP(), observedLogP, DELTA);
+        }
+    }
+
+    /**
+     * Editing one site of a MutableAlignment should only rescore the changed cells,
+     * and restore() should return to the stored log likelihood.
+     */
+    @Test
+    public void testMutableAlignmentSiteUpdate() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        MutableAlignment alignment = new MutableAlignment(getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile()));
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+
+        LikelihoodReadCountModel incremental = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        double storedLogP = incremental.calculateLogP();
+
+        incremental.store();
+        int[] states = alignment.getSiteValuesBySite(1).clone();
+        for (int i = 0; i < states.length; i++) {
+            states[i] = (states[i] + 5) % 16;
+        }
+        alignment.setSiteValuesBySite(1, states);
+        incremental.requiresRecalculation();
+        double observedLogP = incremental.calculateLogP();
+
+        LikelihoodReadCountModel fresh = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        assertEquals(fresh.calculateLogP(), observedLogP, DELTA);
+
+        alignment.restore();
+        incremental.restore();
+        assertEquals(storedLogP, incremental.calculateLogP(), DELTA);
+    }
+
+    /**
+     * Sites reported with markSiteChanged() should be rescored without scanning the alignment,
+     * and restore() should return to the stored log likelihood.
+     */
+    @Test
+    public void testReportedSiteUpdate() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        MutableAlignment alignment = new MutableAlignment(getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile()));
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+
+        LikelihoodReadCountModel incremental = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        double storedLogP = incremental.calculateLogP();
+
+        for (int site = 0; site < alignment.getSiteCount(); site++) {
+            incremental.store();
+            int[] states = alignment.getSiteValuesBySite(site).clone();
+            for (int i = 0; i < states.length; i++) {
+                states[i] = (states[i] + 3 + site) % 16;
+            }
+            alignment.setSiteValuesBySite(site, states);
+            incremental.markSiteChanged(site);
+            incremental.requiresRecalculation();
+            double observedLogP = incremental.calculateLogP();
+
+            LikelihoodReadCountModel fresh = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+            assertEquals(fresh.calculateLogP(), observedLogP, DELTA);
+
+            alignment.restore();
+            incremental.restore();
+            assertEquals(storedLogP, incremental.calculateLogP(), DELTA);
+        }
+    }
+
+    /**
+     * A site turned on by editing the pattern weights in place should be scored once it is resampled,
+     * even if its new genotype is 0 and the read count parameters are fixed.
+     */
+    @Test
+    public void testSiteTurnedOn() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        MutableAlignment alignment = new MutableAlignment(getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile()));
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+
+        int[] weights = alignment.getWeights();
+        int[] original = weights.clone();
+        Arrays.fill(weights, 0);
+        weights[alignment.getPatternIndex(0)] = 1;
+        LikelihoodReadCountModel incremental = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        incremental.calculateLogP();
+
+        int site = 1;
+        incremental.store();
+        weights[alignment.getPatternIndex(site)] = 1;
+        alignment.setSiteValuesBySite(site, new int[alignment.getTaxonCount()]);
+        incremental.markSiteChanged(site);
+        incremental.requiresRecalculation();
+        double observedLogP = incremental.calculateLogP();
+
+        LikelihoodReadCountModel fresh = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        assertEquals(fresh.calculateLogP(), observedLogP, DELTA);
+        System.arraycopy(original, 0, weights, 0, weights.length);
+    }
+
+    /**
+     * Emission table entries should be refreshed after the read count parameters change.
+     */
+    @Test
+    public void testEmissionTable() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        Alignment alignment = getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile());
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+
+        RealParameter w2 = new RealParameter("2.0");
+        LikelihoodReadCountModel likelihoodReadCountModel = getReadCountModel(alignment, readCounts,
+                new RealParameter("0.5"), new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969}), w2);
+        likelihoodReadCountModel.setInputValue("emissionTable", true);
+        likelihoodReadCountModel.initAndValidate();
+        likelihoodReadCountModel.calculateLogP();
+
+        double[] logProbs = new double[16];
+        for (int k = 0; k < 2; k++) {
+            for (int i = 0; i < alignment.getTaxonCount(); i++) {
+                likelihoodReadCountModel.getEmissionLogProbs(i, 1, logProbs);
+                int[] counts = readCounts.getReadCounts(i, 1);
+                int coverage = counts[0] + counts[1] + counts[2] + counts[3];
+                for (int g = 0; g < 16; g++) {
+                    assertEquals(likelihoodReadCountModel.logLiklihoodRC(g, counts, coverage, i), logProbs[g], DELTA);
+                }
+            }
+            w2.setValue(3.0);
+            likelihoodReadCountModel.requiresRecalculation();
+            likelihoodReadCountModel.calculateLogP();
+        }
+    }
+
+    /**
+     * Calculating taxa on several threads should give exactly the serial log likelihood.
+     */
+    @Test
+    public void testThreadedCalculation() throws IOException {
+        Path dir = Path.of("src","test", "resources");
+        Alignment alignment = getAlignment(Paths.get(dir.toString(),"gt16ReadCountModel_A.nexus").toFile());
+        ReadCount readCounts = getReadCounts(Paths.get(dir.toString(),"readCountNumbers.txt").toFile());
+        RealParameter s = new RealParameter(new Double[]{1.0399635911708527, 1.0419228814287969});
+
+        LikelihoodReadCountModel serial = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        LikelihoodReadCountModel threaded = getReadCountModel(alignment, readCounts, new RealParameter("0.5"), s, new RealParameter("2.0"));
+        threaded.setInputValue("threads", 2);
+        threaded.initAndValidate();
+
+        assertEquals(serial.calculateLogP(), threaded.calculateLogP(), 0.0);
+    }
+
+    private LikelihoodReadCountModel getReadCountModel(Alignment alignment, ReadCount readCounts,
+                                                       RealParameter delta, RealParameter s, RealParameter w2) {
+        LikelihoodReadCountModel likelihoodReadCountModel = new LikelihoodReadCountModel();
+        likelihoodReadCountModel.initByName(
+                "alignment", alignment,
+                "readCount", readCounts,
+                "epsilon", new RealParameter("0.06"),
+                "delta", delta,
+                "t", new RealParameter("9.996182050184155"),
+                "v", new RealParameter("1.0670434040009762"),
+                "s", s,
+                "w1", new RealParameter("10.0"),
+                "w2", w2);
+        return likelihoodReadCountModel;
+    }
+
     private Alignment getAlignment(File file) {
         System.out.println("Processing " + file);
         NexusParser parser = new NexusParser();
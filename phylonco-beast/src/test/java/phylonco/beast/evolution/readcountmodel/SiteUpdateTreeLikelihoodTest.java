@@ -0,0 +1,147 @@
+package phylonco.beast.evolution.readcountmodel;
+
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import mutablealignment.MATreeLikelihood;
+import mutablealignment.MutableAlignment;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import phylonco.beast.TestUtils;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SiteUpdateTreeLikelihoodTest {
+
+    private static final double DELTA = 1e-10;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestUtils.loadServices();
+    }
+
+    @Test
+    public void testMatchesMATreeLikelihood() {
+        MutableAlignment data = new MutableAlignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGTAACGTTAAGTCCAGTA"),
+                "sequence", new Sequence("b", "AAGTCCAGTAACGTAACGTT"),
+                "sequence", new Sequence("c", "CCGAAAGTTCACTAGAGTCC"),
+                "sequence", new Sequence("d", "ACTAGAGTCCTCGAAAGTGC"),
+                "sequence", new Sequence("e", "TCGAAAGTGCCCGAAAGTTC"),
+                "dataType", "nucleotide"
+        );
+        // the tree is not an output of the alignment, so it is only stored when it is edited
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "newick", "(((a:0.2,b:0.3):0.1,c:0.4):0.15,(d:0.25,e:0.05):0.3);",
+                "IsLabelledNewick", true
+        );
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", new RealParameter("0.1 0.2 0.3 0.4"));
+        RealParameter kappa = new RealParameter("2.0");
+        HKY hky = new HKY();
+        hky.initByName("kappa", kappa, "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5",
+                "proportionInvariant", "0.2", "substModel", hky);
+
+        SiteUpdateTreeLikelihood likelihood = new SiteUpdateTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        MATreeLikelihood expectedLikelihood = new MATreeLikelihood();
+        expectedLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+        // both likelihoods are stored, checked and restored by the state
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", likelihood, "distribution", expectedLikelihood);
+        State state = new State();
+        state.initByName("stateNode", data, "stateNode", tree, "stateNode", kappa);
+        state.initialise();
+        state.setPosterior(posterior);
+        state.robustlyCalcPosterior(posterior);
+
+        Random random = new Random(7);
+        int numTaxa = data.getTaxonCount();
+        int numSites = data.getSiteCount();
+        int[] states = new int[numTaxa];
+        for (int iteration = 0; iteration < 60; iteration++) {
+            state.store(iteration);
+            // resample one or three sites, sometimes together with a node height or kappa
+            int changedSites = iteration % 2 == 0 ? 1 : 3;
+            for (int k = 0; k < changedSites; k++) {
+                int site = random.nextInt(numSites);
+                for (int taxon = 0; taxon < numTaxa; taxon++) {
+                    states[taxon] = random.nextInt(4);
+                }
+                data.setSiteValuesBySite(site, states);
+                likelihood.markSiteChanged(site);
+            }
+            boolean treeChanged = iteration % 5 == 4;
+            if (treeChanged) {
+                Node node = tree.getNode(6);
+                node.setHeight(node.getHeight() * (0.9 + 0.2 * random.nextDouble()));
+            }
+            boolean kappaChanged = iteration % 7 == 3;
+            if (kappaChanged) {
+                kappa.setValue(kappa.getValue() * (0.8 + 0.4 * random.nextDouble()));
+            }
+
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            long siteUpdates = likelihood.getSiteUpdateCount();
+            assertEquals(expectedLikelihood.calculateLogP(), likelihood.calculateLogP(), DELTA);
+            // only the reported sites are pruned again if nothing else changed
+            boolean sitesOnly = !treeChanged && !kappaChanged;
+            assertEquals(sitesOnly ? siteUpdates + 1 : siteUpdates, likelihood.getSiteUpdateCount());
+            if (random.nextBoolean()) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        }
+
+        // a full calculation gives the same values
+        double logP = likelihood.getCurrentLogP();
+        state.robustlyCalcPosterior(posterior);
+        assertEquals(logP, likelihood.getCurrentLogP(), DELTA);
+        assertEquals(logP, expectedLikelihood.getCurrentLogP(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresBinaryTree() {
+        MutableAlignment data = new MutableAlignment();
+        data.initByName(
+                "sequence", new Sequence("a", "ACGT"),
+                "sequence", new Sequence("b", "AAGT"),
+                "sequence", new Sequence("c", "CCGA"),
+                "dataType", "nucleotide"
+        );
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "newick", "(a:0.2,b:0.3,c:0.4);",
+                "IsLabelledNewick", true,
+                "adjustTipHeights", false,
+                "binarizeMultifurcations", false
+        );
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", new JukesCantor());
+
+        SiteUpdateTreeLikelihood likelihood = new SiteUpdateTreeLikelihood();
+        likelihood.setInputValue("data", data);
+        likelihood.setInputValue("tree", tree);
+        likelihood.setInputValue("siteModel", siteModel);
+        likelihood.initAndValidate();
+    }
+
+}
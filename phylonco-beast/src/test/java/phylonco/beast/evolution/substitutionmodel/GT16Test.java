@@ -20,6 +20,10 @@ public class GT16Test {
     private int nrOfStates = 16;
 
     public void setupModel(Double[] pi, Double[] rates) {
+        setupModel(pi, rates, true);
+    }
+
+    public void setupModel(Double[] pi, Double[] rates, boolean factorise) {
         gt16 = new GT16();
 
         RealParameter f = new RealParameter(pi);
@@ -33,7 +37,8 @@ public class GT16Test {
 
         gt16.initByName(
                 "nucRates", nucRates,
-                "frequencies", freqs
+                "frequencies", freqs,
+                "factorise", factorise
         );
 
         nrOfStates = gt16.getStateCount();
@@ -206,4 +211,30 @@ public class GT16Test {
         assertArrayEquals(expected, observed, DELTA);
     }
 
+    private double[] getTransitionProbabilities(Double[] pi, Double[] rates, boolean factorise, double t) {
+        setupModel(pi, rates, factorise);
+        double[] observed = new double[nrOfStates * nrOfStates];
+        gt16.getTransitionProbabilities(null, t, 0, 1, observed);
+        return observed;
+    }
+
+    @Test
+    public void testTransitionFactorised() {
+        Double[] rates = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0};
+        Double[] equal = new Double[nrOfStates];
+        Arrays.fill(equal, 1.0 / nrOfStates);
+        Double[] unequal = new Double[nrOfStates];
+        for (int i = 0; i < nrOfStates; i++) {
+            unequal[i] = (i + 1) / 136.0;
+        }
+        for (double t : new double[]{0.01, 0.5, 3.0}) {
+            // equal frequencies factorise, unequal frequencies use the full eigen decomposition
+            for (Double[] pi : new Double[][]{equal, unequal}) {
+                double[] expected = getTransitionProbabilities(pi, rates, false, t);
+                double[] observed = getTransitionProbabilities(pi, rates, true, t);
+                assertArrayEquals(expected, observed, 1e-12);
+            }
+        }
+    }
+
 }
@@ -1,6 +1,9 @@
 package phylonco.beast.evolution.substitutionmodel;
 
 import beast.base.core.Description;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
 import junit.framework.TestCase;
 import org.junit.Before;
@@ -9,6 +12,7 @@ import org.junit.Test;
 import phylonco.beast.TestUtils;
 
 import java.net.MalformedURLException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
 
@@ -109,4 +113,64 @@ public class SiFit3Test extends TestCase {
         model.getTransitionProbabilities(null, t, 0, 1, observed);
         assertArrayEquals(expected, observed, DELTA);
     }
+
+    private static double[] getEigenTransitionProbabilities(EigenDecomposition eigenDecomposition, double distance) {
+        double[] eigenVectors = eigenDecomposition.getEigenVectors();
+        double[] inverseEigenVectors = eigenDecomposition.getInverseEigenVectors();
+        double[] eigenValues = eigenDecomposition.getEigenValues();
+        int n = eigenValues.length;
+        double[] matrix = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < n; k++) {
+                    matrix[i * n + j] += eigenVectors[i * n + k] * Math.exp(eigenValues[k] * distance) * inverseEigenVectors[k * n + j];
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Closed form transition matrices should match the eigen decomposition,
+     * after a parameter change and after the change is restored.
+     */
+    @Test
+    public void testTransitionsMatchEigenAfterRestore() {
+        RealParameter lambdaD = new RealParameter("2.0");
+        RealParameter lambdaL = new RealParameter("3.0");
+        model = new SiFit3();
+        model.initByName("lambdaD", lambdaD, "lambdaL", lambdaL);
+        nrOfStates = model.getStateCount();
+        State state = new State();
+        state.initByName("stateNode", lambdaD, "stateNode", lambdaL);
+        state.initialise();
+        state.setPosterior(model);
+
+        Node node = new Node();
+        node.setNr(1);
+        double[] distances = {0.1, 0.7, 0.1};
+        double[] observed = new double[nrOfStates * nrOfStates];
+        double[] expected = new double[nrOfStates * nrOfStates];
+        for (double distance : distances) {
+            model.getTransitionProbabilities(node, distance, 0, 1, observed);
+            expected = getEigenTransitionProbabilities(model.getEigenDecomposition(null), distance);
+            assertArrayEquals(expected, observed, DELTA);
+        }
+        double[] before = expected;
+
+        state.store(0);
+        lambdaD.setValue(0.5);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        model.getTransitionProbabilities(node, 0.1, 0, 1, observed);
+        expected = getEigenTransitionProbabilities(model.getEigenDecomposition(null), 0.1);
+        assertArrayEquals(expected, observed, DELTA);
+        assertFalse(Arrays.equals(before, observed));
+
+        state.restore();
+        state.restoreCalculationNodes();
+        model.getTransitionProbabilities(node, 0.1, 0, 1, observed);
+        assertArrayEquals(before, observed, DELTA);
+        assertArrayEquals(getEigenTransitionProbabilities(model.getEigenDecomposition(null), 0.1), observed, DELTA);
+    }
 }
@@ -0,0 +1,76 @@
+package phylonco.lphy.evolution.readcountmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes read count data in a compact binary format that BEAST can memory-map
+ * (phylonco.beast.evolution.datatype.ReadCount, file input).
+ * All values are big-endian:
+ * <pre>
+ * int     magic "PRCB", version
+ * int     ntaxa, nchar
+ * ntaxa x (int length, UTF-8 bytes)   taxa names
+ * int[nchar]                          site indices
+ * byte[nchar]                         reference nucleotide index (A-0, C-1, G-2, T-3), -1 if unknown
+ * zero padding to a multiple of 4 bytes
+ * int[ntaxa * nchar * 4]              A, C, G, T counts, taxon-major
+ * </pre>
+ */
+public class ReadCountBinaryWriter {
+
+    public static final int MAGIC = 0x50524342; // "PRCB"
+    public static final int VERSION = 1;
+    public static final String FILE_TYPE = ".rcb";
+
+    public static void write(ReadCountData readCountData, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(readCountData, out);
+        }
+    }
+
+    public static void write(ReadCountData readCountData, OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        String[] taxaNames = readCountData.getTaxaNames();
+        ReadCount[][] matrix = readCountData.getReadCountDataMatrix();
+        int ntaxa = taxaNames.length;
+        int nchar = readCountData.nchar();
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(ntaxa);
+        out.writeInt(nchar);
+        for (String taxonName : taxaNames) {
+            byte[] name = taxonName.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+        }
+        int[] sitesIndex = readCountData.getSitesIndex();
+        for (int j = 0; j < nchar; j++) {
+            out.writeInt(sitesIndex != null ? sitesIndex[j] : j);
+        }
+        int[] refIndex = readCountData.getRefIndex();
+        for (int j = 0; j < nchar; j++) {
+            out.writeByte(refIndex != null ? refIndex[j] : -1);
+        }
+        // align the counts so they can be read as an int buffer
+        while (out.size() % Integer.BYTES != 0) {
+            out.writeByte(0);
+        }
+        for (int i = 0; i < ntaxa; i++) {
+            for (int j = 0; j < nchar; j++) {
+                int[] counts = matrix[i][j].getReadCounts();
+                for (int k = 0; k < ReadCount.NUM_NUCLEOTIDES; k++) {
+                    out.writeInt(counts[k]);
+                }
+            }
+        }
+        out.flush();
+    }
+
+}
@@ -0,0 +1,67 @@
+package phylonco.lphybeast.tobeast;
+
+import lphy.base.evolution.Taxa;
+import org.junit.jupiter.api.Test;
+import phylonco.beast.evolution.datatype.ReadCount;
+import phylonco.lphy.evolution.readcountmodel.ReadCountBinaryWriter;
+import phylonco.lphy.evolution.readcountmodel.ReadCountData;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReadCountBinaryWriterTest {
+
+    /**
+     * Read counts written by ReadCountBinaryWriter should be mapped by the BEAST ReadCount unchanged.
+     */
+    @Test
+    public void testWriteAndMap() throws IOException {
+        // taxon names of different lengths, so the counts start after padding
+        String[] taxaNames = new String[]{"cell1", "cell_22", "c3"};
+        int[][][] counts = {
+                {{1, 0, 0, 11}, {0, 17, 0, 12}, {3, 3, 0, 0}},
+                {{7, 0, 0, 26}, {0, 12, 0, 8}, {0, 0, 0, 0}},
+                {{0, 0, 5, 1}, {2, 0, 0, 9}, {40, 1, 0, 2}}
+        };
+        phylonco.lphy.evolution.readcountmodel.ReadCount[][] matrix =
+                new phylonco.lphy.evolution.readcountmodel.ReadCount[taxaNames.length][3];
+        for (int i = 0; i < taxaNames.length; i++) {
+            for (int j = 0; j < 3; j++) {
+                matrix[i][j] = new phylonco.lphy.evolution.readcountmodel.ReadCount(counts[i][j]);
+            }
+        }
+        int[] sitesIndex = new int[]{5, 10, 42};
+        int[] refIndex = new int[]{2, 0, -1};
+        ReadCountData readCountData = new ReadCountData(new String[]{"chr1", "chr1", "chr2"}, refIndex,
+                Taxa.createTaxa(taxaNames), matrix, sitesIndex);
+
+        Path file = Files.createTempFile("readCounts", ReadCountBinaryWriter.FILE_TYPE);
+        try {
+            ReadCountBinaryWriter.write(readCountData, file);
+
+            ReadCount readCount = new ReadCount();
+            readCount.initByName("file", file.toString());
+            assertTrue(readCount.isMapped());
+            assertEquals(taxaNames.length, readCount.getTaxaNumber());
+            assertEquals(3, readCount.getSiteNumber());
+            assertArrayEquals(taxaNames, readCount.getTaxaNames());
+            assertArrayEquals(new String[]{"5", "10", "42"}, readCount.getSitesIndex());
+            for (int j = 0; j < 3; j++) {
+                assertEquals(refIndex[j], readCount.getRefIndex(j));
+            }
+            for (int i = 0; i < taxaNames.length; i++) {
+                for (int j = 0; j < 3; j++) {
+                    assertArrayEquals(counts[i][j], readCount.getReadCounts(i, j));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}